@@ -0,0 +1,209 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file of primitive values and arrays that are read back in the order they were written, used as a cache of a built
+ * {@link HalfEdgeGraph} so that later runs can read it back instead of noding the input again.
+ * <p>
+ * This only saves the time to build the graph, not memory: every array is copied back into an array on the heap, and
+ * the graph works on those as if it had been built. Values are little-endian and every array is preceded by its length.
+ * The reader maps the file into memory in windows of at most 1GB only to copy each array out of them in bulk, so
+ * reading costs about as much as copying the bytes, and neither the file nor a single array is limited to what fits in
+ * one mapping.
+ */
+public class ArrayFile {
+
+  private static final long MAGIC = 0x4152524159464c31L;
+  private static final int WRITE_BUFFER_BYTES = 1 << 16;
+  private static final int WINDOW_BYTES = 1 << 30;
+
+  /** Writes values to a new file, replacing any file that is already there. */
+  public static final class Writer implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    public Writer(Path file) throws IOException {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+      writeLong(MAGIC);
+    }
+
+    /** Returns the buffer with room for at least {@code bytes} more bytes, writing it out first if needed. */
+    private ByteBuffer room(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+      return buffer;
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+      room(1).put((byte) (value ? 1 : 0));
+    }
+
+    public void writeInt(int value) throws IOException {
+      room(4).putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+      room(8).putLong(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+      room(8).putDouble(value);
+    }
+
+    /** Writes the first {@code n} values of {@code values}. */
+    public void writeBooleans(boolean[] values, int n) throws IOException {
+      writeInt(n);
+      for (int i = 0; i < n; i++) {
+        writeBoolean(values[i]);
+      }
+    }
+
+    /** Writes the first {@code n} values of {@code values}. */
+    public void writeInts(int[] values, int n) throws IOException {
+      writeInt(n);
+      for (int i = 0; i < n;) {
+        int count = Math.min(n - i, room(4).remaining() / 4);
+        buffer.asIntBuffer().put(values, i, count);
+        buffer.position(buffer.position() + count * 4);
+        i += count;
+      }
+    }
+
+    /** Writes the first {@code n} values of {@code values}. */
+    public void writeLongs(long[] values, int n) throws IOException {
+      writeInt(n);
+      for (int i = 0; i < n;) {
+        int count = Math.min(n - i, room(8).remaining() / 8);
+        buffer.asLongBuffer().put(values, i, count);
+        buffer.position(buffer.position() + count * 8);
+        i += count;
+      }
+    }
+
+    /** Writes the first {@code n} values of {@code values}. */
+    public void writeDoubles(double[] values, int n) throws IOException {
+      writeInt(n);
+      for (int i = 0; i < n;) {
+        int count = Math.min(n - i, room(8).remaining() / 8);
+        buffer.asDoubleBuffer().put(values, i, count);
+        buffer.position(buffer.position() + count * 8);
+        i += count;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      channel.close();
+    }
+  }
+
+  /** Reads the values of a file written by {@link Writer} in the same order. */
+  public static final class Reader implements Closeable {
+
+    private final FileChannel channel;
+    private ByteBuffer window = ByteBuffer.allocate(0);
+    private long windowStart = 0;
+
+    public Reader(Path file) throws IOException {
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+      if (readLong() != MAGIC) {
+        channel.close();
+        throw new IOException(file + " is not an array file");
+      }
+    }
+
+    /** Returns the window with at least {@code bytes} left to read, mapping the next one if needed. */
+    private ByteBuffer window(int bytes) throws IOException {
+      if (window.remaining() < bytes) {
+        long start = windowStart + window.position();
+        long size = Math.min(WINDOW_BYTES, channel.size() - start);
+        if (size < bytes) {
+          throw new EOFException("array file ends after " + channel.size() + " bytes");
+        }
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size).order(ByteOrder.LITTLE_ENDIAN);
+        windowStart = start;
+      }
+      return window;
+    }
+
+    public boolean readBoolean() throws IOException {
+      return window(1).get() != 0;
+    }
+
+    public int readInt() throws IOException {
+      return window(4).getInt();
+    }
+
+    public long readLong() throws IOException {
+      return window(8).getLong();
+    }
+
+    public double readDouble() throws IOException {
+      return window(8).getDouble();
+    }
+
+    public boolean[] readBooleans() throws IOException {
+      boolean[] result = new boolean[readInt()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = readBoolean();
+      }
+      return result;
+    }
+
+    public int[] readInts() throws IOException {
+      int[] result = new int[readInt()];
+      for (int i = 0; i < result.length;) {
+        int count = Math.min(result.length - i, window(4).remaining() / 4);
+        window.asIntBuffer().get(result, i, count);
+        window.position(window.position() + count * 4);
+        i += count;
+      }
+      return result;
+    }
+
+    public long[] readLongs() throws IOException {
+      long[] result = new long[readInt()];
+      for (int i = 0; i < result.length;) {
+        int count = Math.min(result.length - i, window(8).remaining() / 8);
+        window.asLongBuffer().get(result, i, count);
+        window.position(window.position() + count * 8);
+        i += count;
+      }
+      return result;
+    }
+
+    public double[] readDoubles() throws IOException {
+      double[] result = new double[readInt()];
+      for (int i = 0; i < result.length;) {
+        int count = Math.min(result.length - i, window(8).remaining() / 8);
+        window.asDoubleBuffer().get(result, i, count);
+        window.position(window.position() + count * 8);
+        i += count;
+      }
+      return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
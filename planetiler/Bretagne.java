@@ -10,6 +10,7 @@ import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.geo.GeoUtils;
 import com.onthegomap.planetiler.reader.SourceFeature;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -21,6 +22,9 @@ import org.locationtech.jts.geom.LineString;
 public class Bretagne implements Profile {
     public Map<Long, Integer> wayIdToSemanticMinZoom = new HashMap<>();
     public Map<Long, Integer> wayIdToRoutingMinZoom = new HashMap<>();
+    // stroke mesh elimination rank of each way, higher ranks stay visible longer
+    public long[] rankWayIds = new long[0];
+    public int[] wayIdRanks = new int[0];
 
     static LineString linestring(double startLat, double startLon, double endLat, double endLon) {
         var coordinates = new Coordinate[2];
@@ -38,7 +42,13 @@ public class Bretagne implements Profile {
         myProfile.wayIdToSemanticMinZoom = SemanticMinZoom.getMinZoomMap(args, defaultArea);
 
         System.out.println("get routing minzoom...");
-        myProfile.wayIdToRoutingMinZoom = RoutingMinZoom.getMinZoomMap(myProfile.wayIdToSemanticMinZoom);
+        var merger = RoutingMinZoom.process(myProfile.wayIdToSemanticMinZoom);
+        myProfile.wayIdToRoutingMinZoom = RoutingMinZoom.getMinZoomMap(merger);
+
+        System.out.println("rank strokes...");
+        merger.rankStrokeMesh(Math.PI * 2 / 3, true);
+        myProfile.rankWayIds = merger.getRankWayIds();
+        myProfile.wayIdRanks = merger.getWayIdRanks();
 
         // var arguments = Arguments.fromArgs(args)
         //     .withDefault("download", true)
@@ -71,8 +81,10 @@ public class Bretagne implements Profile {
 
             if (wayIdToRoutingMinZoom.keySet().contains(sourceFeature.id())) {
                 int routingMinZoom = wayIdToRoutingMinZoom.get(sourceFeature.id());
+                int rankIndex = Arrays.binarySearch(rankWayIds, sourceFeature.id());
                 features.line("transportation_name")
                     .setAttr("routingMinZoom", routingMinZoom)
+                    .setAttr("strokeRank", rankIndex >= 0 ? wayIdRanks[rankIndex] : -1)
                     .setAttr("highway", sourceFeature.getTag("highway"))
                     .setMinZoom(routingMinZoom)
                     .setMinPixelSize(0)
@@ -0,0 +1,393 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Per-edge attributes of a {@link HalfEdgeGraph}, declared as columns and stored in one primitive array per column.
+ * <p>
+ * Each column is declared once with the way its values combine when two edges are joined at a degree-two node, and is
+ * then addressed by the id returned from {@link #addInt}, {@link #addDouble} or {@link #addLongSet}. Columns declared
+ * with {@link Merge#EQUAL} also decide which identical geometries count as duplicates.
+ * <p>
+ * Long sets are stored sorted and without duplicates as runs in one pool per column, with the start and size of the
+ * run of each edge, so an edge with a single value costs one pool slot and two ints instead of an array. Runs are never
+ * changed once written, so edges can share them: a new single value reuses the last slot if it holds the same value,
+ * and a union that adds nothing to one of its inputs reuses the run of that input, which is the common case when
+ * consecutive pieces of the same way are joined. Copies share the pools until one of them appends to a pool.
+ */
+public class EdgeColumns implements HalfEdgeGraph.Attributes {
+
+  /** How a column combines the values of two edges that are joined into one. */
+  public enum Merge {
+    /** Edges only count as duplicates if their values are equal, and the joined edge keeps the value of the first. */
+    EQUAL,
+    /** The joined edge keeps the value of the first edge. */
+    FIRST,
+    /** The joined edge gets the mean of both values weighted by the length of each edge. */
+    LENGTH_WEIGHTED_MEAN,
+    /** The joined edge gets the union of both sets. */
+    UNION
+  }
+
+  private final IntToDoubleFunction edgeLength;
+  private int capacity;
+  private Merge[] intMerge = new Merge[0];
+  private int[][] ints = new int[0][];
+  private Merge[] doubleMerge = new Merge[0];
+  private double[][] doubles = new double[0][];
+  private long[][] pools = new long[0][];
+  private int[] poolSize = new int[0];
+  private boolean[] poolShared = new boolean[0];
+  private int[][] setStart = new int[0][];
+  private int[][] setSize = new int[0][];
+
+  /**
+   * @param edgeLength returns the length of an edge by id, used to weight means when edges are joined
+   */
+  public EdgeColumns(IntToDoubleFunction edgeLength) {
+    this(edgeLength, 16);
+  }
+
+  private EdgeColumns(IntToDoubleFunction edgeLength, int capacity) {
+    this.edgeLength = edgeLength;
+    this.capacity = capacity;
+  }
+
+  /** Declares an int column that is either {@link Merge#EQUAL} or {@link Merge#FIRST} and returns its id. */
+  public int addInt(Merge merge) {
+    if (merge != Merge.EQUAL && merge != Merge.FIRST) {
+      throw new IllegalArgumentException("int columns cannot merge by " + merge);
+    }
+    int column = ints.length;
+    intMerge = Arrays.copyOf(intMerge, column + 1);
+    intMerge[column] = merge;
+    ints = Arrays.copyOf(ints, column + 1);
+    ints[column] = new int[capacity];
+    return column;
+  }
+
+  /** Declares a double column that is not {@link Merge#UNION} and returns its id. */
+  public int addDouble(Merge merge) {
+    if (merge == Merge.UNION) {
+      throw new IllegalArgumentException("double columns cannot merge by " + merge);
+    }
+    int column = doubles.length;
+    doubleMerge = Arrays.copyOf(doubleMerge, column + 1);
+    doubleMerge[column] = merge;
+    doubles = Arrays.copyOf(doubles, column + 1);
+    doubles[column] = new double[capacity];
+    return column;
+  }
+
+  /** Declares a column of long sets that merge by {@link Merge#UNION} and returns its id. */
+  public int addLongSet() {
+    int column = pools.length;
+    pools = Arrays.copyOf(pools, column + 1);
+    pools[column] = new long[capacity];
+    poolSize = Arrays.copyOf(poolSize, column + 1);
+    poolShared = Arrays.copyOf(poolShared, column + 1);
+    setStart = Arrays.copyOf(setStart, column + 1);
+    setStart[column] = new int[capacity];
+    setSize = Arrays.copyOf(setSize, column + 1);
+    setSize[column] = new int[capacity];
+    return column;
+  }
+
+  /** Drops all values and makes room for {@code numEdges} edges, keeping the columns that were declared. */
+  public void clear(int numEdges) {
+    capacity = Math.max(16, numEdges);
+    for (int column = 0; column < ints.length; column++) {
+      ints[column] = new int[capacity];
+    }
+    for (int column = 0; column < doubles.length; column++) {
+      doubles[column] = new double[capacity];
+    }
+    for (int column = 0; column < pools.length; column++) {
+      pools[column] = new long[capacity];
+      poolSize[column] = 0;
+      poolShared[column] = false;
+      setStart[column] = new int[capacity];
+      setSize[column] = new int[capacity];
+    }
+  }
+
+  /** Returns an independent copy of all columns that weights means with the same edge lengths. */
+  public EdgeColumns copy() {
+    return copy(edgeLength);
+  }
+
+  /** Returns an independent copy of all columns that weights means with {@code edgeLength}. */
+  public EdgeColumns copy(IntToDoubleFunction edgeLength) {
+    EdgeColumns result = new EdgeColumns(edgeLength, capacity);
+    result.copyFrom(this);
+    return result;
+  }
+
+  /** Replaces all columns with an independent copy of those of {@code source}, keeping how means are weighted. */
+  public void copyFrom(EdgeColumns source) {
+    capacity = source.capacity;
+    intMerge = source.intMerge;
+    doubleMerge = source.doubleMerge;
+    ints = new int[source.ints.length][];
+    for (int column = 0; column < ints.length; column++) {
+      ints[column] = source.ints[column].clone();
+    }
+    doubles = new double[source.doubles.length][];
+    for (int column = 0; column < doubles.length; column++) {
+      doubles[column] = source.doubles[column].clone();
+    }
+    pools = source.pools.clone();
+    poolSize = source.poolSize.clone();
+    Arrays.fill(source.poolShared, true);
+    poolShared = source.poolShared.clone();
+    setStart = new int[pools.length][];
+    setSize = new int[pools.length][];
+    for (int column = 0; column < pools.length; column++) {
+      setStart[column] = source.setStart[column].clone();
+      setSize[column] = source.setSize[column].clone();
+    }
+  }
+
+  /**
+   * Writes how the columns were declared and the values of the first {@code numEdges} edges to {@code out}, along with
+   * the whole pool of every long set column.
+   */
+  public void write(ArrayFile.Writer out, int numEdges) throws IOException {
+    out.writeInt(numEdges);
+    writeMerges(out, intMerge);
+    writeMerges(out, doubleMerge);
+    out.writeInt(pools.length);
+    for (int[] values : ints) {
+      out.writeInts(values, numEdges);
+    }
+    for (double[] values : doubles) {
+      out.writeDoubles(values, numEdges);
+    }
+    for (int column = 0; column < pools.length; column++) {
+      out.writeLongs(pools[column], poolSize[column]);
+      out.writeInts(setStart[column], numEdges);
+      out.writeInts(setSize[column], numEdges);
+    }
+  }
+
+  private static void writeMerges(ArrayFile.Writer out, Merge[] merges) throws IOException {
+    int[] ordinals = new int[merges.length];
+    for (int i = 0; i < merges.length; i++) {
+      ordinals[i] = merges[i].ordinal();
+    }
+    out.writeInts(ordinals, ordinals.length);
+  }
+
+  /**
+   * Replaces all values with those written by {@link #write}, which must come from columns declared the same way as
+   * these.
+   */
+  public void read(ArrayFile.Reader in) throws IOException {
+    int numEdges = in.readInt();
+    if (!Arrays.equals(readMerges(in), intMerge) || !Arrays.equals(readMerges(in), doubleMerge) ||
+      in.readInt() != pools.length) {
+      throw new IOException("columns in the file are not declared like these");
+    }
+    capacity = numEdges;
+    for (int column = 0; column < ints.length; column++) {
+      ints[column] = in.readInts();
+    }
+    for (int column = 0; column < doubles.length; column++) {
+      doubles[column] = in.readDoubles();
+    }
+    for (int column = 0; column < pools.length; column++) {
+      pools[column] = in.readLongs();
+      poolSize[column] = pools[column].length;
+      poolShared[column] = false;
+      setStart[column] = in.readInts();
+      setSize[column] = in.readInts();
+    }
+  }
+
+  private static Merge[] readMerges(ArrayFile.Reader in) throws IOException {
+    int[] ordinals = in.readInts();
+    Merge[] merges = new Merge[ordinals.length];
+    for (int i = 0; i < ordinals.length; i++) {
+      merges[i] = Merge.values()[ordinals[i]];
+    }
+    return merges;
+  }
+
+  private void ensureCapacity(int numEdges) {
+    if (numEdges <= capacity) {
+      return;
+    }
+    capacity = Math.max(numEdges, capacity * 2);
+    for (int column = 0; column < ints.length; column++) {
+      ints[column] = Arrays.copyOf(ints[column], capacity);
+    }
+    for (int column = 0; column < doubles.length; column++) {
+      doubles[column] = Arrays.copyOf(doubles[column], capacity);
+    }
+    for (int column = 0; column < pools.length; column++) {
+      setStart[column] = Arrays.copyOf(setStart[column], capacity);
+      setSize[column] = Arrays.copyOf(setSize[column], capacity);
+    }
+  }
+
+  /** Makes room for {@code n} more values at the end of the pool of {@code column}, cloning it if it is shared. */
+  private long[] reservePool(int column, int n) {
+    long[] pool = pools[column];
+    int needed = poolSize[column] + n;
+    if (poolShared[column] || needed > pool.length) {
+      pool = pools[column] = Arrays.copyOf(pool, needed > pool.length ? Math.max(needed, pool.length * 2) : pool.length);
+      poolShared[column] = false;
+    }
+    return pool;
+  }
+
+  public int getInt(int column, int edge) {
+    return ints[column][edge];
+  }
+
+  public void setInt(int column, int edge, int value) {
+    ensureCapacity(edge + 1);
+    ints[column][edge] = value;
+  }
+
+  public double getDouble(int column, int edge) {
+    return doubles[column][edge];
+  }
+
+  public void setDouble(int column, int edge, double value) {
+    ensureCapacity(edge + 1);
+    doubles[column][edge] = value;
+  }
+
+  /** Returns the number of values in the set of {@code edge}. */
+  public int longSetSize(int column, int edge) {
+    return setSize[column][edge];
+  }
+
+  /** Returns the {@code i}-th smallest value in the set of {@code edge}. */
+  public long longSetValue(int column, int edge, int i) {
+    assert i < setSize[column][edge];
+    return pools[column][setStart[column][edge] + i];
+  }
+
+  /** Sets the set of {@code edge} to the single value {@code value}. */
+  public void setLongSet(int column, int edge, long value) {
+    ensureCapacity(edge + 1);
+    int size = poolSize[column];
+    if (size == 0 || pools[column][size - 1] != value) {
+      reservePool(column, 1)[size] = value;
+      size = ++poolSize[column];
+    }
+    setStart[column][edge] = size - 1;
+    setSize[column][edge] = 1;
+  }
+
+  /** Returns the sorted union of the sets of the first {@code count} edges in {@code edges}. */
+  public long[] union(int column, int[] edges, int count) {
+    int total = 0;
+    for (int i = 0; i < count; i++) {
+      total += setSize[column][edges[i]];
+    }
+    long[] result = new long[total];
+    int n = 0;
+    for (int i = 0; i < count; i++) {
+      int edge = edges[i];
+      System.arraycopy(pools[column], setStart[column][edge], result, n, setSize[column][edge]);
+      n += setSize[column][edge];
+    }
+    Arrays.sort(result);
+    int unique = 0;
+    for (int i = 0; i < n; i++) {
+      if (unique == 0 || result[i] != result[unique - 1]) {
+        result[unique++] = result[i];
+      }
+    }
+    return unique == n ? result : Arrays.copyOf(result, unique);
+  }
+
+  @Override
+  public boolean same(int a, int b) {
+    for (int column = 0; column < ints.length; column++) {
+      if (intMerge[column] == Merge.EQUAL && ints[column][a] != ints[column][b]) {
+        return false;
+      }
+    }
+    for (int column = 0; column < doubles.length; column++) {
+      if (doubleMerge[column] == Merge.EQUAL && doubles[column][a] != doubles[column][b]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void merged(int c, int a, int b) {
+    ensureCapacity(c + 1);
+    for (int column = 0; column < ints.length; column++) {
+      int[] values = ints[column];
+      values[c] = values[a];
+    }
+    if (doubles.length > 0) {
+      double lengthA = edgeLength.applyAsDouble(a);
+      double lengthB = edgeLength.applyAsDouble(b);
+      double lengthC = edgeLength.applyAsDouble(c);
+      for (int column = 0; column < doubles.length; column++) {
+        double[] values = doubles[column];
+        values[c] = doubleMerge[column] == Merge.LENGTH_WEIGHTED_MEAN ?
+          (values[a] * lengthA + values[b] * lengthB) / lengthC : values[a];
+      }
+    }
+    for (int column = 0; column < pools.length; column++) {
+      union(column, c, a, b);
+    }
+  }
+
+  /** Copies the values of every column from {@code sourceEdge} of {@code source}, which has the same columns. */
+  @Override
+  public void copied(int e, HalfEdgeGraph.Attributes source, int sourceEdge) {
+    EdgeColumns other = (EdgeColumns) source;
+    ensureCapacity(e + 1);
+    for (int column = 0; column < ints.length; column++) {
+      ints[column][e] = other.ints[column][sourceEdge];
+    }
+    for (int column = 0; column < doubles.length; column++) {
+      doubles[column][e] = other.doubles[column][sourceEdge];
+    }
+    for (int column = 0; column < pools.length; column++) {
+      int size = other.setSize[column][sourceEdge];
+      long[] pool = reservePool(column, size);
+      System.arraycopy(other.pools[column], other.setStart[column][sourceEdge], pool, poolSize[column], size);
+      setStart[column][e] = poolSize[column];
+      setSize[column][e] = size;
+      poolSize[column] += size;
+    }
+  }
+
+  private void union(int column, int c, int a, int b) {
+    int startA = setStart[column][a];
+    int sizeA = setSize[column][a];
+    int startB = setStart[column][b];
+    int sizeB = setSize[column][b];
+    long[] pool = reservePool(column, sizeA + sizeB);
+    int start = poolSize[column];
+    int i = startA;
+    int j = startB;
+    int n = start;
+    while (i < startA + sizeA || j < startB + sizeB) {
+      long next = j >= startB + sizeB || (i < startA + sizeA && pool[i] <= pool[j]) ? pool[i++] : pool[j++];
+      if (n == start || pool[n - 1] != next) {
+        pool[n++] = next;
+      }
+    }
+    int size = n - start;
+    if (size == sizeA) {
+      start = startA;
+    } else if (size == sizeB) {
+      start = startB;
+    } else {
+      poolSize[column] = n;
+    }
+    setStart[column][c] = start;
+    setSize[column][c] = size;
+  }
+}
@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+/**
+ * The faces of a {@link HalfEdgeGraph}, found by walking every attached half-edge exactly once.
+ * <p>
+ * Arriving at a node along half-edge {@code h}, the walk continues with the half-edge that follows the twin of
+ * {@code h} in the angular order around that node, which is the sharpest right turn when half-edges are sorted
+ * counter-clockwise. Every attached half-edge therefore belongs to exactly one face: the bounded faces of a planar
+ * mesh are walked clockwise and have a negative {@link #signedArea}, while the outside of each connected component
+ * is walked counter-clockwise. Loop edges are only attached with their main half-edge so they are walked once, on
+ * the side of their main direction.
+ * <p>
+ * The half-edges of all faces are stored back to back in one array with an offset per face, along with the
+ * perimeter, signed area, and number of half-edges of each face. The index is a snapshot: it does not change when
+ * the graph does.
+ */
+public final class FaceIndex {
+
+  private final HalfEdgeGraph graph;
+  private final int[] faceOf;
+  private int numFaces = 0;
+  private int[] faceStart = new int[16];
+  private double[] perimeter = new double[16];
+  private double[] signedArea = new double[16];
+  private int[] halves = new int[16];
+  private int numHalves = 0;
+
+  /** Labels every half-edge currently attached in {@code graph} with its face. */
+  public FaceIndex(HalfEdgeGraph graph) {
+    this.graph = graph;
+    faceOf = new int[graph.numHalfEdges()];
+    Arrays.fill(faceOf, -1);
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int start = graph.halfAt(node, i);
+        if (faceOf[start] < 0) {
+          walk(start);
+        }
+      }
+    }
+    faceStart[numFaces] = numHalves;
+  }
+
+  private void walk(int start) {
+    if (numFaces + 1 >= faceStart.length) {
+      faceStart = Arrays.copyOf(faceStart, faceStart.length * 2);
+      perimeter = Arrays.copyOf(perimeter, faceStart.length);
+      signedArea = Arrays.copyOf(signedArea, faceStart.length);
+    }
+    int face = numFaces++;
+    faceStart[face] = numHalves;
+    double length = 0;
+    double crossSum = 0;
+    int h = start;
+    do {
+      if (numHalves == halves.length) {
+        halves = Arrays.copyOf(halves, halves.length * 2);
+      }
+      halves[numHalves++] = h;
+      faceOf[h] = face;
+      length += graph.length(h);
+      crossSum += graph.crossSum(h);
+      h = next(h);
+    } while (faceOf[h] < 0);
+    assert h == start : "face walk from " + graph.halfToString(start) + " joined another face";
+    perimeter[face] = length;
+    signedArea[face] = crossSum / 2;
+  }
+
+  /** Returns the half-edge that follows {@code h} around its face. */
+  public int next(int h) {
+    int twin = HalfEdgeGraph.twin(h);
+    // a loop has no attached twin, so continue after the loop itself
+    return graph.nextAround(graph.contains(graph.to(h), twin) ? twin : h);
+  }
+
+  public int numFaces() {
+    return numFaces;
+  }
+
+  /** Returns the face of {@code h}, or {@code -1} if {@code h} was not attached when the index was built. */
+  public int face(int h) {
+    return h < faceOf.length ? faceOf[h] : -1;
+  }
+
+  /** Returns the number of half-edges around {@code face}. */
+  public int edgeCount(int face) {
+    return faceStart[face + 1] - faceStart[face];
+  }
+
+  /** Returns the {@code i}-th half-edge around {@code face}, starting from the one the walk started at. */
+  public int half(int face, int i) {
+    assert i < edgeCount(face);
+    return halves[faceStart[face] + i];
+  }
+
+  /** Returns the total length of the half-edges around {@code face}. */
+  public double perimeter(int face) {
+    return perimeter[face];
+  }
+
+  /** Returns the area enclosed by {@code face}, negative when it is walked clockwise. */
+  public double signedArea(int face) {
+    return signedArea[face];
+  }
+
+  /**
+   * Returns true if {@code face} is a bounded face of the mesh rather than the outside of a connected component or
+   * the two sides of a tree, which enclose no area.
+   */
+  public boolean isBounded(int face) {
+    // walking both sides of a tree cancels out, but only up to rounding
+    return signedArea[face] < -1e-9 * perimeter[face] * perimeter[face];
+  }
+}
@@ -0,0 +1,196 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.PrecisionModel;
+
+/**
+ * Checks that {@link ArrayFile}, {@link TrafficCsv}, {@link SegmentFile} and the graph file of
+ * {@link LoopLineMerger4} give back what was written to them.
+ * <p>
+ * Run with {@code java -cp planetiler.jar FileChecks.java}.
+ */
+public class FileChecks {
+
+  public static void main(String[] args) throws IOException {
+    Path directory = Files.createTempDirectory("checks");
+    try {
+      arrayFile(directory.resolve("arrays.bin"));
+      segmentFile(directory.resolve("export.csv"), directory.resolve("export.seg"));
+      graphFile(directory.resolve("graph.bin"));
+    } finally {
+      try (var files = Files.list(directory)) {
+        for (Path file : files.toList()) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(directory);
+    }
+  }
+
+  private static void check(String name, boolean ok) {
+    if (!ok) {
+      throw new IllegalStateException(name + " failed");
+    }
+  }
+
+  /** Writes values and the first part of arrays and checks that they are read back in the same order. */
+  private static void arrayFile(Path file) throws IOException {
+    Random random = new Random(0);
+    boolean[] booleans = new boolean[1000];
+    int[] ints = new int[100_000];
+    long[] longs = new long[100_000];
+    double[] doubles = new double[100_000];
+    for (int i = 0; i < booleans.length; i++) {
+      booleans[i] = random.nextBoolean();
+    }
+    for (int i = 0; i < ints.length; i++) {
+      ints[i] = random.nextInt();
+      longs[i] = random.nextLong();
+      doubles[i] = random.nextGaussian();
+    }
+    try (var out = new ArrayFile.Writer(file)) {
+      out.writeBoolean(true);
+      out.writeInt(-7);
+      out.writeBooleans(booleans, 999);
+      out.writeLong(Long.MIN_VALUE);
+      out.writeInts(ints, 99_999);
+      out.writeDouble(Double.NaN);
+      out.writeLongs(longs, 0);
+      out.writeLongs(longs, longs.length);
+      out.writeDoubles(doubles, 12_345);
+    }
+    try (var in = new ArrayFile.Reader(file)) {
+      check("array file boolean", in.readBoolean());
+      check("array file int", in.readInt() == -7);
+      check("array file booleans", Arrays.equals(in.readBooleans(), Arrays.copyOf(booleans, 999)));
+      check("array file long", in.readLong() == Long.MIN_VALUE);
+      check("array file ints", Arrays.equals(in.readInts(), Arrays.copyOf(ints, 99_999)));
+      check("array file double", Double.isNaN(in.readDouble()));
+      check("array file empty longs", in.readLongs().length == 0);
+      check("array file longs", Arrays.equals(in.readLongs(), longs));
+      check("array file doubles", Arrays.equals(in.readDoubles(), Arrays.copyOf(doubles, 12_345)));
+    }
+    System.out.println("array file: ok");
+  }
+
+  /**
+   * Writes an export over several blocks of a segment file as CSV, and checks that parsing it and reading it back from
+   * the converted file gives the same rows, also when only reading a way or an area.
+   */
+  private static void segmentFile(Path csv, Path file) throws IOException {
+    Random random = new Random(0);
+    List<String> rows = new ArrayList<>();
+    long wayId = 1_000_000_000L;
+    int lat = 475_000_000;
+    int lon = 85_000_000;
+    for (int i = 0; i < 150_000; i++) {
+      wayId += random.nextInt(3) == 0 ? random.nextInt(1000) - 300 : 0;
+      lat += random.nextInt(2001) - 1000;
+      lon += random.nextInt(2001) - 1000;
+      rows.add(wayId + "," + lat + "," + lon + "," + (lat + random.nextInt(4001) - 2000) + "," +
+        (lon + random.nextInt(4001) - 2000) + "," + (random.nextInt(4) == 0 ? 0 : random.nextLong(1L << 40)) + "," +
+        (random.nextInt(10) == 0 ? 1 : 0));
+    }
+    try (BufferedWriter out = Files.newBufferedWriter(csv)) {
+      out.write("way_id,start_lat,start_lon,end_lat,end_lon,visits,deadend\n");
+      for (String row : rows) {
+        out.write(row);
+        out.write('\n');
+      }
+    }
+
+    List<String> parsed = new ArrayList<>();
+    TrafficCsv.read(csv, (TrafficCsv.DeadEndRowConsumer) (id, startLat, startLon, endLat, endLon, visits, deadEnd) ->
+      parsed.add(row(id, startLat, startLon, endLat, endLon, visits, deadEnd)));
+    check("traffic csv", parsed.equals(rows));
+
+    SegmentFile.convert(csv, file);
+    try (var reader = new SegmentFile.Reader(file)) {
+      check("segment file rows", reader.numRows() == rows.size());
+      List<String> read = new ArrayList<>();
+      reader.read((TrafficCsv.DeadEndRowConsumer) (id, startLat, startLon, endLat, endLon, visits, deadEnd) ->
+        read.add(row(id, startLat, startLon, endLat, endLon, visits, deadEnd)));
+      check("segment file", read.equals(rows));
+
+      for (int i = 0; i < 20; i++) {
+        long way = Long.parseLong(rows.get(random.nextInt(rows.size())).split(",")[0]);
+        List<String> expected = rows.stream().filter(row -> Long.parseLong(row.split(",")[0]) == way).toList();
+        List<String> actual = new ArrayList<>();
+        reader.readWay(way, (id, startLat, startLon, endLat, endLon, visits, deadEnd) ->
+          actual.add(row(id, startLat, startLon, endLat, endLon, visits, deadEnd)));
+        check("segment file way " + way, actual.equals(expected));
+      }
+
+      for (int i = 0; i < 20; i++) {
+        String[] center = rows.get(random.nextInt(rows.size())).split(",");
+        int minLat = Integer.parseInt(center[1]) - random.nextInt(100_000);
+        int minLon = Integer.parseInt(center[2]) - random.nextInt(100_000);
+        int maxLat = minLat + random.nextInt(200_000);
+        int maxLon = minLon + random.nextInt(200_000);
+        List<String> expected = rows.stream().filter(row -> {
+          String[] values = row.split(",");
+          int startLat = Integer.parseInt(values[1]);
+          int startLon = Integer.parseInt(values[2]);
+          int endLat = Integer.parseInt(values[3]);
+          int endLon = Integer.parseInt(values[4]);
+          return Math.min(startLat, endLat) <= maxLat && minLat <= Math.max(startLat, endLat) &&
+            Math.min(startLon, endLon) <= maxLon && minLon <= Math.max(startLon, endLon);
+        }).toList();
+        List<String> actual = new ArrayList<>();
+        reader.readArea(minLat, minLon, maxLat, maxLon, (id, startLat, startLon, endLat, endLon, visits, deadEnd) ->
+          actual.add(row(id, startLat, startLon, endLat, endLon, visits, deadEnd)));
+        check("segment file area " + i, actual.equals(expected));
+      }
+    }
+    System.out.println("traffic csv and segment file: ok");
+  }
+
+  private static String row(long wayId, int startLat, int startLon, int endLat, int endLon, long visits,
+    boolean deadEnd) {
+    return wayId + "," + startLat + "," + startLon + "," + endLat + "," + endLon + "," + visits + "," +
+      (deadEnd ? 1 : 0);
+  }
+
+  /**
+   * Checks that a merger that writes the graph file and one that reads it back give the same results as one without
+   * it, with a different input every time so the file is also rebuilt when the input changes.
+   */
+  private static void graphFile(Path file) {
+    for (int seed = 0; seed < 100; seed++) {
+      Random random = new Random(seed);
+      List<LineString> input = MergerChecks.streets(random);
+      double[] visits = new double[input.size()];
+      int[] minZooms = new int[input.size()];
+      for (int i = 0; i < input.size(); i++) {
+        visits[i] = 1e5 + random.nextDouble();
+        minZooms[i] = random.nextInt(14);
+      }
+      String expected = results(input, visits, minZooms, null);
+      check("graph file written for seed " + seed, expected.equals(results(input, visits, minZooms, file)));
+      check("graph file read for seed " + seed, expected.equals(results(input, visits, minZooms, file)));
+    }
+    System.out.println("graph file: ok");
+  }
+
+  private static String results(List<LineString> input, double[] visits, int[] minZooms, Path graphFile) {
+    var merger = new LoopLineMerger4()
+      .setPrecisionModel(new PrecisionModel())
+      .setMinVisits(0)
+      .setMinLength(0)
+      .setLoopMinLength(1.5)
+      .setStubMinLength(0.7)
+      .setMergeStrokes(true)
+      .setGraphFile(graphFile);
+    for (int i = 0; i < input.size(); i++) {
+      merger.add(input.get(i), visits[i], minZooms[i], i);
+    }
+    return MergerChecks.hash(merger.getMergedLineStrings()) + " " +
+      Arrays.toString(merger.getVisitsThresholds(true)) + " " + Arrays.toString(merger.getActiveWayIds());
+  }
+}
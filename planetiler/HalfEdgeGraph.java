@@ -0,0 +1,1263 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A mutable graph of linestrings stored in primitive arrays instead of one object per node and edge.
+ * <p>
+ * Each edge {@code e} is stored as two half-edges: {@code 2 * e} runs in the direction the edge was added in and
+ * {@code 2 * e + 1} is its reverse, so the twin of half-edge {@code h} is always {@code h ^ 1} and never needs to be
+ * allocated. The vertices of all edges live in one flat {@code double[]} of interleaved x/y values, and the half-edges
+ * leaving each node are stored in compressed sparse row form: node {@code n} owns {@code slotCapacity[n]} consecutive
+ * entries of {@code slots} starting at {@code slotStart[n]}, the first {@code slotUsed[n]} of which have been filled.
+ * <p>
+ * Every attached half-edge remembers its slot, so finding, removing, or stepping around a half-edge at its node takes
+ * constant time. Removing a half-edge leaves a tombstone in its slot that is compacted away lazily, either once
+ * tombstones outnumber live half-edges at the node or when the node is next accessed by position. When edges are
+ * kept in angular order, an edge created by a merge takes over the slot of the half-edge it replaces whenever that
+ * keeps the order, so merging never re-sorts a node. Duplicate detection compares a direction-independent
+ * {@link #fingerprint} of each edge before falling back to comparing points.
+ * <p>
+ * Edges are first added with {@link #addEdge} and then attached to their nodes all at once by
+ * {@link #buildAdjacency()}. After that the graph only shrinks: edges can be {@link #remove removed} or
+ * {@link #merge merged} into a new edge that takes over their slots.
+ * <p>
+ * Merging does not copy points: the new edge only references the two half-edges it was joined from, so collapsing a
+ * chain of {@code n} segments costs {@code O(n)} instead of {@code O(n^2)}. The points of a merged edge are written
+ * out into the flat array the first time they are read, which normally happens once when the result is output.
+ * <p>
+ * Attributes that a merger keeps per edge are stored by the merger in its own arrays indexed by edge id and hooked in
+ * through {@link Attributes}.
+ * <p>
+ * {@link #copy} is copy-on-write: the copy shares all arrays with the original until either of them is first changed,
+ * which includes compacting a node or writing out merged points while reading. Only then does the one that changes
+ * clone the arrays, and the flat point array is only cloned when points are written, so copies that merely remove or
+ * merge edges never copy the points. Graphs that share arrays can be read from different threads.
+ * <p>
+ * Edges never connect different {@link #components connected components}, so a graph can be {@link #split} into one
+ * graph per group of components that are processed on different threads, and {@link #join joined} back afterwards.
+ * <p>
+ * A graph can be {@link #write written} to an {@link ArrayFile} as the arrays it is stored in and {@link #read read}
+ * back by a later run, which costs about as much as copying the arrays.
+ */
+public class HalfEdgeGraph {
+
+  /** Callbacks for attributes that the owner of the graph stores per edge id. */
+  public interface Attributes {
+
+    /**
+     * Returns true if edges {@code a} and {@code b} carry the same attributes, so that identical geometries are
+     * considered duplicates.
+     */
+    boolean same(int a, int b);
+
+    /** Called when edge {@code c} is created by joining edges {@code a} and {@code b} at a shared node. */
+    void merged(int c, int a, int b);
+
+    /**
+     * Called when edge {@code e} is created as a copy of edge {@code sourceEdge} of another graph, whose owner stores
+     * its attributes in {@code source}.
+     */
+    void copied(int e, Attributes source, int sourceEdge);
+  }
+
+  // edges simplified by one task, enough to outweigh handing the task to another thread
+  private static final int SIMPLIFY_CHUNK_SIZE = 256;
+
+  private final boolean angleOrdered;
+  private final Attributes attributes;
+
+  private int numNodes = 0;
+  private double[] nodeX = new double[16];
+  private double[] nodeY = new double[16];
+  private int[] slotStart = new int[16];
+  private int[] slotCapacity = new int[16];
+  private int[] slotUsed = new int[16];
+  private int[] degree = new int[16];
+  private int[] slots = new int[0];
+  private int numSlots = 0;
+  private boolean built = false;
+
+  private int numEdges = 0;
+  private int[] halfFrom = new int[32];
+  private int[] halfSlot = new int[32];
+  private double[] halfAngle = new double[32];
+  private double[] halfCurrentAngle = new double[32];
+  private boolean[] halfRemoved = new boolean[32];
+  private double[] edgeLength = new double[16];
+  private long[] edgeFingerprint = new long[16];
+  private double[] edgeCrossSum = new double[16];
+  private int[] pointStart = new int[16];
+  private int[] pointCount = new int[16];
+  private int[] joinedHead = new int[16];
+  private int[] joinedTail = new int[16];
+  private double[] points = new double[64];
+  private int numPoints = 0;
+  // true while the arrays, or the point array, may be shared with a copy
+  private boolean shared = false;
+  private boolean pointsShared = false;
+
+  /**
+   * Creates an empty graph.
+   *
+   * @param angleOrdered if true, the half-edges leaving each node are kept sorted by the angle of their first segment,
+   *                     otherwise they are kept in insertion order
+   * @param attributes   callbacks for the per-edge attributes of the owner
+   */
+  public HalfEdgeGraph(boolean angleOrdered, Attributes attributes) {
+    this.angleOrdered = angleOrdered;
+    this.attributes = attributes;
+  }
+
+  /**
+   * Returns an independent copy of this graph that reports to the same {@code attributes}, so that the owner can keep
+   * the graph as it was after a processing step and carry on from there later.
+   */
+  public HalfEdgeGraph copy() {
+    return copy(attributes);
+  }
+
+  /**
+   * Returns an independent copy of this graph that reports to {@code attributes}, for an owner that keeps its own
+   * per-edge attributes. This takes constant time, arrays are only cloned once one of the graphs changes.
+   */
+  public HalfEdgeGraph copy(Attributes attributes) {
+    return copy(angleOrdered, attributes);
+  }
+
+  /**
+   * Returns a copy of this graph, like {@link #copy()}, with the half-edges leaving each node sorted by angle, for
+   * walking the faces of a graph that is kept in insertion order. Equal angles keep their current order.
+   */
+  public HalfEdgeGraph angleOrderedCopy() {
+    HalfEdgeGraph result = copy(true, attributes);
+    if (!angleOrdered) {
+      result.sortByAngle();
+    }
+    return result;
+  }
+
+  private HalfEdgeGraph copy(boolean angleOrdered, Attributes attributes) {
+    HalfEdgeGraph result = new HalfEdgeGraph(angleOrdered, attributes);
+    result.numNodes = numNodes;
+    result.nodeX = nodeX;
+    result.nodeY = nodeY;
+    result.slotStart = slotStart;
+    result.slotCapacity = slotCapacity;
+    result.slotUsed = slotUsed;
+    result.degree = degree;
+    result.slots = slots;
+    result.numSlots = numSlots;
+    result.built = built;
+    result.numEdges = numEdges;
+    result.halfFrom = halfFrom;
+    result.halfSlot = halfSlot;
+    result.halfAngle = halfAngle;
+    result.halfCurrentAngle = halfCurrentAngle;
+    result.halfRemoved = halfRemoved;
+    result.edgeLength = edgeLength;
+    result.edgeFingerprint = edgeFingerprint;
+    result.edgeCrossSum = edgeCrossSum;
+    result.pointStart = pointStart;
+    result.pointCount = pointCount;
+    result.joinedHead = joinedHead;
+    result.joinedTail = joinedTail;
+    result.points = points;
+    result.numPoints = numPoints;
+    shared = pointsShared = true;
+    result.shared = result.pointsShared = true;
+    return result;
+  }
+
+  /**
+   * Writes the used part of every array to {@code out}, including merged edges whose points have not been written out
+   * yet, so that {@link #read} gives back the graph as it is.
+   */
+  public void write(ArrayFile.Writer out) throws IOException {
+    out.writeBoolean(angleOrdered);
+    out.writeBoolean(built);
+    out.writeDoubles(nodeX, numNodes);
+    out.writeDoubles(nodeY, numNodes);
+    out.writeInts(slotStart, numNodes);
+    out.writeInts(slotCapacity, numNodes);
+    out.writeInts(slotUsed, numNodes);
+    out.writeInts(degree, numNodes);
+    out.writeInts(slots, numSlots);
+    out.writeInts(halfFrom, numEdges * 2);
+    out.writeInts(halfSlot, numEdges * 2);
+    out.writeDoubles(halfAngle, numEdges * 2);
+    out.writeDoubles(halfCurrentAngle, numEdges * 2);
+    out.writeBooleans(halfRemoved, numEdges * 2);
+    out.writeDoubles(edgeLength, numEdges);
+    out.writeLongs(edgeFingerprint, numEdges);
+    out.writeDoubles(edgeCrossSum, numEdges);
+    out.writeInts(pointStart, numEdges);
+    out.writeInts(pointCount, numEdges);
+    out.writeInts(joinedHead, numEdges);
+    out.writeInts(joinedTail, numEdges);
+    out.writeDoubles(points, numPoints * 2);
+  }
+
+  /** Reads a graph written by {@link #write} into arrays on the heap, reporting to {@code attributes}. */
+  public static HalfEdgeGraph read(ArrayFile.Reader in, Attributes attributes) throws IOException {
+    HalfEdgeGraph result = new HalfEdgeGraph(in.readBoolean(), attributes);
+    result.built = in.readBoolean();
+    result.nodeX = in.readDoubles();
+    result.nodeY = in.readDoubles();
+    result.slotStart = in.readInts();
+    result.slotCapacity = in.readInts();
+    result.slotUsed = in.readInts();
+    result.degree = in.readInts();
+    result.numNodes = result.nodeX.length;
+    result.slots = in.readInts();
+    result.numSlots = result.slots.length;
+    result.halfFrom = in.readInts();
+    result.halfSlot = in.readInts();
+    result.halfAngle = in.readDoubles();
+    result.halfCurrentAngle = in.readDoubles();
+    result.halfRemoved = in.readBooleans();
+    result.edgeLength = in.readDoubles();
+    result.edgeFingerprint = in.readLongs();
+    result.edgeCrossSum = in.readDoubles();
+    result.pointStart = in.readInts();
+    result.pointCount = in.readInts();
+    result.joinedHead = in.readInts();
+    result.joinedTail = in.readInts();
+    result.numEdges = result.edgeLength.length;
+    result.points = in.readDoubles();
+    result.numPoints = result.points.length / 2;
+    return result;
+  }
+
+  /** Clones every array except the points before the first change to a graph that may share them with a copy. */
+  private void own() {
+    if (shared) {
+      shared = false;
+      nodeX = nodeX.clone();
+      nodeY = nodeY.clone();
+      slotStart = slotStart.clone();
+      slotCapacity = slotCapacity.clone();
+      slotUsed = slotUsed.clone();
+      degree = degree.clone();
+      slots = slots.clone();
+      halfFrom = halfFrom.clone();
+      halfSlot = halfSlot.clone();
+      halfAngle = halfAngle.clone();
+      halfCurrentAngle = halfCurrentAngle.clone();
+      halfRemoved = halfRemoved.clone();
+      edgeLength = edgeLength.clone();
+      edgeFingerprint = edgeFingerprint.clone();
+      edgeCrossSum = edgeCrossSum.clone();
+      pointStart = pointStart.clone();
+      pointCount = pointCount.clone();
+      joinedHead = joinedHead.clone();
+      joinedTail = joinedTail.clone();
+    }
+  }
+
+  /** Clones the points before they are first written in a graph that may share them with a copy. */
+  private void ownPoints() {
+    if (pointsShared) {
+      pointsShared = false;
+      points = points.clone();
+    }
+  }
+
+  /** Returns the twin of half-edge {@code h} that runs in the opposite direction. */
+  public static int twin(int h) {
+    return h ^ 1;
+  }
+
+  /** Returns the id of the edge that half-edge {@code h} belongs to. */
+  public static int edge(int h) {
+    return h >>> 1;
+  }
+
+  /** Returns true if half-edge {@code h} runs in the direction its edge was created in. */
+  public static boolean isMain(int h) {
+    return (h & 1) == 0;
+  }
+
+  /** Adds a node at {@code (x, y)} and returns its id. */
+  public int addNode(double x, double y) {
+    own();
+    if (numNodes == nodeX.length) {
+      int capacity = numNodes * 2;
+      nodeX = Arrays.copyOf(nodeX, capacity);
+      nodeY = Arrays.copyOf(nodeY, capacity);
+      slotStart = Arrays.copyOf(slotStart, capacity);
+      slotCapacity = Arrays.copyOf(slotCapacity, capacity);
+      slotUsed = Arrays.copyOf(slotUsed, capacity);
+      degree = Arrays.copyOf(degree, capacity);
+    }
+    nodeX[numNodes] = x;
+    nodeY[numNodes] = y;
+    return numNodes++;
+  }
+
+  /**
+   * Adds an edge from node {@code from} to node {@code to} through the first {@code n} points of {@code xy} and returns
+   * the id of its main half-edge.
+   * <p>
+   * The edge is not attached to its nodes until {@link #buildAdjacency()} is called.
+   */
+  public int addEdge(int from, int to, double[] xy, int n, double length) {
+    return addEdge(from, to, xy, 0, n, length);
+  }
+
+  /** Like {@link #addEdge(int, int, double[], int, double)} with the points starting at point {@code offset}. */
+  public int addEdge(int from, int to, double[] xy, int offset, int n, double length) {
+    own();
+    assert !built;
+    int h = newEdge(from, to, n, length);
+    pointStart[edge(h)] = allocatePoints(n);
+    System.arraycopy(xy, offset * 2, points, pointStart[edge(h)] * 2, n * 2);
+    computeAngles(h);
+    computeFingerprint(edge(h));
+    computeCrossSum(edge(h));
+    slotCapacity[from]++;
+    if (from != to) {
+      slotCapacity[to]++;
+    }
+    return h;
+  }
+
+  /**
+   * Lays out the adjacency slots of every node and attaches all edges added so far, in the order they were added.
+   */
+  public void buildAdjacency() {
+    own();
+    layoutSlots();
+    for (int e = 0; e < numEdges; e++) {
+      int h = e * 2;
+      attach(h);
+      if (from(h) != to(h)) {
+        attach(twin(h));
+      }
+    }
+  }
+
+  private void layoutSlots() {
+    int total = 0;
+    for (int node = 0; node < numNodes; node++) {
+      slotStart[node] = total;
+      slotUsed[node] = 0;
+      degree[node] = 0;
+      total += slotCapacity[node];
+    }
+    slots = new int[total];
+    numSlots = total;
+    built = true;
+  }
+
+  /**
+   * Labels every node with a group of connected components and returns the number of groups, where two nodes are
+   * connected if a path of attached edges runs between them and nodes without edges get {@code -1}.
+   * <p>
+   * Components are found with union-find and visited in order of their lowest node. They are added to the same group
+   * until it has at least {@code minEdges} edges, so that many small components are handled as one. The groups only
+   * depend on the graph, never on how many threads will process them.
+   */
+  public int components(int[] component, int minEdges) {
+    // every root is the lowest node of its component, so roots are labelled before the rest of their component
+    int[] parent = new int[numNodes];
+    for (int node = 0; node < numNodes; node++) {
+      parent[node] = node;
+    }
+    for (int e = 0; e < numEdges; e++) {
+      if (isAttached(e)) {
+        int a = find(parent, halfFrom[e * 2]);
+        int b = find(parent, halfFrom[e * 2 + 1]);
+        parent[Math.max(a, b)] = Math.min(a, b);
+      }
+    }
+    int[] edgeCount = new int[numNodes];
+    for (int e = 0; e < numEdges; e++) {
+      if (isAttached(e)) {
+        edgeCount[find(parent, halfFrom[e * 2])]++;
+      }
+    }
+    int numGroups = 0;
+    int groupEdges = minEdges;
+    for (int node = 0; node < numNodes; node++) {
+      int root = find(parent, node);
+      if (degree[node] == 0) {
+        component[node] = -1;
+      } else if (root == node) {
+        if (groupEdges >= minEdges) {
+          numGroups++;
+          groupEdges = 0;
+        }
+        groupEdges += edgeCount[node];
+        component[node] = numGroups - 1;
+      } else {
+        component[node] = component[root];
+      }
+    }
+    return numGroups;
+  }
+
+  private static int find(int[] parent, int node) {
+    while (parent[node] != node) {
+      // path halving
+      parent[node] = parent[parent[node]];
+      node = parent[node];
+    }
+    return node;
+  }
+
+  private boolean isAttached(int e) {
+    return halfSlot[e * 2] >= 0 || halfSlot[e * 2 + 1] >= 0;
+  }
+
+  /**
+   * Returns one graph for each of the {@code numGroups} groups from {@link #components}, that reports to the
+   * {@code attributes} of the same index and holds the nodes of the group and copies of the edges attached between
+   * them.
+   * <p>
+   * Nodes keep their order and edges keep the order they were created in, and the half-edges at each node are
+   * attached in the same order as in this graph, so each part looks the same from its nodes as this graph does.
+   * Merged edges are written out to be copied.
+   */
+  public HalfEdgeGraph[] split(int[] component, int numGroups, Attributes[] attributes) {
+    HalfEdgeGraph[] parts = new HalfEdgeGraph[numGroups];
+    for (int group = 0; group < numGroups; group++) {
+      parts[group] = new HalfEdgeGraph(angleOrdered, attributes[group]);
+    }
+    int[] nodeIds = new int[numNodes];
+    for (int node = 0; node < numNodes; node++) {
+      nodeIds[node] = component[node] < 0 ? -1 : parts[component[node]].addNode(nodeX[node], nodeY[node]);
+    }
+    int[] edgeIds = new int[numEdges];
+    for (int e = 0; e < numEdges; e++) {
+      if (isAttached(e)) {
+        int from = halfFrom[e * 2];
+        edgeIds[e] = parts[component[from]].copyEdge(this, e, nodeIds[from], nodeIds[halfFrom[e * 2 + 1]]);
+      }
+    }
+    for (int node = 0; node < numNodes; node++) {
+      if (component[node] >= 0) {
+        parts[component[node]].slotCapacity[nodeIds[node]] = degree[node];
+      }
+    }
+    for (var part : parts) {
+      part.layoutSlots();
+    }
+    for (int node = 0; node < numNodes; node++) {
+      if (component[node] >= 0) {
+        parts[component[node]].attachCopies(nodeIds[node], this, node, edgeIds);
+      }
+    }
+    return parts;
+  }
+
+  /**
+   * Returns a graph that reports to {@code attributes} with the nodes of this graph and copies of the edges attached
+   * in {@code parts}, which were {@link #split} from this graph with {@code component}, so node ids are the same as
+   * here and the edges of each part are copied in order of their part.
+   */
+  public HalfEdgeGraph join(HalfEdgeGraph[] parts, int[] component, Attributes attributes) {
+    HalfEdgeGraph result = new HalfEdgeGraph(angleOrdered, attributes);
+    // node ids in each part and the other way around, counted the same way split added them
+    int[] localIds = new int[numNodes];
+    int[][] nodeIds = new int[parts.length][];
+    for (int group = 0; group < parts.length; group++) {
+      nodeIds[group] = new int[parts[group].numNodes];
+    }
+    int[] numLocal = new int[parts.length];
+    for (int node = 0; node < numNodes; node++) {
+      result.addNode(nodeX[node], nodeY[node]);
+      if (component[node] >= 0) {
+        localIds[node] = numLocal[component[node]]++;
+        nodeIds[component[node]][localIds[node]] = node;
+      }
+    }
+    int[][] edgeIds = new int[parts.length][];
+    for (int group = 0; group < parts.length; group++) {
+      HalfEdgeGraph part = parts[group];
+      edgeIds[group] = new int[part.numEdges];
+      for (int e = 0; e < part.numEdges; e++) {
+        if (part.isAttached(e)) {
+          edgeIds[group][e] = result.copyEdge(part, e, nodeIds[group][part.halfFrom[e * 2]],
+            nodeIds[group][part.halfFrom[e * 2 + 1]]);
+        }
+      }
+    }
+    for (int node = 0; node < numNodes; node++) {
+      if (component[node] >= 0) {
+        result.slotCapacity[node] = parts[component[node]].degree[localIds[node]];
+      }
+    }
+    result.layoutSlots();
+    for (int node = 0; node < numNodes; node++) {
+      if (component[node] >= 0) {
+        result.attachCopies(node, parts[component[node]], localIds[node], edgeIds[component[node]]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds a copy of edge {@code e} of {@code source} from node {@code from} to node {@code to}, with the points and
+   * angles it has there, and returns the id of the new edge.
+   */
+  private int copyEdge(HalfEdgeGraph source, int e, int from, int to) {
+    int n = source.pointCount[e];
+    int h = newEdge(from, to, n, source.edgeLength[e]);
+    int start = pointStart[edge(h)] = allocatePoints(n);
+    // look up the index first, writing out the points of a merged edge may replace the point array
+    int index = source.pointIndex(e * 2, 0);
+    System.arraycopy(source.points, index * 2, points, start * 2, n * 2);
+    halfAngle[h] = source.halfAngle[e * 2];
+    halfAngle[twin(h)] = source.halfAngle[e * 2 + 1];
+    halfCurrentAngle[h] = source.halfCurrentAngle[e * 2];
+    halfCurrentAngle[twin(h)] = source.halfCurrentAngle[e * 2 + 1];
+    edgeFingerprint[edge(h)] = source.edgeFingerprint[e];
+    edgeCrossSum[edge(h)] = source.edgeCrossSum[e];
+    attributes.copied(edge(h), source.attributes, e);
+    return edge(h);
+  }
+
+  /**
+   * Attaches the copies of the half-edges leaving {@code sourceNode} in {@code source} to {@code node}, in the same
+   * order, where {@code edgeIds} holds the id of the copy of each edge of {@code source}.
+   */
+  private void attachCopies(int node, HalfEdgeGraph source, int sourceNode, int[] edgeIds) {
+    int end = source.slotStart[sourceNode] + source.slotUsed[sourceNode];
+    for (int slot = source.slotStart[sourceNode]; slot < end; slot++) {
+      int h = source.slots[slot];
+      if (h >= 0) {
+        int copy = edgeIds[edge(h)] * 2 + (h & 1);
+        slots[slotStart[node] + slotUsed[node]] = copy;
+        halfSlot[copy] = slotStart[node] + slotUsed[node];
+        slotUsed[node]++;
+        degree[node]++;
+      }
+    }
+  }
+
+  public int numNodes() {
+    return numNodes;
+  }
+
+  /** Returns the number of half-edges ever created, including removed and merged ones. */
+  public int numHalfEdges() {
+    return numEdges * 2;
+  }
+
+  public double nodeX(int node) {
+    return nodeX[node];
+  }
+
+  public double nodeY(int node) {
+    return nodeY[node];
+  }
+
+  /** Returns the euclidean distance between two nodes. */
+  public double distance(int a, int b) {
+    return Math.hypot(nodeX[a] - nodeX[b], nodeY[a] - nodeY[b]);
+  }
+
+  /** Returns the number of half-edges currently leaving {@code node}. */
+  public int degree(int node) {
+    return degree[node];
+  }
+
+  /** Returns the {@code i}-th half-edge leaving {@code node}. */
+  public int halfAt(int node, int i) {
+    assert i < degree[node];
+    if (slotUsed[node] != degree[node]) {
+      compact(node);
+    }
+    return slots[slotStart[node] + i];
+  }
+
+  /** Returns the position of {@code h} among the half-edges leaving {@code node}, or {@code -1} if it is not there. */
+  public int indexOf(int node, int h) {
+    if (!contains(node, h)) {
+      return -1;
+    }
+    if (slotUsed[node] != degree[node]) {
+      compact(node);
+    }
+    return halfSlot[h] - slotStart[node];
+  }
+
+  public boolean contains(int node, int h) {
+    return halfSlot[h] >= 0 && halfFrom[h] == node;
+  }
+
+  /**
+   * Returns the half-edge that follows the attached half-edge {@code h} in the order around its node, wrapping around
+   * from the last to the first.
+   */
+  public int nextAround(int h) {
+    assert halfSlot[h] >= 0;
+    int node = halfFrom[h];
+    int start = slotStart[node];
+    int end = start + slotUsed[node];
+    for (int slot = halfSlot[h] + 1;; slot++) {
+      if (slot == end) {
+        slot = start;
+      }
+      if (slots[slot] >= 0) {
+        return slots[slot];
+      }
+    }
+  }
+
+  public int from(int h) {
+    return halfFrom[h];
+  }
+
+  public int to(int h) {
+    return halfFrom[h ^ 1];
+  }
+
+  public boolean isLoop(int h) {
+    return halfFrom[h] == halfFrom[h ^ 1];
+  }
+
+  public double length(int h) {
+    return edgeLength[h >>> 1];
+  }
+
+  /** Returns the angle of the first segment of {@code h} at the time the edge was created. */
+  public double angle(int h) {
+    return halfAngle[h];
+  }
+
+  /** Returns the angle of the first segment of {@code h} with its current points. */
+  public double currentAngle(int h) {
+    return halfCurrentAngle[h];
+  }
+
+  /**
+   * Returns a hash of the points of the edge of {@code h} that is the same for both of its half-edges, so half-edges
+   * with different fingerprints never have the same points.
+   */
+  public long fingerprint(int h) {
+    return edgeFingerprint[h >>> 1];
+  }
+
+  /**
+   * Returns the sum of {@code x[i] * y[i + 1] - x[i + 1] * y[i]} over the segments of {@code h}, so that adding it up
+   * around a closed ring of half-edges gives twice the signed area of the ring.
+   */
+  public double crossSum(int h) {
+    return (h & 1) == 0 ? edgeCrossSum[h >>> 1] : -edgeCrossSum[h >>> 1];
+  }
+
+  /** Returns true if {@code h} has been {@link #remove removed}, merging an edge does not count as removing it. */
+  public boolean isRemoved(int h) {
+    return halfRemoved[h];
+  }
+
+  public int numPoints(int h) {
+    return pointCount[h >>> 1];
+  }
+
+  /** Returns the x coordinate of the {@code i}-th point of {@code h}, in the direction of {@code h}. */
+  public double x(int h, int i) {
+    // look up the index first, writing out the points of a merged edge may replace the point array
+    int index = pointIndex(h, i);
+    return points[index * 2];
+  }
+
+  /** Returns the y coordinate of the {@code i}-th point of {@code h}, in the direction of {@code h}. */
+  public double y(int h, int i) {
+    int index = pointIndex(h, i);
+    return points[index * 2 + 1];
+  }
+
+  private int pointIndex(int h, int i) {
+    int e = h >>> 1;
+    assert i < pointCount[e];
+    if (joinedHead[e] >= 0) {
+      materialize(e);
+    }
+    return (h & 1) == 0 ? pointStart[e] + i : pointStart[e] + pointCount[e] - 1 - i;
+  }
+
+  /** Returns true if {@code a} and {@code b} pass through exactly the same points in the same order. */
+  public boolean samePoints(int a, int b) {
+    int n = numPoints(a);
+    if (n != numPoints(b) || fingerprint(a) != fingerprint(b)) {
+      return false;
+    }
+    for (int i = 0; i < n; i++) {
+      if (x(a, i) != x(b, i) || y(a, i) != y(b, i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Replaces the points of edge {@code e}, in its main direction, with the first {@code n} points of {@code xy}.
+   * <p>
+   * The cached {@link #angle} of the edge is left unchanged.
+   */
+  public void setPoints(int e, double[] xy, int n) {
+    own();
+    ownPoints();
+    if (joinedHead[e] >= 0 || n > pointCount[e]) {
+      pointStart[e] = allocatePoints(n);
+      joinedHead[e] = -1;
+      joinedTail[e] = -1;
+    }
+    pointCount[e] = n;
+    System.arraycopy(xy, 0, points, pointStart[e] * 2, n * 2);
+    computeFingerprint(e);
+    computeCrossSum(e);
+    computeCurrentAngles(e * 2);
+  }
+
+  /**
+   * Simplifies the first {@code count} edges in {@code edges}, given by edge id, with Douglas-Peucker and keeps both
+   * end points of each edge, so connections between edges stay intact.
+   * <p>
+   * A point is kept if it is farther than {@code tolerance} from the segment between the points kept around it, the
+   * same as {@code DouglasPeuckerSimplifier.simplify(points, tolerance, false)}, and {@code tolerance = 0} still
+   * removes collinear points. Points are compacted within the range each edge already has in the point array, using an
+   * explicit stack instead of recursion, and edges are simplified in parallel on the common fork-join pool since they
+   * never share a range. The cached {@link #angle} of each edge is left unchanged.
+   */
+  public void simplify(int[] edges, int count, double tolerance) {
+    own();
+    ownPoints();
+    // merged edges write their points to a new range of the point array, which cannot happen in parallel
+    for (int i = 0; i < count; i++) {
+      if (joinedHead[edges[i]] >= 0) {
+        materialize(edges[i]);
+      }
+    }
+    double sqTolerance = tolerance * tolerance;
+    int numChunks = (count + SIMPLIFY_CHUNK_SIZE - 1) / SIMPLIFY_CHUNK_SIZE;
+    IntStream chunks = IntStream.range(0, numChunks);
+    (numChunks > 1 ? chunks.parallel() : chunks).forEach(chunk -> {
+      int[] stack = new int[32];
+      boolean[] keep = new boolean[16];
+      for (int i = chunk * SIMPLIFY_CHUNK_SIZE; i < Math.min(count, (chunk + 1) * SIMPLIFY_CHUNK_SIZE); i++) {
+        int e = edges[i];
+        int n = pointCount[e];
+        if (keep.length < n) {
+          keep = new boolean[Math.max(n, keep.length * 2)];
+        }
+        if (stack.length < n * 2) {
+          stack = new int[Math.max(n * 2, stack.length * 2)];
+        }
+        pointCount[e] = simplify(points, pointStart[e], n, sqTolerance, stack, keep);
+        computeFingerprint(e);
+        computeCrossSum(e);
+        computeCurrentAngles(e * 2);
+      }
+    });
+  }
+
+  /**
+   * Compacts the {@code n} points starting at point {@code start} of {@code xy} to the ones Douglas-Peucker keeps and
+   * returns how many there are.
+   */
+  private static int simplify(double[] xy, int start, int n, double sqTolerance, int[] stack, boolean[] keep) {
+    if (n < 3) {
+      return n;
+    }
+    Arrays.fill(keep, 0, n, false);
+    keep[0] = true;
+    keep[n - 1] = true;
+    int size = 0;
+    stack[size++] = 0;
+    stack[size++] = n - 1;
+    while (size > 0) {
+      int j = stack[--size];
+      int i = stack[--size];
+      double x1 = xy[(start + i) * 2];
+      double y1 = xy[(start + i) * 2 + 1];
+      double x2 = xy[(start + j) * 2];
+      double y2 = xy[(start + j) * 2 + 1];
+      int maxIndex = i;
+      double maxSqDistance = -1;
+      for (int k = i + 1; k < j; k++) {
+        double sqDistance = sqSegmentDistance(xy[(start + k) * 2], xy[(start + k) * 2 + 1], x1, y1, x2, y2);
+        if (sqDistance > maxSqDistance) {
+          maxIndex = k;
+          maxSqDistance = sqDistance;
+        }
+      }
+      if (maxSqDistance > sqTolerance) {
+        keep[maxIndex] = true;
+        if (maxIndex - i > 1) {
+          stack[size++] = i;
+          stack[size++] = maxIndex;
+        }
+        if (j - maxIndex > 1) {
+          stack[size++] = maxIndex;
+          stack[size++] = j;
+        }
+      }
+    }
+    int kept = 0;
+    for (int k = 0; k < n; k++) {
+      if (keep[k]) {
+        xy[(start + kept) * 2] = xy[(start + k) * 2];
+        xy[(start + kept) * 2 + 1] = xy[(start + k) * 2 + 1];
+        kept++;
+      }
+    }
+    return kept;
+  }
+
+  private static double sqSegmentDistance(double px, double py, double x1, double y1, double x2, double y2) {
+    double x = x1;
+    double y = y1;
+    double dx = x2 - x;
+    double dy = y2 - y;
+    if (dx != 0 || dy != 0) {
+      double t = ((px - x) * dx + (py - y) * dy) / (dx * dx + dy * dy);
+      if (t > 1) {
+        x = x2;
+        y = y2;
+      } else if (t > 0) {
+        x += dx * t;
+        y += dy * t;
+      }
+    }
+    dx = px - x;
+    dy = py - y;
+    return dx * dx + dy * dy;
+  }
+
+  /** Returns true if the current points of {@code h} no longer form a line. */
+  public boolean isCollapsed(int h) {
+    int n = numPoints(h);
+    return n < 2 || (n == 2 && x(h, 0) == x(h, 1) && y(h, 0) == y(h, 1));
+  }
+
+  /**
+   * Adds {@code h} to the half-edges leaving its node, unless an edge with the same attributes and points is already
+   * there.
+   */
+  public void attach(int h) {
+    own();
+    if (!hasDuplicate(h, -1)) {
+      insert(halfFrom[h], h);
+    }
+  }
+
+  /** Removes {@code h} from the half-edges leaving its node, if it is there. */
+  public void detach(int h) {
+    own();
+    int slot = halfSlot[h];
+    if (slot >= 0) {
+      int node = halfFrom[h];
+      slots[slot] = -1;
+      halfSlot[h] = -1;
+      degree[node]--;
+      if (slotUsed[node] - degree[node] > degree[node]) {
+        compact(node);
+      }
+    }
+  }
+
+  /** Detaches both halves of the edge of {@code h} from their nodes and marks {@code h} as removed. */
+  public void remove(int h) {
+    own();
+    if (!halfRemoved[h]) {
+      detach(h);
+      detach(twin(h));
+      halfRemoved[h] = true;
+    }
+  }
+
+  /**
+   * Removes every attached edge with the same attributes and points, in either direction, as an edge met before it,
+   * visiting nodes in order and the half-edges at each node by position, and returns how many edges were removed.
+   * <p>
+   * Edges are bucketed by {@link #fingerprint} in an open-addressing table, so each edge is only compared point by
+   * point with earlier edges that have the same fingerprint, and the pass takes linear time however many edges meet
+   * at a node.
+   */
+  public int removeDuplicates() {
+    int capacity = Integer.highestOneBit(Math.max(8, numEdges) * 2 - 1) * 2;
+    int mask = capacity - 1;
+    // first half-edge met with each fingerprint plus one, and the next one met with the same fingerprint plus one
+    int[] table = new int[capacity];
+    int[] nextSame = new int[numEdges];
+    boolean[] seen = new boolean[numEdges];
+    int[] duplicates = new int[16];
+    int numDuplicates = 0;
+    for (int node = 0; node < numNodes; node++) {
+      for (int i = 0; i < degree(node); i++) {
+        int h = halfAt(node, i);
+        int e = edge(h);
+        if (seen[e]) {
+          continue;
+        }
+        seen[e] = true;
+        long fingerprint = edgeFingerprint[e];
+        int slot = (int) fingerprint & mask;
+        while (table[slot] != 0 && edgeFingerprint[edge(table[slot] - 1)] != fingerprint) {
+          slot = (slot + 1) & mask;
+        }
+        boolean duplicate = false;
+        int last = -1;
+        for (int entry = table[slot]; entry != 0 && !duplicate; entry = nextSame[edge(entry - 1)]) {
+          last = entry - 1;
+          duplicate = isDuplicate(last, h);
+        }
+        if (duplicate) {
+          if (numDuplicates == duplicates.length) {
+            duplicates = Arrays.copyOf(duplicates, numDuplicates * 2);
+          }
+          duplicates[numDuplicates++] = h;
+        } else if (last < 0) {
+          table[slot] = h + 1;
+        } else {
+          nextSame[edge(last)] = h + 1;
+        }
+      }
+    }
+    for (int i = 0; i < numDuplicates; i++) {
+      remove(duplicates[i]);
+    }
+    return numDuplicates;
+  }
+
+  private boolean isDuplicate(int kept, int h) {
+    if (!attributes.same(edge(kept), edge(h))) {
+      return false;
+    }
+    if (halfFrom[kept] == halfFrom[h] && halfFrom[twin(kept)] == halfFrom[twin(h)] && samePoints(kept, h)) {
+      return true;
+    }
+    return halfFrom[kept] == halfFrom[twin(h)] && halfFrom[twin(kept)] == halfFrom[h] && samePoints(kept, twin(h));
+  }
+
+  /**
+   * Joins two half-edges {@code h1} and {@code h2} that leave {@code node} into one new edge between their far ends,
+   * and returns the main half-edge of the new edge.
+   */
+  public int merge(int node, int h1, int h2) {
+    own();
+    // attempt to preserve segment directions from the original line
+    // when: A << N -- B then output C reversed from B to A
+    // when: A >> N -- B then output C from A to B
+    int a = isMain(h1) ? h2 : h1;
+    int b = isMain(h1) ? h1 : h2;
+    assert halfFrom[a] == node && halfFrom[b] == node;
+    detach(a);
+    detach(b);
+    int fromNode = to(a);
+    int toNode = to(b);
+    int c = newEdge(fromNode, toNode, numPoints(a) + numPoints(b) - 1, length(a) + length(b));
+    // points of c are the reverse of a followed by b without the shared node, written out once they are read
+    joinedHead[edge(c)] = twin(a);
+    joinedTail[edge(c)] = b;
+    // the first segment in each direction comes from the part on that side, unless that part is a single point
+    halfAngle[c] = halfCurrentAngle[c] = halfCurrentAngle[numPoints(a) > 1 ? twin(a) : b];
+    halfAngle[twin(c)] = halfCurrentAngle[twin(c)] = halfCurrentAngle[numPoints(b) > 1 ? twin(b) : a];
+    // the new edge has exactly the segments of both parts
+    edgeFingerprint[edge(c)] = edgeFingerprint[edge(a)] + edgeFingerprint[edge(b)];
+    edgeCrossSum[edge(c)] = crossSum(twin(a)) + crossSum(b);
+    attributes.merged(edge(c), edge(a), edge(b));
+    if (fromNode == toNode) {
+      detach(twin(b));
+      replace(twin(a), c);
+    } else {
+      replace(twin(a), c);
+      replace(twin(b), twin(c));
+    }
+    return c;
+  }
+
+  /** Returns true if another half-edge than {@code ignore} at the node of {@code h} is a duplicate of {@code h}. */
+  private boolean hasDuplicate(int h, int ignore) {
+    int node = halfFrom[h];
+    long fingerprint = edgeFingerprint[h >>> 1];
+    int start = slotStart[node];
+    int end = start + slotUsed[node];
+    for (int slot = start; slot < end; slot++) {
+      int other = slots[slot];
+      if (other >= 0 && other != ignore && edgeFingerprint[other >>> 1] == fingerprint &&
+        attributes.same(other >>> 1, h >>> 1) && samePoints(other, h)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Detaches {@code old} and attaches {@code h} that leaves the same node, reusing the slot of {@code old} when that
+   * keeps the half-edges of the node in order.
+   */
+  private void replace(int old, int h) {
+    int slot = halfSlot[old];
+    if (slot < 0) {
+      attach(h);
+    } else if (hasDuplicate(h, old)) {
+      detach(old);
+    } else if (angleOrdered ? fitsAt(halfFrom[h], slot, halfAngle[h]) : isLastAt(halfFrom[h], slot)) {
+      slots[slot] = h;
+      halfSlot[h] = slot;
+      halfSlot[old] = -1;
+    } else {
+      detach(old);
+      insert(halfFrom[h], h);
+    }
+  }
+
+  /** Returns true if a half-edge with {@code angle} can go in {@code slot} the way a stable sort would put it. */
+  private boolean fitsAt(int node, int slot, double angle) {
+    int start = slotStart[node];
+    int end = start + slotUsed[node];
+    for (int before = slot - 1; before >= start; before--) {
+      if (slots[before] >= 0) {
+        if (Double.compare(halfAngle[slots[before]], angle) > 0) {
+          return false;
+        }
+        break;
+      }
+    }
+    for (int after = slot + 1; after < end; after++) {
+      if (slots[after] >= 0) {
+        return Double.compare(halfAngle[slots[after]], angle) > 0;
+      }
+    }
+    return true;
+  }
+
+  private boolean isLastAt(int node, int slot) {
+    int end = slotStart[node] + slotUsed[node];
+    for (int after = slot + 1; after < end; after++) {
+      if (slots[after] >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void insert(int node, int h) {
+    if (slotUsed[node] == slotCapacity[node]) {
+      compact(node);
+      if (slotUsed[node] == slotCapacity[node]) {
+        grow(node);
+      }
+    }
+    int start = slotStart[node];
+    int position = slotUsed[node];
+    if (angleOrdered && position > 0) {
+      compact(node);
+      position = slotUsed[node];
+      // binary search for the first half-edge with a larger angle, so equal angles keep insertion order
+      double angle = halfAngle[h];
+      int low = 0;
+      int high = position;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (Double.compare(halfAngle[slots[start + mid]], angle) > 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      for (int i = position; i > low; i--) {
+        int moved = slots[start + i - 1];
+        slots[start + i] = moved;
+        halfSlot[moved] = start + i;
+      }
+      position = low;
+    }
+    slots[start + position] = h;
+    halfSlot[h] = start + position;
+    slotUsed[node]++;
+    degree[node]++;
+  }
+
+  /** Sorts the half-edges leaving every node by angle with an insertion sort, since most nodes have few of them. */
+  private void sortByAngle() {
+    own();
+    for (int node = 0; node < numNodes; node++) {
+      compact(node);
+      int start = slotStart[node];
+      int end = start + slotUsed[node];
+      for (int i = start + 1; i < end; i++) {
+        int h = slots[i];
+        int j = i;
+        while (j > start && Double.compare(halfAngle[slots[j - 1]], halfAngle[h]) > 0) {
+          slots[j] = slots[j - 1];
+          halfSlot[slots[j]] = j;
+          j--;
+        }
+        slots[j] = h;
+        halfSlot[h] = j;
+      }
+    }
+  }
+
+  /** Moves the live half-edges of {@code node} to the front of its slots, dropping tombstones. */
+  private void compact(int node) {
+    own();
+    int start = slotStart[node];
+    int end = start + slotUsed[node];
+    int write = start;
+    for (int read = start; read < end; read++) {
+      int h = slots[read];
+      if (h >= 0) {
+        slots[write] = h;
+        halfSlot[h] = write;
+        write++;
+      }
+    }
+    slotUsed[node] = write - start;
+  }
+
+  private int newEdge(int from, int to, int n, double length) {
+    if (numEdges == edgeLength.length) {
+      int capacity = numEdges * 2;
+      edgeLength = Arrays.copyOf(edgeLength, capacity);
+      pointStart = Arrays.copyOf(pointStart, capacity);
+      pointCount = Arrays.copyOf(pointCount, capacity);
+      joinedHead = Arrays.copyOf(joinedHead, capacity);
+      joinedTail = Arrays.copyOf(joinedTail, capacity);
+      edgeFingerprint = Arrays.copyOf(edgeFingerprint, capacity);
+      edgeCrossSum = Arrays.copyOf(edgeCrossSum, capacity);
+      halfFrom = Arrays.copyOf(halfFrom, capacity * 2);
+      halfSlot = Arrays.copyOf(halfSlot, capacity * 2);
+      halfAngle = Arrays.copyOf(halfAngle, capacity * 2);
+      halfCurrentAngle = Arrays.copyOf(halfCurrentAngle, capacity * 2);
+      halfRemoved = Arrays.copyOf(halfRemoved, capacity * 2);
+    }
+    int e = numEdges++;
+    edgeLength[e] = length;
+    pointStart[e] = -1;
+    pointCount[e] = n;
+    joinedHead[e] = -1;
+    joinedTail[e] = -1;
+    halfFrom[e * 2] = from;
+    halfFrom[e * 2 + 1] = to;
+    halfSlot[e * 2] = -1;
+    halfSlot[e * 2 + 1] = -1;
+    return e * 2;
+  }
+
+  private int allocatePoints(int n) {
+    ownPoints();
+    if ((numPoints + n) * 2 > points.length) {
+      points = Arrays.copyOf(points, Math.max(points.length * 2, (numPoints + n) * 2));
+    }
+    int start = numPoints;
+    numPoints += n;
+    return start;
+  }
+
+  private void computeAngles(int h) {
+    computeCurrentAngles(h);
+    halfAngle[h] = halfCurrentAngle[h];
+    halfAngle[h ^ 1] = halfCurrentAngle[h ^ 1];
+  }
+
+  private void computeCurrentAngles(int h) {
+    assert numPoints(h) >= 2;
+    halfCurrentAngle[h] = Math.atan2(y(h, 1) - y(h, 0), x(h, 1) - x(h, 0));
+    halfCurrentAngle[h ^ 1] = Math.atan2(y(h ^ 1, 1) - y(h ^ 1, 0), x(h ^ 1, 1) - x(h ^ 1, 0));
+  }
+
+  /**
+   * Writes the points of merged edge {@code e} into the flat point array by walking the half-edges it was joined from,
+   * using an explicit stack since chains of merges can be arbitrarily deep.
+   */
+  private void materialize(int e) {
+    own();
+    int start = allocatePoints(pointCount[e]);
+    int offset = start * 2;
+    int[] stack = new int[16];
+    int size = 0;
+    // each entry is a half-edge shifted left by one, with the low bit set when its first point was already written
+    stack[size++] = e << 2;
+    while (size > 0) {
+      int entry = stack[--size];
+      int h = entry >>> 1;
+      boolean skipFirst = (entry & 1) != 0;
+      int edge = h >>> 1;
+      if (joinedHead[edge] >= 0) {
+        int first = isMain(h) ? joinedHead[edge] : twin(joinedTail[edge]);
+        int second = isMain(h) ? joinedTail[edge] : twin(joinedHead[edge]);
+        if (size + 2 > stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        // push the second part first so the first part is written first
+        stack[size++] = (second << 1) | 1;
+        stack[size++] = (first << 1) | (skipFirst ? 1 : 0);
+      } else {
+        int n = pointCount[edge];
+        int base = pointStart[edge];
+        for (int i = skipFirst ? 1 : 0; i < n; i++) {
+          int index = isMain(h) ? base + i : base + n - 1 - i;
+          points[offset++] = points[index * 2];
+          points[offset++] = points[index * 2 + 1];
+        }
+      }
+    }
+    assert offset == (start + pointCount[e]) * 2;
+    pointStart[e] = start;
+    joinedHead[e] = -1;
+    joinedTail[e] = -1;
+  }
+
+  private void computeFingerprint(int e) {
+    long fingerprint = 0;
+    int h = e * 2;
+    for (int i = 1; i < pointCount[e]; i++) {
+      fingerprint += segmentHash(x(h, i - 1), y(h, i - 1), x(h, i), y(h, i));
+    }
+    edgeFingerprint[e] = fingerprint;
+  }
+
+  private void computeCrossSum(int e) {
+    double sum = 0;
+    int h = e * 2;
+    for (int i = 1; i < pointCount[e]; i++) {
+      sum += x(h, i - 1) * y(h, i) - x(h, i) * y(h, i - 1);
+    }
+    edgeCrossSum[e] = sum;
+  }
+
+  private static long segmentHash(double x1, double y1, double x2, double y2) {
+    long p = Hashing.point(x1, y1);
+    long q = Hashing.point(x2, y2);
+    return Hashing.mix(Math.min(p, q) * 0x9E3779B97F4A7C15L + Math.max(p, q));
+  }
+
+  private void grow(int node) {
+    compact(node);
+    int capacity = Math.max(4, slotCapacity[node] * 2);
+    if (numSlots + capacity > slots.length) {
+      slots = Arrays.copyOf(slots, Math.max(slots.length * 2, numSlots + capacity));
+    }
+    for (int i = 0; i < slotUsed[node]; i++) {
+      int h = slots[slotStart[node] + i];
+      slots[numSlots + i] = h;
+      halfSlot[h] = numSlots + i;
+    }
+    slotStart[node] = numSlots;
+    slotCapacity[node] = capacity;
+    numSlots += capacity;
+  }
+
+  /** Returns a description of node {@code node} and its half-edges for debugging. */
+  public String nodeToString(int node) {
+    StringBuilder result = new StringBuilder("Node{" + node + ": [");
+    for (int i = 0; i < degree(node); i++) {
+      result.append(i == 0 ? "" : ", ").append(halfToString(halfAt(node, i)));
+    }
+    return result.append("]}").toString();
+  }
+
+  /** Returns a description of half-edge {@code h} for debugging. */
+  public String halfToString(int h) {
+    int last = numPoints(h) - 1;
+    return "Edge{" + from(h) + "->" + to(h) + (isMain(h) ? "" : "(R)") + ": [(" + x(h, 0) + ", " + y(h, 0) +
+      ").." + "(" + x(h, last) + ", " + y(h, last) + ")], length=" + length(h) + ", angle=" + angle(h) + '}';
+  }
+}
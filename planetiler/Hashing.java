@@ -0,0 +1,25 @@
+/**
+ * The hash functions shared by the open-addressing tables and the fingerprints of the graph classes.
+ */
+public final class Hashing {
+
+  private Hashing() {}
+
+  /**
+   * Scrambles {@code bits} so that values that differ in a few bits hash far apart, with the finalizer of MurmurHash3.
+   */
+  public static long mix(long bits) {
+    bits ^= bits >>> 33;
+    bits *= 0xff51afd7ed558ccdL;
+    bits ^= bits >>> 33;
+    bits *= 0xc4ceb9fe1a85ec53L;
+    bits ^= bits >>> 33;
+    return bits;
+  }
+
+  /** Returns a hash of the point {@code (x, y)} that is the same for {@code 0.0} and {@code -0.0}. */
+  public static long point(double x, double y) {
+    // adding 0.0 turns -0.0 into 0.0 so both hash the same way
+    return mix(Double.doubleToLongBits(x + 0.0) * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(y + 0.0));
+  }
+}
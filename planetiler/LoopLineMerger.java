@@ -0,0 +1,704 @@
+import com.onthegomap.planetiler.geo.GeoUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateXY;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryComponentFilter;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.operation.linemerge.LineMerger;
+
+/**
+ * A utility class for merging, simplifying, and connecting linestrings and
+ * removing small loops.
+ * <p>
+ * Compared to JTS {@link LineMerger} which only connects when 2 lines meet at a
+ * single point, this utility:
+ * <ul>
+ * <li>snap-rounds points to a grid
+ * <li>splits lines that intersect at a midpoint, if {@code splitAtIntersections}
+ * is set
+ * <li>breaks small loops less than {@code loopMinLength} so only the shortest
+ * path connects both endpoints of the loop
+ * <li>removes short "hair" edges less than {@code stubMinLength} coming off the
+ * side of longer segments
+ * <li>keeps only one of the edges that run in parallel with both endpoints
+ * closer than {@code parallelMaxDistance}
+ * <li>simplifies linestrings, without touching the points shared between
+ * multiple lines to avoid breaking connections
+ * <li>removes any duplicate edges
+ * <li>at any remaining 3+ way intersections, connect pairs of edges that form
+ * the straightest path through the node
+ * <li>remove any remaining edges shorter than {@code minLength}
+ * </ul>
+ *
+ * @see <a href=
+ *      "https://oliverwipfli.ch/improving-linestring-merging-in-planetiler-2024-10-30/">Improving
+ *      Linestring
+ *      Merging in Planetiler</a>
+ */
+public class LoopLineMerger {
+  public record LineStringWithGroupId(LineString line, int groupId) {
+  }
+
+
+  // processing steps, each only rerun when an input or setting it depends on changes
+  private static final int NODED = 0;
+  private static final int PARALLEL_REMOVED = 1;
+  private static final int SIMPLIFIED = 2;
+  private static final int SHORT_REMOVED = 3;
+  private static final int LOOPS_REMOVED = 4;
+  private static final int NUM_STEPS = 5;
+  // edges handled by one task when a step runs per connected component, enough to outweigh splitting the graph
+  private static final int COMPONENT_CHUNK_EDGES = 1024;
+
+  private record Snapshot(HalfEdgeGraph graph, EdgeColumns columns) {
+  }
+
+  private final List<LineStringWithGroupId> input = new ArrayList<>();
+  private final Snapshot[] steps = new Snapshot[NUM_STEPS];
+  private int firstStaleStep = NODED;
+  private boolean cacheSteps = false;
+  private HalfEdgeGraph graph;
+  private EdgeColumns columns = new EdgeColumns(edge -> graph.length(edge * 2));
+  private final int groupIds = columns.addInt(EdgeColumns.Merge.EQUAL);
+  private PrecisionModel precisionModel = new PrecisionModel(GeoUtils.TILE_PRECISION);
+  private GeometryFactory factory = new GeometryFactory(precisionModel);
+  private double minLength = 0.0;
+  private double loopMinLength = 0.0;
+  private double stubMinLength = 0.0;
+  private double tolerance = -1.0;
+  private boolean mergeStrokes = false;
+  private double parallelMaxDistance = 0.0;
+  private boolean splitAtIntersections = false;
+  private Path graphFile = null;
+
+  /**
+   * Sets the precision model used to snap points to a grid.
+   * <p>
+   * Use {@link PrecisionModel#FLOATING} to not snap points at all, or
+   * {@code new PrecisionModel(4)} to snap to a 0.25px
+   * grid.
+   */
+  public LoopLineMerger setPrecisionModel(PrecisionModel precisionModel) {
+    this.precisionModel = precisionModel;
+    factory = new GeometryFactory(precisionModel);
+    invalidate(NODED);
+    return this;
+  }
+
+  /**
+   * Sets the minimum length for retaining linestrings in the resulting geometry.
+   * <p>
+   * Linestrings shorter than this value will be removed. {@code minLength <= 0}
+   * disables min length removal.
+   */
+  public LoopLineMerger setMinLength(double minLength) {
+    if (minLength != this.minLength) {
+      this.minLength = minLength;
+      invalidate(SHORT_REMOVED);
+    }
+    return this;
+  }
+
+  /**
+   * Sets the minimum loop length for breaking loops in the merged geometry.
+   * <p>
+   * Loops that are shorter than loopMinLength are broken up so that only the
+   * shortest path between loop endpoints
+   * remains. This should be {@code >= minLength}. {@code loopMinLength <= 0}
+   * disables loop removal.
+   */
+  public LoopLineMerger setLoopMinLength(double loopMinLength) {
+    if (loopMinLength != this.loopMinLength) {
+      this.loopMinLength = loopMinLength;
+      invalidate(LOOPS_REMOVED);
+    }
+    return this;
+  }
+
+  /**
+   * Sets the minimum length of stubs to be removed during processing.
+   * <p>
+   * Stubs are short "hair" line segments that hang off of a longer linestring
+   * without connecting to anything else.
+   * {@code stubMinLength <= 0} disables stub removal.
+   */
+  public LoopLineMerger setStubMinLength(double stubMinLength) {
+    if (stubMinLength != this.stubMinLength) {
+      this.stubMinLength = stubMinLength;
+      invalidate(LOOPS_REMOVED);
+    }
+    return this;
+  }
+
+  /**
+   * Sets the tolerance for simplifying linestrings during processing. Lines are
+   * simplified between endpoints to avoid
+   * breaking intersections.
+   * <p>
+   * {@code tolerance = 0} still removes collinear points, so you need to set
+   * {@code tolerance <= 0} to disable
+   * simplification.
+   */
+  public LoopLineMerger setTolerance(double tolerance) {
+    if (tolerance != this.tolerance) {
+      this.tolerance = tolerance;
+      invalidate(SIMPLIFIED);
+    }
+    return this;
+  }
+
+  /**
+   * Enables or disables stroke merging. Stroke merging connects the straightest
+   * pairs of linestrings at junctions with
+   * 3 or more attached linestrings based on the angle between them.
+   */
+  public LoopLineMerger setMergeStrokes(boolean mergeStrokes) {
+    if (mergeStrokes != this.mergeStrokes) {
+      this.mergeStrokes = mergeStrokes;
+      invalidate(LOOPS_REMOVED);
+    }
+    return this;
+  }
+
+  /**
+   * Sets the maximum distance between the endpoints of edges that run in parallel, like both sides of a dual
+   * carriageway.
+   * <p>
+   * When both endpoints of two edges with the same group id are closer than this value, only the first one is kept.
+   * {@code parallelMaxDistance <= 0} disables parallel edge removal.
+   */
+  public LoopLineMerger setParallelMaxDistance(double parallelMaxDistance) {
+    if (parallelMaxDistance != this.parallelMaxDistance) {
+      this.parallelMaxDistance = parallelMaxDistance;
+      invalidate(PARALLEL_REMOVED);
+    }
+    return this;
+  }
+
+  /**
+   * Enables or disables splitting lines where they cross or touch in the middle of a segment, at the crossing snapped
+   * to the precision model. Otherwise lines are only split at the points they share.
+   */
+  public LoopLineMerger setSplitAtIntersections(boolean splitAtIntersections) {
+    if (splitAtIntersections != this.splitAtIntersections) {
+      this.splitAtIntersections = splitAtIntersections;
+      invalidate(NODED);
+    }
+    return this;
+  }
+
+  /**
+   * Keeps the graph after every processing step instead of only the noded graph, so that a later call only redoes the
+   * steps from the first one whose settings changed. This needs memory for a copy of every changed part of the graph
+   * per step, so it is off by default and then every step after noding runs again when any setting changed.
+   */
+  public LoopLineMerger setCacheSteps(boolean cacheSteps) {
+    if (cacheSteps != this.cacheSteps) {
+      this.cacheSteps = cacheSteps;
+      Arrays.fill(steps, NODED + 1, NUM_STEPS, null);
+      invalidate(NODED + 1);
+    }
+    return this;
+  }
+
+  /**
+   * Stores the noded graph in {@code graphFile}, or reads it from there instead of noding the input if the file
+   * exists, so that later runs over the same input only pay for reading the file. The file starts with the number of
+   * input lines, a fingerprint of their points and group ids, the precision model and whether lines are split at
+   * intersections, and is built again when any of them changed. {@code null} turns this off.
+   * <p>
+   * The file is only a cache of the noded graph: it is read back into memory whole, so the merger needs as much memory
+   * as without it.
+   */
+  public LoopLineMerger setGraphFile(Path graphFile) {
+    this.graphFile = graphFile;
+    invalidate(NODED);
+    return this;
+  }
+
+  /**
+   * Adds a geometry to the merger. Only linestrings from the input geometry are
+   * considered.
+   */
+  public LoopLineMerger add(LineStringWithGroupId lineWithGroupId) {
+    input.add(lineWithGroupId);
+    invalidate(NODED);
+    return this;
+  }
+
+  private void invalidate(int step) {
+    firstStaleStep = Math.min(firstStaleStep, step);
+  }
+
+  private void degreeTwoMerge() {
+    for (int node = 0; node < graph.numNodes(); node++) {
+      degreeTwoMerge(node);
+    }
+    assert valid();
+  }
+
+  private boolean valid() {
+    // when run from a unit test, ensure some basic conditions always hold...
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        assert graph.isLoop(edge) || graph.contains(graph.to(edge), HalfEdgeGraph.twin(edge)) :
+            graph.nodeToString(graph.to(edge)) + " does not contain " + graph.halfToString(HalfEdgeGraph.twin(edge));
+        for (int j = 0; j < graph.degree(node); j++) {
+          int other = graph.halfAt(node, j);
+          if (edge != other) {
+            assert edge != HalfEdgeGraph.twin(other) : "node contained edge and its reverse " +
+                graph.nodeToString(node);
+            assert !graph.samePoints(edge, other) : "duplicate edges " + graph.halfToString(edge) + " and " +
+                graph.halfToString(other);
+          }
+        }
+      }
+      assert graph.degree(node) != 2 || graph.isLoop(graph.halfAt(node, 0)) ||
+          graph.isLoop(graph.halfAt(node, 1)) : "degree 2 node found " + graph.nodeToString(node);
+    }
+    return true;
+  }
+
+  private int degreeTwoMerge(int node) {
+    if (graph.degree(node) == 2) {
+      int a = graph.halfAt(node, 0);
+      int b = graph.halfAt(node, 1);
+      // if one side is a loop, degree is actually > 2
+      if (!graph.isLoop(a) && !graph.isLoop(b) && groupId(a) == groupId(b)) {
+        return graph.merge(node, a, b);
+      }
+    }
+    return -1;
+  }
+
+  private int groupId(int edge) {
+    return columns.getInt(groupIds, HalfEdgeGraph.edge(edge));
+  }
+
+  private void strokeMerge() {
+    StrokeIndex.merge(graph, (a, b) -> groupId(a) == groupId(b));
+  }
+
+  private int[] edges(int node) {
+    int[] result = new int[graph.degree(node)];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = graph.halfAt(node, i);
+    }
+    return result;
+  }
+
+  private void breakLoops() {
+    NodeSearch search = new NodeSearch(graph);
+    for (int node = 0; node < graph.numNodes(); node++) {
+      if (graph.degree(node) <= 1) {
+        continue;
+      }
+      for (var current : edges(node)) {
+        record HasLoop(int edge, double distance) {
+        }
+        List<HasLoop> loops = new ArrayList<>();
+        if (!graph.contains(node, current)) {
+          continue;
+        }
+        // one search from the far end of current finds the loop back to node through every other edge
+        search.run(graph.to(current), node, loopMinLength);
+        for (int i = 0; i < graph.degree(node); i++) {
+          int other = graph.halfAt(node, i);
+          double distance = graph.length(other) + search.distance(graph.to(other));
+          if (distance <= loopMinLength) {
+            loops.add(new HasLoop(other, distance));
+          }
+        }
+        if (loops.size() > 1) {
+          loops.sort(Comparator.comparingInt((HasLoop l) -> groupId(l.edge))
+              .thenComparingDouble((HasLoop l) -> -l.distance));
+          Collections.reverse(loops);
+          for (var loop : loops.subList(1, loops.size())) {
+            graph.remove(loop.edge);
+          }
+        }
+      }
+    }
+  }
+
+  private void removeParallelEdges() {
+    NodeGrid grid = new NodeGrid(graph, parallelMaxDistance);
+    List<Integer> toRemove = new ArrayList<>();
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (var edge : edges(node)) {
+        if (!HalfEdgeGraph.isMain(edge) || !graph.contains(node, edge)) {
+          continue;
+        }
+        toRemove.clear();
+        // edges running either way between nodes near both ends of this one
+        grid.forEachNear(graph.nodeX(node), graph.nodeY(node), parallelMaxDistance, near -> {
+          for (int i = 0; i < graph.degree(near); i++) {
+            int other = graph.halfAt(near, i);
+            if (HalfEdgeGraph.edge(other) != HalfEdgeGraph.edge(edge) && groupId(other) == groupId(edge) &&
+                graph.distance(graph.to(other), graph.to(edge)) < parallelMaxDistance) {
+              toRemove.add(other);
+            }
+          }
+        });
+        for (var other : toRemove) {
+          graph.remove(other);
+        }
+      }
+    }
+  }
+
+  private void removeShortStubEdges() {
+    // ties go to the lowest half-edge, so the order does not depend on what else is in the graph
+    PriorityQueue<Integer> toCheck = new PriorityQueue<>(
+      Comparator.<Integer>comparingDouble(graph::length).thenComparingInt(h -> h));
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (isShortStubEdge(edge)) {
+          toCheck.offer(edge);
+        }
+      }
+    }
+    while (!toCheck.isEmpty()) {
+      int edge = toCheck.poll();
+      if (graph.isRemoved(edge)) {
+        continue;
+      }
+      if (isShortStubEdge(edge)) {
+        graph.remove(edge);
+      }
+      int from = graph.from(edge);
+      int to = graph.to(edge);
+      int merged = degreeTwoMerge(from);
+      if (merged >= 0) {
+        toCheck.offer(merged);
+      }
+      if (graph.degree(from) == 1) {
+        var other = graph.halfAt(from, 0);
+        if (isShortStubEdge(other)) {
+          toCheck.offer(other);
+        }
+      }
+      if (from != to) {
+        merged = degreeTwoMerge(to);
+        if (merged >= 0) {
+          toCheck.offer(merged);
+        }
+        if (graph.degree(to) == 1) {
+          var other = graph.halfAt(to, 0);
+          if (isShortStubEdge(other)) {
+            toCheck.offer(other);
+          }
+        }
+      }
+    }
+  }
+
+  private boolean isShortStubEdge(int edge) {
+    return edge >= 0 && !graph.isRemoved(edge) && graph.length(edge) < stubMinLength &&
+        (graph.degree(graph.from(edge)) == 1 || graph.degree(graph.to(edge)) == 1 || graph.isLoop(edge));
+  }
+
+  private void removeShortEdges() {
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (var edge : edges(node)) {
+        if (graph.length(edge) < minLength) {
+          graph.remove(edge);
+        }
+      }
+    }
+  }
+
+  private void simplify() {
+    int[] edges = new int[graph.numHalfEdges() / 2];
+    int count = 0;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          edges[count++] = HalfEdgeGraph.edge(edge);
+        }
+      }
+    }
+    graph.simplify(edges, count, tolerance);
+    for (int i = 0; i < count; i++) {
+      if (graph.isCollapsed(edges[i] * 2)) {
+        graph.remove(edges[i] * 2);
+      }
+    }
+  }
+
+  private boolean isEnabled(int step) {
+    return switch (step) {
+      case PARALLEL_REMOVED -> parallelMaxDistance > 0.0;
+      case SIMPLIFIED -> tolerance >= 0.0;
+      case SHORT_REMOVED -> minLength > 0;
+      case LOOPS_REMOVED -> mergeStrokes;
+      default -> true;
+    };
+  }
+
+  private void runStep(int step) {
+    switch (step) {
+      case PARALLEL_REMOVED -> {
+        removeParallelEdges();
+        degreeTwoMerge();
+      }
+      case SIMPLIFIED -> {
+        simplify();
+        graph.removeDuplicates();
+        degreeTwoMerge();
+      }
+      case SHORT_REMOVED -> removeShortEdges();
+      case LOOPS_REMOVED -> {
+        var faces = new FaceIndex(graph);
+        for (int face = 0; face < faces.numFaces(); face++) {
+          if (faces.isBounded(face) && (loopMinLength <= 0 || faces.perimeter(face) <= loopMinLength)) {
+            graph.remove(faces.half(face, 0));
+          }
+        }
+        degreeTwoMerge();
+
+        if (stubMinLength > 0.0) {
+          removeShortStubEdges();
+          // removeShortStubEdges does degreeTwoMerge internally
+        }
+      }
+      default -> throw new IllegalArgumentException("unknown step " + step);
+    }
+  }
+
+  /**
+   * Runs {@code step} on every group of connected components from {@link HalfEdgeGraph#components} in a merger of its
+   * own, in parallel on the common fork-join pool, and joins the results back into one graph with the same node ids.
+   * <p>
+   * The step must only change edges connected to the ones it looks at. Since the groups only depend on the graph, the
+   * result is the same however many threads there are.
+   */
+  private void runPerComponent(Consumer<LoopLineMerger> step) {
+    int[] component = new int[graph.numNodes()];
+    int numGroups = graph.components(component, COMPONENT_CHUNK_EDGES);
+    if (numGroups <= 1) {
+      step.accept(this);
+      return;
+    }
+    LoopLineMerger[] parts = new LoopLineMerger[numGroups];
+    HalfEdgeGraph.Attributes[] attributes = new HalfEdgeGraph.Attributes[numGroups];
+    for (int group = 0; group < numGroups; group++) {
+      parts[group] = part();
+      attributes[group] = parts[group].columns;
+    }
+    HalfEdgeGraph[] graphs = graph.split(component, numGroups, attributes);
+    for (int group = 0; group < numGroups; group++) {
+      parts[group].graph = graphs[group];
+    }
+    Arrays.stream(parts).parallel().forEach(step);
+    for (int group = 0; group < numGroups; group++) {
+      graphs[group] = parts[group].graph;
+    }
+    columns.clear(graph.numHalfEdges() / 2);
+    graph = graph.join(graphs, component, columns);
+  }
+
+  /** Returns a merger with the same settings as this one to run a step on part of the graph. */
+  private LoopLineMerger part() {
+    LoopLineMerger part = new LoopLineMerger();
+    part.precisionModel = precisionModel;
+    part.factory = factory;
+    part.minLength = minLength;
+    part.loopMinLength = loopMinLength;
+    part.stubMinLength = stubMinLength;
+    part.tolerance = tolerance;
+    part.mergeStrokes = mergeStrokes;
+    part.parallelMaxDistance = parallelMaxDistance;
+    part.splitAtIntersections = splitAtIntersections;
+    return part;
+  }
+
+  /**
+   * Processes the added geometries and returns the merged linestrings.
+   * <p>
+   * Can be called more than once. The noded graph is kept, so a later call only redoes noding when the input or its
+   * settings changed, and with {@link #setCacheSteps} only the steps from the first one whose settings changed. Every
+   * step after noding except removing parallel edges runs on the connected components of the graph in parallel.
+   */
+  public List<LineStringWithGroupId> getMergedLineStrings() {
+    int first = firstStaleStep;
+    if (!cacheSteps && first < NUM_STEPS) {
+      // only the noded graph is kept, so every step after it runs again
+      first = Math.min(first, NODED + 1);
+    }
+    // whether the graph is kept in a snapshot, so a step has to work on a copy to leave it intact
+    boolean kept = false;
+    if (first > NODED && first < NUM_STEPS) {
+      graph = steps[first - 1].graph;
+      columns = steps[first - 1].columns;
+      kept = true;
+    }
+    for (int step = first; step < NUM_STEPS; step++) {
+      if (step == NODED) {
+        buildGraph();
+      } else if (isEnabled(step)) {
+        if (kept) {
+          columns = columns.copy();
+          graph = graph.copy(columns);
+        }
+        if (step == PARALLEL_REMOVED) {
+          // edges can run in parallel without being connected, so this step needs the whole graph
+          runStep(step);
+        } else {
+          int current = step;
+          runPerComponent(part -> part.runStep(current));
+        }
+      } else {
+        steps[step] = steps[step - 1];
+        continue;
+      }
+      kept = step == NODED || cacheSteps;
+      steps[step] = kept ? new Snapshot(graph, columns) : null;
+    }
+    firstStaleStep = NUM_STEPS;
+
+    List<LineStringWithGroupId> result = new ArrayList<>();
+
+    var count = 0;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        // System.out.println(graph.halfToString(edge));
+        if (HalfEdgeGraph.isMain(edge)) {
+          result.add(new LineStringWithGroupId(lineString(edge), groupId(edge)));
+          count++;
+        }
+      }
+    }
+    System.out.println("count=" + count);
+
+    return result;
+  }
+
+  private LineString lineString(int edge) {
+    Coordinate[] coordinates = new Coordinate[graph.numPoints(edge)];
+    for (int i = 0; i < coordinates.length; i++) {
+      coordinates[i] = new CoordinateXY(graph.x(edge, i), graph.y(edge, i));
+    }
+    return factory.createLineString(coordinates);
+  }
+
+  /**
+   * Nodes the input and merges at degree-two nodes, or reads the result from the graph file if it was built from the
+   * same input.
+   */
+  private void buildGraph() {
+    try {
+      long[] header = graphFile != null ? graphFileHeader() : null;
+      if (graphFile != null && Files.exists(graphFile)) {
+        try (var in = new ArrayFile.Reader(graphFile)) {
+          if (readsHeader(in, header)) {
+            graph = HalfEdgeGraph.read(in, columns);
+            columns.read(in);
+            return;
+          }
+        }
+      }
+      var lines = nodeLines(input);
+      buildNodes(lines);
+      degreeTwoMerge();
+      if (graphFile != null) {
+        try (var out = new ArrayFile.Writer(graphFile)) {
+          for (long value : header) {
+            out.writeLong(value);
+          }
+          graph.write(out);
+          columns.write(out, graph.numHalfEdges() / 2);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns what the graph file starts with: the number of input lines, a fingerprint of their points and group ids in
+   * order, the scale of the precision model and whether lines are split at intersections.
+   */
+  private long[] graphFileHeader() {
+    long fingerprint = 0;
+    for (var line : input) {
+      var sequence = line.line().getCoordinateSequence();
+      long hash = sequence.size();
+      for (int i = 0; i < sequence.size(); i++) {
+        hash = Hashing.mix(hash * 31 + Double.doubleToLongBits(sequence.getX(i)));
+        hash = Hashing.mix(hash * 31 + Double.doubleToLongBits(sequence.getY(i)));
+      }
+      hash = Hashing.mix(hash * 31 + line.groupId());
+      fingerprint = fingerprint * 0x9E3779B97F4A7C15L + hash;
+    }
+    return new long[]{input.size(), fingerprint, Double.doubleToLongBits(precisionModel.getScale()),
+      splitAtIntersections ? 1 : 0};
+  }
+
+  /** Returns true if {@code in} starts with {@code header}, and false if it differs or the file is shorter. */
+  private static boolean readsHeader(ArrayFile.Reader in, long[] header) throws IOException {
+    try {
+      for (long value : header) {
+        if (in.readLong() != value) {
+          return false;
+        }
+      }
+      return true;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  private void buildNodes(NodedLines lines) {
+    columns.clear(lines.numPieces());
+    graph = new HalfEdgeGraph(true, columns);
+    int[] nodeIds = new int[lines.numVertices()];
+    Arrays.fill(nodeIds, -1);
+    for (int piece = 0; piece < lines.numPieces(); piece++) {
+      int firstVertex = lines.firstVertex(piece);
+      if (nodeIds[firstVertex] < 0) {
+        nodeIds[firstVertex] = graph.addNode(lines.vertexX(firstVertex), lines.vertexY(firstVertex));
+      }
+      int lastVertex = lines.lastVertex(piece);
+      if (nodeIds[lastVertex] < 0) {
+        nodeIds[lastVertex] = graph.addNode(lines.vertexX(lastVertex), lines.vertexY(lastVertex));
+      }
+      int edge = HalfEdgeGraph.edge(graph.addEdge(nodeIds[firstVertex], nodeIds[lastVertex], lines.xy(),
+        lines.pointOffset(piece), lines.numPoints(piece), lines.length(piece)));
+      var line = input.get(lines.id(piece));
+      columns.setInt(groupIds, edge, line.groupId());
+    }
+    graph.buildAdjacency();
+  }
+
+  private NodedLines nodeLines(List<LineStringWithGroupId> input) {
+    var lines = new NodedLines(precisionModel, input.size());
+    for (int i = 0; i < input.size(); i++) {
+      lines.add(i, input.get(i).line().getCoordinateSequence());
+    }
+    if (splitAtIntersections) {
+      lines.addIntersections();
+    }
+    lines.node();
+    return lines;
+  }
+}
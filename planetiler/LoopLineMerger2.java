@@ -1,16 +1,13 @@
-import com.onthegomap.planetiler.geo.DouglasPeuckerSimplifier;
 import com.onthegomap.planetiler.geo.GeoUtils;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.function.Consumer;
 
-import org.locationtech.jts.algorithm.Angle;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.CoordinateXY;
 import org.locationtech.jts.geom.Geometry;
@@ -40,11 +37,44 @@ import org.locationtech.jts.operation.linemerge.LineMerger;
  */
 public class LoopLineMerger2 {
   record LineStringWithVisitsAndWay(LineString line, double visits, long wayId) {}
-  record CoordinatesWithVisitsAndWay(List<Coordinate> coordinates, double visits, long wayId) {}
+  // processing steps, each only rerun when an input or setting it depends on changes
+  private static final int NODED = 0;
+  private static final int VISITS_PREFILTERED = 1;
+  private static final int LOOPS_BROKEN = 2;
+  private static final int VISITS_FILTERED = 3;
+  private static final int STUBS_REMOVED = 4;
+  private static final int SIMPLIFIED = 5;
+  private static final int STROKES_MERGED = 6;
+  private static final int SHORT_REMOVED = 7;
+  private static final int NUM_STEPS = 8;
+  private static final String[] STEP_NAMES = {
+    "noded", "visitsPrefiltered", "loopsBroken", "visitsFiltered", "stubsRemoved", "simplified", "strokesMerged",
+    "shortRemoved"
+  };
+  // edges handled by one task when a step runs per connected component, enough to outweigh splitting the graph
+  private static final int COMPONENT_CHUNK_EDGES = 1024;
+  private record Snapshot(HalfEdgeGraph graph, EdgeColumns columns) {}
+
+  /** One combination of settings to evaluate in a {@link #sweep}. */
+  public record SweepParameters(double minVisits, double loopMinLength, double stubMinLength, double tolerance,
+    double minLength, boolean mergeStrokes) {}
+
+  /**
+   * The merged linestrings for one {@link SweepParameters}, with their number and total length, and the length of
+   * edges removed by each processing step by name.
+   */
+  public record SweepResult(SweepParameters parameters, List<LineString> lines, int edgeCount, double totalLength,
+    Map<String, Double> removedLength) {}
   private final List<LineStringWithVisitsAndWay> input = new ArrayList<>();
-  private final List<Node> output = new ArrayList<>();
-  private int numNodes = 0;
-  private int numEdges = 0;
+  private final Snapshot[] steps = new Snapshot[NUM_STEPS];
+  private final double[] stepLength = new double[NUM_STEPS];
+  private int firstStaleStep = NODED;
+  private boolean cacheSteps = false;
+  private SweepParameters sweepParameters;
+  private HalfEdgeGraph graph;
+  private EdgeColumns columns = new EdgeColumns(edge -> graph.length(edge * 2));
+  private final int visits = columns.addDouble(EdgeColumns.Merge.LENGTH_WEIGHTED_MEAN);
+  private final int wayIds = columns.addLongSet();
   private PrecisionModel precisionModel = new PrecisionModel(GeoUtils.TILE_PRECISION);
   private GeometryFactory factory = new GeometryFactory(precisionModel);
   private double minLength = 0.0;
@@ -63,6 +93,7 @@ public class LoopLineMerger2 {
   public LoopLineMerger2 setPrecisionModel(PrecisionModel precisionModel) {
     this.precisionModel = precisionModel;
     factory = new GeometryFactory(precisionModel);
+    invalidate(NODED);
     return this;
   }
 
@@ -72,12 +103,18 @@ public class LoopLineMerger2 {
    * Linestrings shorter than this value will be removed. {@code minLength <= 0} disables min length removal.
    */
   public LoopLineMerger2 setMinLength(double minLength) {
-    this.minLength = minLength;
+    if (minLength != this.minLength) {
+      this.minLength = minLength;
+      invalidate(SHORT_REMOVED);
+    }
     return this;
   }
 
   public LoopLineMerger2 setMinVisits(double minVisits) {
-    this.minVisits = minVisits;
+    if (minVisits != this.minVisits) {
+      this.minVisits = minVisits;
+      invalidate(VISITS_PREFILTERED);
+    }
     return this;
   }
 
@@ -88,7 +125,10 @@ public class LoopLineMerger2 {
    * remains. This should be {@code >= minLength}. {@code loopMinLength <= 0} disables loop removal.
    */
   public LoopLineMerger2 setLoopMinLength(double loopMinLength) {
-    this.loopMinLength = loopMinLength;
+    if (loopMinLength != this.loopMinLength) {
+      this.loopMinLength = loopMinLength;
+      invalidate(LOOPS_BROKEN);
+    }
     return this;
   }
 
@@ -99,7 +139,10 @@ public class LoopLineMerger2 {
    * {@code stubMinLength <= 0} disables stub removal.
    */
   public LoopLineMerger2 setStubMinLength(double stubMinLength) {
-    this.stubMinLength = stubMinLength;
+    if (stubMinLength != this.stubMinLength) {
+      this.stubMinLength = stubMinLength;
+      invalidate(STUBS_REMOVED);
+    }
     return this;
   }
 
@@ -111,7 +154,10 @@ public class LoopLineMerger2 {
    * simplification.
    */
   public LoopLineMerger2 setTolerance(double tolerance) {
-    this.tolerance = tolerance;
+    if (tolerance != this.tolerance) {
+      this.tolerance = tolerance;
+      invalidate(SIMPLIFIED);
+    }
     return this;
   }
 
@@ -120,7 +166,24 @@ public class LoopLineMerger2 {
    * 3 or more attached linestrings based on the angle between them.
    */
   public LoopLineMerger2 setMergeStrokes(boolean mergeStrokes) {
-    this.mergeStrokes = mergeStrokes;
+    if (mergeStrokes != this.mergeStrokes) {
+      this.mergeStrokes = mergeStrokes;
+      invalidate(STROKES_MERGED);
+    }
+    return this;
+  }
+
+  /**
+   * Keeps the graph after every processing step instead of only the noded graph, so that a later call only redoes the
+   * steps from the first one whose settings changed. This needs memory for a copy of every changed part of the graph
+   * per step, so it is off by default and then every step after noding runs again when any setting changed.
+   */
+  public LoopLineMerger2 setCacheSteps(boolean cacheSteps) {
+    if (cacheSteps != this.cacheSteps) {
+      this.cacheSteps = cacheSteps;
+      Arrays.fill(steps, NODED + 1, NUM_STEPS, null);
+      invalidate(NODED + 1);
+    }
     return this;
   }
 
@@ -133,127 +196,102 @@ public class LoopLineMerger2 {
         input.add(new LineStringWithVisitsAndWay(lineString, visits, wayId));
       }
     });
+    invalidate(NODED);
     return this;
   }
 
+  /** Returns true if this merger simplifies or joins the edges it keeps, instead of only choosing which to keep. */
+  boolean reshapesEdges() {
+    return tolerance >= 0.0 || mergeStrokes;
+  }
+
+  private void invalidate(int step) {
+    firstStaleStep = Math.min(firstStaleStep, step);
+  }
+
   private void degreeTwoMerge() {
-    for (var node : output) {
+    for (int node = 0; node < graph.numNodes(); node++) {
       degreeTwoMerge(node);
     }
-    output.removeIf(node -> node.getEdges().isEmpty());
     assert valid();
   }
 
   private boolean valid() {
     // when run from a unit test, ensure some basic conditions always hold...
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        assert edge.isLoop() || edge.to.getEdges().contains(edge.reversed) : edge.to + " does not contain " +
-          edge.reversed;
-        for (var other : node.getEdges()) {
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        assert graph.isLoop(edge) || graph.contains(graph.to(edge), HalfEdgeGraph.twin(edge)) :
+          graph.nodeToString(graph.to(edge)) + " does not contain " + graph.halfToString(HalfEdgeGraph.twin(edge));
+        for (int j = 0; j < graph.degree(node); j++) {
+          int other = graph.halfAt(node, j);
           if (edge != other) {
-            assert edge != other.reversed : "node contained edge and its reverse " + node;
-            assert !edge.coordinates.equals(other.coordinates) : "duplicate edges " + edge + " and " + other;
+            assert edge != HalfEdgeGraph.twin(other) : "node contained edge and its reverse " + graph.nodeToString(node);
+            assert !graph.samePoints(edge, other) : "duplicate edges " + graph.halfToString(edge) + " and " +
+              graph.halfToString(other);
           }
         }
       }
-      assert node.getEdges().size() != 2 || node.getEdges().stream().anyMatch(Edge::isLoop) : "degree 2 node found " +
-        node;
+      assert graph.degree(node) != 2 || graph.isLoop(graph.halfAt(node, 0)) || graph.isLoop(graph.halfAt(node, 1)) :
+        "degree 2 node found " + graph.nodeToString(node);
     }
     return true;
   }
 
-  private Edge degreeTwoMerge(Node node) {
-    if (node.getEdges().size() == 2) {
-      Edge a = node.getEdges().getFirst();
-      Edge b = node.getEdges().get(1);
+  private int degreeTwoMerge(int node) {
+    if (graph.degree(node) == 2) {
+      int a = graph.halfAt(node, 0);
+      int b = graph.halfAt(node, 1);
       // if one side is a loop, degree is actually > 2
-      if (!a.isLoop() && !b.isLoop()) {
-        return mergeTwoEdges(node, a, b);
+      if (!graph.isLoop(a) && !graph.isLoop(b)) {
+        return graph.merge(node, a, b);
       }
     }
-    return null;
-  }
-
-  private Edge mergeTwoEdges(Node node, Edge edge1, Edge edge2) {
-    // attempt to preserve segment directions from the original line
-    // when: A << N -- B then output C reversed from B to A
-    // when: A >> N -- B then output C from A to B
-    Edge a = edge1.main ? edge2 : edge1;
-    Edge b = edge1.main ? edge1 : edge2;
-    node.getEdges().remove(a);
-    node.getEdges().remove(b);
-    List<Coordinate> coordinates = new ArrayList<>();
-    coordinates.addAll(a.coordinates.reversed());
-    coordinates.addAll(b.coordinates.subList(1, b.coordinates.size()));
-    double visits = (a.visits * a.length + b.visits * b.length) / (a.length + b.length);
-    Edge c = new Edge(a.to, b.to, coordinates, a.length + b.length, visits);
-    a.to.removeEdge(a.reversed);
-    b.to.removeEdge(b.reversed);
-    a.to.addEdge(c);
-    if (a.to != b.to) {
-      b.to.addEdge(c.reversed);
-    }
-    c.wayIds.addAll(a.wayIds);
-    c.wayIds.addAll(b.wayIds);
-    c.reversed.wayIds.addAll(a.wayIds);
-    c.reversed.wayIds.addAll(b.wayIds);
-    return c;
+    return -1;
   }
 
-  private void strokeMerge() {
-    for (var node : output) {
-      List<Edge> edges = List.copyOf(node.getEdges());
-      if (edges.size() >= 2) {
-        record AngledPair(Edge a, Edge b, double angle) {}
-        List<AngledPair> angledPairs = new ArrayList<>();
-        for (var i = 0; i < edges.size(); ++i) {
-          var edgei = edges.get(i);
-          for (var j = i + 1; j < edges.size(); ++j) {
-            var edgej = edges.get(j);
-            if (edgei != edgej.reversed) {
-              double angle = edgei.angleTo(edgej);
-              angledPairs.add(new AngledPair(edgei, edgej, angle));
-            }
-          }
-        }
-        angledPairs.sort(Comparator.comparingDouble(angledPair -> angledPair.angle));
-        List<Edge> merged = new ArrayList<>();
-        for (var angledPair : angledPairs.reversed()) {
-          if (merged.contains(angledPair.a) || merged.contains(angledPair.b)) {
-            continue;
-          }
-          mergeTwoEdges(angledPair.a.from, angledPair.a, angledPair.b);
-          merged.add(angledPair.a);
-          merged.add(angledPair.b);
-        }
-      }
+  private double visits(int edge) {
+    return columns.getDouble(visits, HalfEdgeGraph.edge(edge));
+  }
+
+  private int[] edges(int node) {
+    int[] result = new int[graph.degree(node)];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = graph.halfAt(node, i);
     }
+    return result;
+  }
+
+  private void strokeMerge() {
+    StrokeIndex.merge(graph, (a, b) -> true);
   }
 
   private void breakLoops() {
-    for (var node : output) {
-      if (node.getEdges().size() <= 1) {
+    NodeSearch search = new NodeSearch(graph);
+    for (int node = 0; node < graph.numNodes(); node++) {
+      if (graph.degree(node) <= 1) {
         continue;
       }
-      for (var current : List.copyOf(node.getEdges())) {
-        record HasLoop(Edge edge, double distance) {}
+      for (var current : edges(node)) {
+        record HasLoop(int edge, double distance) {}
         List<HasLoop> loops = new ArrayList<>();
-        if (!node.getEdges().contains(current)) {
+        if (!graph.contains(node, current)) {
           continue;
         }
-        for (var other : node.getEdges()) {
-          double distance = other.length +
-            shortestDistanceAStar(other.to, current.to, current.from, loopMinLength - other.length);
+        // one search from the far end of current finds the loop back to node through every other edge
+        search.run(graph.to(current), node, loopMinLength);
+        for (int i = 0; i < graph.degree(node); i++) {
+          int other = graph.halfAt(node, i);
+          double distance = graph.length(other) + search.distance(graph.to(other));
           if (distance <= loopMinLength) {
             loops.add(new HasLoop(other, distance));
           }
         }
         if (loops.size() > 1) {
-          HasLoop max = loops.stream().max(Comparator.comparingDouble(loop -> loop.edge.visits)).get();
+          HasLoop max = loops.stream().max(Comparator.comparingDouble(loop -> visits(loop.edge))).get();
           for (var loop : loops) {
             if (loop != max) {
-              loop.edge.remove();
+              graph.remove(loop.edge);
             }
           }
         }
@@ -261,70 +299,45 @@ public class LoopLineMerger2 {
     }
   }
 
-  private double shortestDistanceAStar(Node start, Node end, Node exclude, double maxLength) {
-    Map<Integer, Double> bestDistance = new HashMap<>();
-    record Candidate(Node node, double length, double minTotalLength) {}
-    PriorityQueue<Candidate> frontier = new PriorityQueue<>(Comparator.comparingDouble(Candidate::minTotalLength));
-    if (exclude != start) {
-      frontier.offer(new Candidate(start, 0, start.distance(end)));
-    }
-    while (!frontier.isEmpty()) {
-      Candidate candidate = frontier.poll();
-      Node current = candidate.node;
-      if (current == end) {
-        return candidate.length;
-      }
-
-      for (var edge : current.getEdges()) {
-        var neighbor = edge.to;
-        if (neighbor != exclude) {
-          double newDist = candidate.length + edge.length;
-          double prev = bestDistance.getOrDefault(neighbor.id, Double.POSITIVE_INFINITY);
-          if (newDist < prev) {
-            bestDistance.put(neighbor.id, newDist);
-            double minTotalLength = newDist + neighbor.distance(end);
-            if (minTotalLength <= maxLength) {
-              frontier.offer(new Candidate(neighbor, newDist, minTotalLength));
-            }
-          }
-        }
-      }
-    }
-    return Double.POSITIVE_INFINITY;
-  }
-
   private void removeShortStubEdges() {
-    PriorityQueue<Edge> toCheck = new PriorityQueue<>(Comparator.comparingDouble(Edge::length));
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
+    // ties go to the lowest half-edge, so the order does not depend on what else is in the graph
+    PriorityQueue<Integer> toCheck = new PriorityQueue<>(
+      Comparator.<Integer>comparingDouble(graph::length).thenComparingInt(h -> h));
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
         if (isShortStubEdge(edge)) {
           toCheck.offer(edge);
         }
       }
     }
     while (!toCheck.isEmpty()) {
-      var edge = toCheck.poll();
-      if (edge.removed) {
+      int edge = toCheck.poll();
+      if (graph.isRemoved(edge)) {
         continue;
       }
       if (isShortStubEdge(edge)) {
-        edge.remove();
+        graph.remove(edge);
       }
-      if (degreeTwoMerge(edge.from) instanceof Edge merged) {
+      int from = graph.from(edge);
+      int to = graph.to(edge);
+      int merged = degreeTwoMerge(from);
+      if (merged >= 0) {
         toCheck.offer(merged);
       }
-      if (edge.from.getEdges().size() == 1) {
-        var other = edge.from.getEdges().getFirst();
+      if (graph.degree(from) == 1) {
+        var other = graph.halfAt(from, 0);
         if (isShortStubEdge(other)) {
           toCheck.offer(other);
         }
       }
-      if (edge.from != edge.to) {
-        if (degreeTwoMerge(edge.to) instanceof Edge merged) {
+      if (from != to) {
+        merged = degreeTwoMerge(to);
+        if (merged >= 0) {
           toCheck.offer(merged);
         }
-        if (edge.to.getEdges().size() == 1) {
-          var other = edge.to.getEdges().getFirst();
+        if (graph.degree(to) == 1) {
+          var other = graph.halfAt(to, 0);
           if (isShortStubEdge(other)) {
             toCheck.offer(other);
           }
@@ -333,87 +346,80 @@ public class LoopLineMerger2 {
     }
   }
 
-  private boolean isShortStubEdge(Edge edge) {
-    return edge != null && !edge.removed && edge.length < stubMinLength &&
-      (edge.from.getEdges().size() == 1 || edge.to.getEdges().size() == 1 || edge.isLoop());
+  private boolean isShortStubEdge(int edge) {
+    return edge >= 0 && !graph.isRemoved(edge) && graph.length(edge) < stubMinLength &&
+      (graph.degree(graph.from(edge)) == 1 || graph.degree(graph.to(edge)) == 1 || graph.isLoop(edge));
   }
 
   private void removeShortEdges() {
-    for (var node : output) {
-      for (var edge : List.copyOf(node.getEdges())) {
-        if (edge.length < minLength) {
-          edge.remove();
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (var edge : edges(node)) {
+        if (graph.length(edge) < minLength) {
+          graph.remove(edge);
         }
       }
     }
   }
 
   private void simplify() {
-    List<Edge> toRemove = new ArrayList<>();
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        if (edge.main) {
-          edge.simplify();
-          if (edge.isCollapsed()) {
-            toRemove.add(edge);
-          }
+    int[] edges = new int[graph.numHalfEdges() / 2];
+    int count = 0;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          edges[count++] = HalfEdgeGraph.edge(edge);
         }
       }
     }
-    toRemove.forEach(Edge::remove);
-  }
-
-  private void removeDuplicatedEdges() {
-    for (var node : output) {
-      List<Edge> toRemove = new ArrayList<>();
-      for (var i = 0; i < node.getEdges().size(); ++i) {
-        Edge a = node.getEdges().get(i);
-        for (var j = i + 1; j < node.getEdges().size(); ++j) {
-          Edge b = node.getEdges().get(j);
-          if (b.to == a.to && a.coordinates.equals(b.coordinates)) {
-            toRemove.add(b);
-          }
-        }
-      }
-      for (var edge : toRemove) {
-        edge.remove();
+    graph.simplify(edges, count, tolerance);
+    for (int i = 0; i < count; i++) {
+      if (graph.isCollapsed(edges[i] * 2)) {
+        graph.remove(edges[i] * 2);
       }
     }
   }
 
   private void removeByVisits() {
-    PriorityQueue<Edge> toCheck = new PriorityQueue<>(Comparator.comparingDouble(Edge::visits));
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        if (edge.visits < minVisits) {
+    // ties go to the lowest half-edge, so the order does not depend on what else is in the graph
+    PriorityQueue<Integer> toCheck = new PriorityQueue<>(
+      Comparator.<Integer>comparingDouble(this::visits).thenComparingInt(h -> h));
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (visits(edge) < minVisits) {
           toCheck.offer(edge);
         }
       }
     }
     while (!toCheck.isEmpty()) {
-      var edge = toCheck.poll();
-      if (edge.removed) {
+      int edge = toCheck.poll();
+      if (graph.isRemoved(edge)) {
         continue;
       }
-      if (edge.visits < minVisits) {
-        edge.remove();
+      if (visits(edge) < minVisits) {
+        graph.remove(edge);
       }
-      if (degreeTwoMerge(edge.from) instanceof Edge merged) {
+      int from = graph.from(edge);
+      int to = graph.to(edge);
+      int merged = degreeTwoMerge(from);
+      if (merged >= 0) {
         toCheck.offer(merged);
       }
-      if (edge.from.getEdges().size() == 1) {
-        var other = edge.from.getEdges().getFirst();
-        if (other.visits < minVisits) {
+      if (graph.degree(from) == 1) {
+        var other = graph.halfAt(from, 0);
+        if (visits(other) < minVisits) {
           toCheck.offer(other);
         }
       }
-      if (edge.from != edge.to) {
-        if (degreeTwoMerge(edge.to) instanceof Edge merged) {
+      if (from != to) {
+        merged = degreeTwoMerge(to);
+        if (merged >= 0) {
           toCheck.offer(merged);
         }
-        if (edge.to.getEdges().size() == 1) {
-          var other = edge.to.getEdges().getFirst();
-          if (other.visits < minVisits) {
+        if (graph.degree(to) == 1) {
+          var other = graph.halfAt(to, 0);
+          if (visits(other) < minVisits) {
             toCheck.offer(other);
           }
         }
@@ -421,282 +427,272 @@ public class LoopLineMerger2 {
     }
   }
 
-  /**
-   * Processes the added geometries and returns the merged linestrings.
-   * <p>
-   * Can be called more than once.
-   */
-  public List<LineString> getMergedLineStrings() {
-    output.clear();
-    var edges = nodeLines(input);
-    buildNodes(edges);
-
-    degreeTwoMerge();
-
-    if (minVisits > 0) {
-      double targetMinVisits = minVisits;
-      minVisits = 1e6;
-      removeByVisits();
-      minVisits = targetMinVisits;
-    }
-    
-    if (loopMinLength > 0.0) {
-      breakLoops();
-      degreeTwoMerge();
-    }
-
-    if (minVisits > 0) {
-      removeByVisits();
-    }
-
-    if (stubMinLength > 0.0) {
-      removeShortStubEdges();
-      // removeShortStubEdges does degreeTwoMerge internally
-    }
-
-    if (tolerance >= 0.0) {
-      simplify();
-      removeDuplicatedEdges();
-      degreeTwoMerge();
-    }
-
-    if (mergeStrokes) {
-      strokeMerge();
-      degreeTwoMerge();
-    }
-
-    if (minLength > 0) {
-      removeShortEdges();
-    }
-
-
-    List<LineString> result = new ArrayList<>();
-
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        if (edge.main) {
-          result.add(factory.createLineString(edge.coordinates.toArray(Coordinate[]::new)));
-        }
-      }
-    }
-
-    return result;
-  }
-
-  public List<Long> getMergedWayIds() {
-    Set<Long> result = new HashSet<>();
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        result.addAll(edge.wayIds);
-      }
-    }
-    return new ArrayList<>(result);
+  private boolean isEnabled(int step) {
+    return switch (step) {
+      case VISITS_PREFILTERED, VISITS_FILTERED -> minVisits > 0;
+      case LOOPS_BROKEN -> loopMinLength > 0.0;
+      case STUBS_REMOVED -> stubMinLength > 0.0;
+      case SIMPLIFIED -> tolerance >= 0.0;
+      case STROKES_MERGED -> mergeStrokes;
+      case SHORT_REMOVED -> minLength > 0;
+      default -> true;
+    };
   }
 
-  private static double length(List<Coordinate> edge) {
-    Coordinate last = null;
-    double length = 0;
-    for (Coordinate coord : edge) {
-      if (last != null) {
-        length += last.distance(coord);
+  private void runStep(int step) {
+    switch (step) {
+      case VISITS_PREFILTERED -> {
+        double targetMinVisits = minVisits;
+        minVisits = 1e6;
+        removeByVisits();
+        minVisits = targetMinVisits;
       }
-      last = coord;
-    }
-    return length;
-  }
-
-  private void buildNodes(List<CoordinatesWithVisitsAndWay> edges) {
-    Map<Coordinate, Node> nodes = new HashMap<>();
-    for (var coordinateSequenceWithVisitsAndWay : edges) {
-      var coordinateSequence = coordinateSequenceWithVisitsAndWay.coordinates;
-      Coordinate first = coordinateSequence.getFirst();
-      Node firstNode = nodes.get(first);
-      if (firstNode == null) {
-        firstNode = new Node(first);
-        nodes.put(first, firstNode);
-        output.add(firstNode);
+      case LOOPS_BROKEN -> {
+        breakLoops();
+        degreeTwoMerge();
       }
-
-      Coordinate last = coordinateSequence.getLast();
-      Node lastNode = nodes.get(last);
-      if (lastNode == null) {
-        lastNode = new Node(last);
-        nodes.put(last, lastNode);
-        output.add(lastNode);
+      case VISITS_FILTERED -> removeByVisits();
+      // removeShortStubEdges does degreeTwoMerge internally
+      case STUBS_REMOVED -> removeShortStubEdges();
+      case SIMPLIFIED -> {
+        simplify();
+        graph.removeDuplicates();
+        degreeTwoMerge();
       }
-
-      double length = length(coordinateSequence);
-
-      Edge edge = new Edge(firstNode, lastNode, coordinateSequence, length, coordinateSequenceWithVisitsAndWay.visits);
-      edge.wayIds.add(coordinateSequenceWithVisitsAndWay.wayId);
-      edge.reversed.wayIds.add(coordinateSequenceWithVisitsAndWay.wayId);
-      firstNode.addEdge(edge);
-      if (firstNode != lastNode) {
-        lastNode.addEdge(edge.reversed);
+      case STROKES_MERGED -> {
+        strokeMerge();
+        degreeTwoMerge();
       }
+      case SHORT_REMOVED -> removeShortEdges();
+      default -> throw new IllegalArgumentException("unknown step " + step);
     }
   }
 
-  private List<CoordinatesWithVisitsAndWay> nodeLines(List<LineStringWithVisitsAndWay> input) {
-    Map<Coordinate, Integer> nodeCounts = new HashMap<>();
-    List<CoordinatesWithVisitsAndWay> coordsWithVisitsAndWay = new ArrayList<>(input.size());
-    for (var lineStringWithVisitsAndWay : input) {
-      var line = lineStringWithVisitsAndWay.line;
-      var coordinateSequence = line.getCoordinateSequence();
-      List<Coordinate> snapped = new ArrayList<>();
-      Coordinate last = null;
-      for (int i = 0; i < coordinateSequence.size(); i++) {
-        Coordinate current = new CoordinateXY(coordinateSequence.getX(i), coordinateSequence.getY(i));
-        precisionModel.makePrecise(current);
-        if (last == null || !last.equals(current)) {
-          snapped.add(current);
-          nodeCounts.merge(current, 1, Integer::sum);
+  private void runStaleSteps() {
+    int first = firstStaleStep;
+    if (!cacheSteps && first < NUM_STEPS) {
+      // only the noded graph is kept, so every step after it runs again
+      first = Math.min(first, NODED + 1);
+    }
+    // whether the graph is kept in a snapshot, so a step has to work on a copy to leave it intact
+    boolean kept = false;
+    if (first > NODED && first < NUM_STEPS) {
+      graph = steps[first - 1].graph;
+      columns = steps[first - 1].columns;
+      kept = true;
+    }
+    for (int step = first; step < NUM_STEPS; step++) {
+      if (step == NODED) {
+        var lines = nodeLines(input);
+        buildNodes(lines);
+        degreeTwoMerge();
+      } else if (isEnabled(step)) {
+        if (kept) {
+          columns = columns.copy();
+          graph = graph.copy(columns);
         }
-        last = current;
-      }
-      if (snapped.size() >= 2) {
-        coordsWithVisitsAndWay.add(new CoordinatesWithVisitsAndWay(snapped, lineStringWithVisitsAndWay.visits, lineStringWithVisitsAndWay.wayId));
-      }
-    }
-
-    List<CoordinatesWithVisitsAndWay> result = new ArrayList<>(input.size());
-    for (var coordinateSequenceWithVisitsAndWay : coordsWithVisitsAndWay) {
-      var coordinateSequence = coordinateSequenceWithVisitsAndWay.coordinates;
-      int start = 0;
-      for (int i = 0; i < coordinateSequence.size(); i++) {
-        Coordinate coordinate = coordinateSequence.get(i);
-        if (i > 0 && i < coordinateSequence.size() - 1 && nodeCounts.get(coordinate) > 1) {
-          result.add(new CoordinatesWithVisitsAndWay(coordinateSequence.subList(start, i + 1), coordinateSequenceWithVisitsAndWay.visits, coordinateSequenceWithVisitsAndWay.wayId));
-          start = i;
-        }
-      }
-      if (start < coordinateSequence.size()) {
-        var sublist = start == 0 ? coordinateSequence : coordinateSequence.subList(start, coordinateSequence.size());
-        result.add(new CoordinatesWithVisitsAndWay(sublist, coordinateSequenceWithVisitsAndWay.visits, coordinateSequenceWithVisitsAndWay.wayId));
+        int current = step;
+        runPerComponent(part -> part.runStep(current));
+      } else {
+        steps[step] = steps[step - 1];
+        stepLength[step] = stepLength[step - 1];
+        continue;
       }
+      kept = step == NODED || cacheSteps;
+      steps[step] = kept ? new Snapshot(graph, columns) : null;
+      stepLength[step] = totalLength();
     }
-    return result;
+    firstStaleStep = NUM_STEPS;
   }
 
-  private class Node {
-    final int id = numNodes++;
-    final List<Edge> edge = new ArrayList<>();
-    Coordinate coordinate;
+  /**
+   * Runs {@code step} on every group of connected components from {@link HalfEdgeGraph#components} in a merger of its
+   * own, in parallel on the common fork-join pool, and joins the results back into one graph with the same node ids.
+   * <p>
+   * The step must only change edges connected to the ones it looks at. Since the groups only depend on the graph, the
+   * result is the same however many threads there are.
+   */
+  private void runPerComponent(Consumer<LoopLineMerger2> step) {
+    int[] component = new int[graph.numNodes()];
+    int numGroups = graph.components(component, COMPONENT_CHUNK_EDGES);
+    if (numGroups <= 1) {
+      step.accept(this);
+      return;
+    }
+    LoopLineMerger2[] parts = new LoopLineMerger2[numGroups];
+    HalfEdgeGraph.Attributes[] attributes = new HalfEdgeGraph.Attributes[numGroups];
+    for (int group = 0; group < numGroups; group++) {
+      parts[group] = part();
+      attributes[group] = parts[group].columns;
+    }
+    HalfEdgeGraph[] graphs = graph.split(component, numGroups, attributes);
+    for (int group = 0; group < numGroups; group++) {
+      parts[group].graph = graphs[group];
+    }
+    Arrays.stream(parts).parallel().forEach(step);
+    for (int group = 0; group < numGroups; group++) {
+      graphs[group] = parts[group].graph;
+    }
+    columns.clear(graph.numHalfEdges() / 2);
+    graph = graph.join(graphs, component, columns);
+  }
 
-    Node(Coordinate coordinate) {
-      this.coordinate = coordinate;
-    }
+  /** Returns a merger with the same settings as this one to run a step on part of the graph. */
+  private LoopLineMerger2 part() {
+    LoopLineMerger2 part = new LoopLineMerger2();
+    part.precisionModel = precisionModel;
+    part.factory = factory;
+    part.minVisits = minVisits;
+    part.loopMinLength = loopMinLength;
+    part.stubMinLength = stubMinLength;
+    part.tolerance = tolerance;
+    part.minLength = minLength;
+    part.mergeStrokes = mergeStrokes;
+    return part;
+  }
 
-    void addEdge(Edge edge) {
-      for (Edge other : this.edge) {
-        if (other.coordinates.equals(edge.coordinates)) {
-          return;
+  private double totalLength() {
+    double length = 0;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          length += graph.length(edge);
         }
       }
-      this.edge.add(edge);
     }
+    return length;
+  }
 
-    List<Edge> getEdges() {
-      return edge;
+  /**
+   * Merges the added geometries once for each of {@code parameterSets}, in parallel, and returns the results in the
+   * same order.
+   * <p>
+   * The input is noded only once. Every set starts from a copy-on-write copy of the noded graph, so sets share the
+   * noded graph until their first step changes it. The precision model of this merger applies to all sets, and its
+   * other settings are ignored.
+   */
+  public List<SweepResult> sweep(List<SweepParameters> parameterSets) {
+    if (firstStaleStep == NODED) {
+      var lines = nodeLines(input);
+      buildNodes(lines);
+      degreeTwoMerge();
+      steps[NODED] = new Snapshot(graph, columns);
+      stepLength[NODED] = totalLength();
+      firstStaleStep = NODED + 1;
     }
-
-    void removeEdge(Edge edge) {
-      this.edge.remove(edge);
+    // copying marks the shared graph, so branch off one at a time before running them in parallel
+    List<LoopLineMerger2> branches = new ArrayList<>(parameterSets.size());
+    for (var parameters : parameterSets) {
+      branches.add(branch(parameters));
     }
+    return branches.parallelStream().map(LoopLineMerger2::sweepResult).toList();
+  }
 
-    @Override
-    public String toString() {
-      return "Node{" + id + ": " + edge + '}';
-    }
+  private LoopLineMerger2 branch(SweepParameters parameters) {
+    LoopLineMerger2 branch = new LoopLineMerger2();
+    branch.precisionModel = precisionModel;
+    branch.factory = factory;
+    branch.minVisits = parameters.minVisits();
+    branch.loopMinLength = parameters.loopMinLength();
+    branch.stubMinLength = parameters.stubMinLength();
+    branch.tolerance = parameters.tolerance();
+    branch.minLength = parameters.minLength();
+    branch.mergeStrokes = parameters.mergeStrokes();
+    branch.sweepParameters = parameters;
+    Snapshot noded = steps[NODED];
+    branch.columns = noded.columns.copy(edge -> branch.graph.length(edge * 2));
+    branch.steps[NODED] = new Snapshot(noded.graph.copy(branch.columns), branch.columns);
+    branch.stepLength[NODED] = stepLength[NODED];
+    branch.firstStaleStep = NODED + 1;
+    return branch;
+  }
 
-    double distance(Node end) {
-      return coordinate.distance(end.coordinate);
+  private SweepResult sweepResult() {
+    List<LineString> lines = getMergedLineStrings();
+    Map<String, Double> removedLength = new LinkedHashMap<>();
+    for (int step = NODED + 1; step < NUM_STEPS; step++) {
+      removedLength.put(STEP_NAMES[step], stepLength[step - 1] - stepLength[step]);
     }
+    return new SweepResult(sweepParameters, lines, lines.size(), stepLength[NUM_STEPS - 1], removedLength);
   }
 
-  private class Edge {
-
-    final int id;
-    final Node from;
-    final Node to;
-    final double length;
-    final double visits;
-    final boolean main;
-    boolean removed;
-
-    Edge reversed;
-    List<Coordinate> coordinates;
-
-    final List<Long> wayIds = new ArrayList<>();
-
-
-    private Edge(Node from, Node to, List<Coordinate> coordinateSequence, double length, double visits) {
-      this(numEdges, from, to, length, visits, coordinateSequence, true, null);
-      reversed = new Edge(numEdges, to, from, length, visits, coordinateSequence.reversed(), false, this);
-      numEdges++;
-    }
+  /**
+   * Processes the added geometries and returns the merged linestrings.
+   * <p>
+   * Can be called more than once. The noded graph is kept, so a later call only redoes noding when the input or the
+   * precision model changed, and with {@link #setCacheSteps} only the steps from the first one whose settings changed.
+   * Every step after noding runs on the connected components of the graph in parallel.
+   */
+  public List<LineString> getMergedLineStrings() {
+    runStaleSteps();
 
-    private Edge(int id, Node from, Node to, double length, double visits, List<Coordinate> coordinates, boolean main, Edge reversed) {
-      this.id = id;
-      this.from = from;
-      this.to = to;
-      this.length = length;
-      this.visits = visits;
-      this.coordinates = coordinates;
-      this.main = main;
-      this.reversed = reversed;
-    }
+    List<LineString> result = new ArrayList<>();
 
-    void remove() {
-      if (!removed) {
-        from.removeEdge(this);
-        to.removeEdge(reversed);
-        removed = true;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          result.add(lineString(edge));
+        }
       }
     }
 
-    double angleTo(Edge other) {
-      assert from.equals(other.from);
-      assert coordinates.size() >= 2;
-
-      double angle = Angle.angle(coordinates.get(0), coordinates.get(1));
-      double angleOther = Angle.angle(other.coordinates.get(0), other.coordinates.get(1));
-
-      return Math.abs(Angle.normalize(angle - angleOther));
-    }
-
-    double length() {
-      return length;
-    }
-
-    double visits() {
-      return visits;
-    }
+    return result;
+  }
 
-    void simplify() {
-      var geometry = GeoUtils.JTS_FACTORY.createLineString(coordinates.toArray(Coordinate[]::new));
-      var simplifiedGeometry = DouglasPeuckerSimplifier.simplify(geometry, tolerance);
-      if (simplifiedGeometry instanceof LineString line) {
-        coordinates = Arrays.asList(line.getCoordinates());
-        if (reversed != null) {
-          reversed.coordinates = coordinates.reversed();
+  /** Returns the sorted ids of the ways that make up the edges left in the graph. */
+  public long[] getMergedWayIds() {
+    int[] edges = new int[graph.numHalfEdges() / 2];
+    int count = 0;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          edges[count++] = HalfEdgeGraph.edge(edge);
         }
       }
     }
+    return columns.union(wayIds, edges, count);
+  }
 
-    boolean isCollapsed() {
-      return coordinates.size() < 2 ||
-        (coordinates.size() == 2 && coordinates.getFirst().equals(coordinates.getLast()));
+  private LineString lineString(int edge) {
+    Coordinate[] coordinates = new Coordinate[graph.numPoints(edge)];
+    for (int i = 0; i < coordinates.length; i++) {
+      coordinates[i] = new CoordinateXY(graph.x(edge, i), graph.y(edge, i));
     }
+    return factory.createLineString(coordinates);
+  }
 
-    boolean isLoop() {
-      return from == to;
-    }
+  private void buildNodes(NodedLines lines) {
+    columns.clear(lines.numPieces());
+    graph = new HalfEdgeGraph(false, columns);
+    int[] nodeIds = new int[lines.numVertices()];
+    Arrays.fill(nodeIds, -1);
+    for (int piece = 0; piece < lines.numPieces(); piece++) {
+      int firstVertex = lines.firstVertex(piece);
+      if (nodeIds[firstVertex] < 0) {
+        nodeIds[firstVertex] = graph.addNode(lines.vertexX(firstVertex), lines.vertexY(firstVertex));
+      }
+      int lastVertex = lines.lastVertex(piece);
+      if (nodeIds[lastVertex] < 0) {
+        nodeIds[lastVertex] = graph.addNode(lines.vertexX(lastVertex), lines.vertexY(lastVertex));
+      }
+      int edge = HalfEdgeGraph.edge(graph.addEdge(nodeIds[firstVertex], nodeIds[lastVertex], lines.xy(),
+        lines.pointOffset(piece), lines.numPoints(piece), lines.length(piece)));
+      var line = input.get(lines.id(piece));
+      columns.setDouble(visits, edge, line.visits());
+      columns.setLongSet(wayIds, edge, line.wayId());
+    }
+    graph.buildAdjacency();
+  }
 
-    @Override
-    public String toString() {
-      return "Edge{" + from.id + "->" + to.id + (main ? "" : "(R)") + ": [" + coordinates.getFirst() + ".." +
-        coordinates.getLast() + "], length=" + length + ", visits=" + visits + '}';
+  private NodedLines nodeLines(List<LineStringWithVisitsAndWay> input) {
+    var lines = new NodedLines(precisionModel, input.size());
+    for (int i = 0; i < input.size(); i++) {
+      lines.add(i, input.get(i).line().getCoordinateSequence());
     }
+    lines.node();
+    return lines;
   }
-}
\ No newline at end of file
+}
@@ -1,15 +1,15 @@
-import com.onthegomap.planetiler.geo.DouglasPeuckerSimplifier;
 import com.onthegomap.planetiler.geo.GeoUtils;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.stream.Collectors;
 import java.util.List;
-import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.function.Consumer;
 
 import org.locationtech.jts.algorithm.Angle;
 import org.locationtech.jts.geom.Coordinate;
@@ -41,11 +41,20 @@ import org.locationtech.jts.operation.linemerge.LineMerger;
  */
 public class LoopLineMerger4 {
   record TaggedLineString(LineString line, double visits, int minZoom, long wayId) {}
-  record TaggedCoordinates(List<Coordinate> coordinates, double visits, int minZoom, long wayId) {}
+  // edges handled by one task when steps run per connected component, enough to outweigh splitting the graph
+  private static final int COMPONENT_CHUNK_EDGES = 1024;
   private final List<TaggedLineString> input = new ArrayList<>();
-  private final List<Node> output = new ArrayList<>();
-  private int numNodes = 0;
-  private int numEdges = 0;
+  private HalfEdgeGraph graph;
+  private final TaggedColumns columns = new TaggedColumns();
+  // the graph right after noding and its columns, which every call starts from until the input or its settings change
+  private HalfEdgeGraph noded;
+  private EdgeColumns nodedColumns;
+  private final int visits = columns.addDouble(EdgeColumns.Merge.LENGTH_WEIGHTED_MEAN);
+  private final int minZooms = columns.addInt(EdgeColumns.Merge.FIRST);
+  private final int active = columns.addInt(EdgeColumns.Merge.FIRST);
+  private final int wayIds = columns.addLongSet();
+  private final int mergedInto = columns.addInt(EdgeColumns.Merge.FIRST);
+  private final int visitsThresholds = columns.addDouble(EdgeColumns.Merge.FIRST);
   private PrecisionModel precisionModel = new PrecisionModel(GeoUtils.TILE_PRECISION);
   private GeometryFactory factory = new GeometryFactory(precisionModel);
   private double minLength = 0.0;
@@ -55,6 +64,16 @@ public class LoopLineMerger4 {
   private double tolerance = -1.0;
   private boolean mergeStrokes = false;
   private int defaultActiveMinZoom = 0;
+  private Path graphFile = null;
+  private StrokeIndex strokes;
+  private double[] strokeVisits;
+  private int[] strokeWayIdStart;
+  private long[] strokeWayIds;
+  private StrokeMesh strokeMesh;
+  private long[] rankWayIds;
+  private int[] wayIdRanks;
+  private long[] thresholdWayIds;
+  private double[] wayIdThresholds;
 
   /**
    * Sets the precision model used to snap points to a grid.
@@ -65,6 +84,7 @@ public class LoopLineMerger4 {
   public LoopLineMerger4 setPrecisionModel(PrecisionModel precisionModel) {
     this.precisionModel = precisionModel;
     factory = new GeometryFactory(precisionModel);
+    noded = null;
     return this;
   }
 
@@ -127,7 +147,25 @@ public class LoopLineMerger4 {
   }
 
   public LoopLineMerger4 setDefaultActiveMinZoom(int defaultActiveMinZoom) {
-    this.defaultActiveMinZoom = defaultActiveMinZoom;
+    if (defaultActiveMinZoom != this.defaultActiveMinZoom) {
+      this.defaultActiveMinZoom = defaultActiveMinZoom;
+      noded = null;
+    }
+    return this;
+  }
+
+  /**
+   * Stores the noded graph in {@code graphFile}, or reads it from there instead of noding the input if the file
+   * exists, so that later runs over the same input only pay for reading the file. The file starts with the number of
+   * input lines, a fingerprint of their points and attributes, the precision model and the default active min zoom,
+   * and is built again when any of them changed. {@code null} turns this off.
+   * <p>
+   * The file is only a cache of the noded graph: it is read back into memory whole, so the merger needs as much memory
+   * as without it.
+   */
+  public LoopLineMerger4 setGraphFile(Path graphFile) {
+    this.graphFile = graphFile;
+    noded = null;
     return this;
   }
 
@@ -140,6 +178,7 @@ public class LoopLineMerger4 {
         input.add(new TaggedLineString(lineString, visits, minZoom, wayId));
       }
     });
+    noded = null;
     return this;
   }
 
@@ -148,127 +187,111 @@ public class LoopLineMerger4 {
   }
 
   private void degreeTwoMerge(double minAngle) {
-    for (var node : output) {
+    for (int node = 0; node < graph.numNodes(); node++) {
       degreeTwoMerge(node, minAngle);
     }
-    output.removeIf(node -> node.getEdges().isEmpty());
     assert valid();
   }
 
   private boolean valid() {
     // when run from a unit test, ensure some basic conditions always hold...
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        assert edge.isLoop() || edge.to.getEdges().contains(edge.reversed) : edge.to + " does not contain " +
-          edge.reversed;
-        for (var other : node.getEdges()) {
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        assert graph.isLoop(edge) || graph.contains(graph.to(edge), HalfEdgeGraph.twin(edge)) :
+          graph.nodeToString(graph.to(edge)) + " does not contain " + graph.halfToString(HalfEdgeGraph.twin(edge));
+        for (int j = 0; j < graph.degree(node); j++) {
+          int other = graph.halfAt(node, j);
           if (edge != other) {
-            assert edge != other.reversed : "node contained edge and its reverse " + node;
-            assert !edge.coordinates.equals(other.coordinates) : "duplicate edges " + edge + " and " + other;
+            assert edge != HalfEdgeGraph.twin(other) : "node contained edge and its reverse " + graph.nodeToString(node);
+            assert !graph.samePoints(edge, other) : "duplicate edges " + graph.halfToString(edge) + " and " +
+              graph.halfToString(other);
           }
         }
       }
-      assert node.getEdges().size() != 2 || node.getEdges().stream().anyMatch(Edge::isLoop) : "degree 2 node found " +
-        node;
+      assert graph.degree(node) != 2 || graph.isLoop(graph.halfAt(node, 0)) || graph.isLoop(graph.halfAt(node, 1)) :
+        "degree 2 node found " + graph.nodeToString(node);
     }
     return true;
   }
 
-  private Edge degreeTwoMerge(Node node) {
+  private int degreeTwoMerge(int node) {
     return degreeTwoMerge(node, 0.0);
   }
 
-  private Edge degreeTwoMerge(Node node, double minAngle) {
-    if (node.getEdges().size() == 2) {
-      Edge a = node.getEdges().getFirst();
-      Edge b = node.getEdges().get(1);
+  private int degreeTwoMerge(int node, double minAngle) {
+    if (graph.degree(node) == 2) {
+      int a = graph.halfAt(node, 0);
+      int b = graph.halfAt(node, 1);
       // if one side is a loop, degree is actually > 2
-      if (!a.isLoop() && !b.isLoop() && a.minZoom == b.minZoom && a.active == b.active && a.angleTo(b) >= minAngle) {
-        return mergeTwoEdges(node, a, b);
-      }
-    }
-    return null;
-  }
-
-  private Edge mergeTwoEdges(Node node, Edge edge1, Edge edge2) {
-    // attempt to preserve segment directions from the original line
-    // when: A << N -- B then output C reversed from B to A
-    // when: A >> N -- B then output C from A to B
-    Edge a = edge1.main ? edge2 : edge1;
-    Edge b = edge1.main ? edge1 : edge2;
-    node.getEdges().remove(a);
-    node.getEdges().remove(b);
-    List<Coordinate> coordinates = new ArrayList<>();
-    coordinates.addAll(a.coordinates.reversed());
-    coordinates.addAll(b.coordinates.subList(1, b.coordinates.size()));
-    double visits = (a.visits * a.length + b.visits * b.length) / (a.length + b.length);
-    Edge c = new Edge(a.to, b.to, coordinates, a.length + b.length, visits, a.minZoom, a.active);
-    a.to.removeEdge(a.reversed);
-    b.to.removeEdge(b.reversed);
-    a.to.addEdge(c);
-    if (a.to != b.to) {
-      b.to.addEdge(c.reversed);
-    }
-    c.wayIds.addAll(a.wayIds);
-    c.wayIds.addAll(b.wayIds);
-    c.reversed.wayIds.addAll(a.wayIds);
-    c.reversed.wayIds.addAll(b.wayIds);
-    return c;
+      if (!graph.isLoop(a) && !graph.isLoop(b) && minZoom(a) == minZoom(b) && isActive(a) == isActive(b) &&
+        angleTo(a, b) >= minAngle) {
+        return graph.merge(node, a, b);
+      }
+    }
+    return -1;
   }
 
-  private void strokeMerge() {
-    for (var node : output) {
-      List<Edge> edges = List.copyOf(node.getEdges());
-      if (edges.size() >= 2) {
-        record AngledPair(Edge a, Edge b, double angle) {}
-        List<AngledPair> angledPairs = new ArrayList<>();
-        for (var i = 0; i < edges.size(); ++i) {
-          var edgei = edges.get(i);
-          for (var j = i + 1; j < edges.size(); ++j) {
-            var edgej = edges.get(j);
-            if (edgei != edgej.reversed) {
-              double angle = edgei.angleTo(edgej);
-              angledPairs.add(new AngledPair(edgei, edgej, angle));
-            }
-          }
-        }
-        angledPairs.sort(Comparator.comparingDouble(angledPair -> angledPair.angle));
-        List<Edge> merged = new ArrayList<>();
-        for (var angledPair : angledPairs.reversed()) {
-          if (merged.contains(angledPair.a) || merged.contains(angledPair.b)) {
-            continue;
-          }
-          mergeTwoEdges(angledPair.a.from, angledPair.a, angledPair.b);
-          merged.add(angledPair.a);
-          merged.add(angledPair.b);
-        }
-      }
+  private double visits(int edge) {
+    return columns.getDouble(visits, HalfEdgeGraph.edge(edge));
+  }
+
+  private int minZoom(int edge) {
+    return columns.getInt(minZooms, HalfEdgeGraph.edge(edge));
+  }
+
+  private boolean isActive(int edge) {
+    return columns.getInt(active, HalfEdgeGraph.edge(edge)) != 0;
+  }
+
+  private double angleTo(int edge, int other) {
+    assert graph.from(edge) == graph.from(other);
+    assert graph.numPoints(edge) >= 2;
+
+    double angle = graph.currentAngle(edge);
+    double angleOther = graph.currentAngle(other);
+
+    return Math.abs(Angle.normalize(angle - angleOther));
+  }
+
+  private int[] edges(int node) {
+    int[] result = new int[graph.degree(node)];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = graph.halfAt(node, i);
     }
+    return result;
+  }
+
+  private void strokeMerge() {
+    StrokeIndex.merge(graph, (a, b) -> true);
   }
 
   private void breakLoops() {
-    for (var node : output) {
-      if (node.getEdges().size() <= 1) {
+    NodeSearch search = new NodeSearch(graph);
+    for (int node = 0; node < graph.numNodes(); node++) {
+      if (graph.degree(node) <= 1) {
         continue;
       }
-      for (var current : List.copyOf(node.getEdges())) {
-        record HasLoop(Edge edge, double distance) {}
+      for (var current : edges(node)) {
+        record HasLoop(int edge, double distance) {}
         List<HasLoop> loops = new ArrayList<>();
-        if (!node.getEdges().contains(current)) {
+        if (!graph.contains(node, current)) {
           continue;
         }
-        for (var other : node.getEdges()) {
-          double distance = other.length +
-            shortestDistanceAStar(other.to, current.to, current.from, loopMinLength - other.length);
+        // one search from the far end of current finds the loop back to node through every other edge
+        search.run(graph.to(current), node, loopMinLength);
+        for (int i = 0; i < graph.degree(node); i++) {
+          int other = graph.halfAt(node, i);
+          double distance = graph.length(other) + search.distance(graph.to(other));
           if (distance <= loopMinLength) {
             loops.add(new HasLoop(other, distance));
           }
         }
         if (loops.size() > 1) {
-          HasLoop max = loops.stream().max(Comparator.comparingDouble(loop -> loop.edge.visits)).get();
+          HasLoop max = loops.stream().max(Comparator.comparingDouble(loop -> visits(loop.edge))).get();
           for (var loop : loops) {
             if (loop != max) {
-              loop.edge.remove();
+              graph.remove(loop.edge);
             }
           }
         }
@@ -276,70 +299,45 @@ public class LoopLineMerger4 {
     }
   }
 
-  private double shortestDistanceAStar(Node start, Node end, Node exclude, double maxLength) {
-    Map<Integer, Double> bestDistance = new HashMap<>();
-    record Candidate(Node node, double length, double minTotalLength) {}
-    PriorityQueue<Candidate> frontier = new PriorityQueue<>(Comparator.comparingDouble(Candidate::minTotalLength));
-    if (exclude != start) {
-      frontier.offer(new Candidate(start, 0, start.distance(end)));
-    }
-    while (!frontier.isEmpty()) {
-      Candidate candidate = frontier.poll();
-      Node current = candidate.node;
-      if (current == end) {
-        return candidate.length;
-      }
-
-      for (var edge : current.getEdges()) {
-        var neighbor = edge.to;
-        if (neighbor != exclude) {
-          double newDist = candidate.length + edge.length;
-          double prev = bestDistance.getOrDefault(neighbor.id, Double.POSITIVE_INFINITY);
-          if (newDist < prev) {
-            bestDistance.put(neighbor.id, newDist);
-            double minTotalLength = newDist + neighbor.distance(end);
-            if (minTotalLength <= maxLength) {
-              frontier.offer(new Candidate(neighbor, newDist, minTotalLength));
-            }
-          }
-        }
-      }
-    }
-    return Double.POSITIVE_INFINITY;
-  }
-
   private void removeShortStubEdges() {
-    PriorityQueue<Edge> toCheck = new PriorityQueue<>(Comparator.comparingDouble(Edge::length));
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
+    // ties go to the lowest half-edge, so the order does not depend on what else is in the graph
+    PriorityQueue<Integer> toCheck = new PriorityQueue<>(
+      Comparator.<Integer>comparingDouble(graph::length).thenComparingInt(h -> h));
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
         if (isShortStubEdge(edge)) {
           toCheck.offer(edge);
         }
       }
     }
     while (!toCheck.isEmpty()) {
-      var edge = toCheck.poll();
-      if (edge.removed) {
+      int edge = toCheck.poll();
+      if (graph.isRemoved(edge)) {
         continue;
       }
       if (isShortStubEdge(edge)) {
-        edge.remove();
+        graph.remove(edge);
       }
-      if (degreeTwoMerge(edge.from) instanceof Edge merged) {
+      int from = graph.from(edge);
+      int to = graph.to(edge);
+      int merged = degreeTwoMerge(from);
+      if (merged >= 0) {
         toCheck.offer(merged);
       }
-      if (edge.from.getEdges().size() == 1) {
-        var other = edge.from.getEdges().getFirst();
+      if (graph.degree(from) == 1) {
+        var other = graph.halfAt(from, 0);
         if (isShortStubEdge(other)) {
           toCheck.offer(other);
         }
       }
-      if (edge.from != edge.to) {
-        if (degreeTwoMerge(edge.to) instanceof Edge merged) {
+      if (from != to) {
+        merged = degreeTwoMerge(to);
+        if (merged >= 0) {
           toCheck.offer(merged);
         }
-        if (edge.to.getEdges().size() == 1) {
-          var other = edge.to.getEdges().getFirst();
+        if (graph.degree(to) == 1) {
+          var other = graph.halfAt(to, 0);
           if (isShortStubEdge(other)) {
             toCheck.offer(other);
           }
@@ -348,87 +346,80 @@ public class LoopLineMerger4 {
     }
   }
 
-  private boolean isShortStubEdge(Edge edge) {
-    return edge != null && !edge.removed && edge.length < stubMinLength &&
-      (edge.from.getEdges().size() == 1 || edge.to.getEdges().size() == 1 || edge.isLoop());
+  private boolean isShortStubEdge(int edge) {
+    return edge >= 0 && !graph.isRemoved(edge) && graph.length(edge) < stubMinLength &&
+      (graph.degree(graph.from(edge)) == 1 || graph.degree(graph.to(edge)) == 1 || graph.isLoop(edge));
   }
 
   private void removeShortEdges() {
-    for (var node : output) {
-      for (var edge : List.copyOf(node.getEdges())) {
-        if (edge.length < minLength) {
-          edge.remove();
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (var edge : edges(node)) {
+        if (graph.length(edge) < minLength) {
+          graph.remove(edge);
         }
       }
     }
   }
 
   private void simplify() {
-    List<Edge> toRemove = new ArrayList<>();
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        if (edge.main) {
-          edge.simplify();
-          if (edge.isCollapsed()) {
-            toRemove.add(edge);
-          }
+    int[] edges = new int[graph.numHalfEdges() / 2];
+    int count = 0;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          edges[count++] = HalfEdgeGraph.edge(edge);
         }
       }
     }
-    toRemove.forEach(Edge::remove);
-  }
-
-  private void removeDuplicatedEdges() {
-    for (var node : output) {
-      List<Edge> toRemove = new ArrayList<>();
-      for (var i = 0; i < node.getEdges().size(); ++i) {
-        Edge a = node.getEdges().get(i);
-        for (var j = i + 1; j < node.getEdges().size(); ++j) {
-          Edge b = node.getEdges().get(j);
-          if (b.to == a.to && a.coordinates.equals(b.coordinates)) {
-            toRemove.add(b);
-          }
-        }
-      }
-      for (var edge : toRemove) {
-        edge.remove();
+    graph.simplify(edges, count, tolerance);
+    for (int i = 0; i < count; i++) {
+      if (graph.isCollapsed(edges[i] * 2)) {
+        graph.remove(edges[i] * 2);
       }
     }
   }
 
   private void removeByVisits() {
-    PriorityQueue<Edge> toCheck = new PriorityQueue<>(Comparator.comparingDouble(Edge::visits));
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        if (edge.visits < minVisits) {
+    // ties go to the lowest half-edge, so the order does not depend on what else is in the graph
+    PriorityQueue<Integer> toCheck = new PriorityQueue<>(
+      Comparator.<Integer>comparingDouble(this::visits).thenComparingInt(h -> h));
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (visits(edge) < minVisits) {
           toCheck.offer(edge);
         }
       }
     }
     while (!toCheck.isEmpty()) {
-      var edge = toCheck.poll();
-      if (edge.removed) {
+      int edge = toCheck.poll();
+      if (graph.isRemoved(edge)) {
         continue;
       }
-      if (edge.visits < minVisits) {
-        edge.remove();
+      if (visits(edge) < minVisits) {
+        graph.remove(edge);
       }
-      if (degreeTwoMerge(edge.from) instanceof Edge merged) {
+      int from = graph.from(edge);
+      int to = graph.to(edge);
+      int merged = degreeTwoMerge(from);
+      if (merged >= 0) {
         toCheck.offer(merged);
       }
-      if (edge.from.getEdges().size() == 1) {
-        var other = edge.from.getEdges().getFirst();
-        if (other.visits < minVisits) {
+      if (graph.degree(from) == 1) {
+        var other = graph.halfAt(from, 0);
+        if (visits(other) < minVisits) {
           toCheck.offer(other);
         }
       }
-      if (edge.from != edge.to) {
-        if (degreeTwoMerge(edge.to) instanceof Edge merged) {
+      if (from != to) {
+        merged = degreeTwoMerge(to);
+        if (merged >= 0) {
           toCheck.offer(merged);
         }
-        if (edge.to.getEdges().size() == 1) {
-          var other = edge.to.getEdges().getFirst();
-          if (other.visits < minVisits) {
+        if (graph.degree(to) == 1) {
+          var other = graph.halfAt(to, 0);
+          if (visits(other) < minVisits) {
             toCheck.offer(other);
           }
         }
@@ -439,13 +430,27 @@ public class LoopLineMerger4 {
   /**
    * Processes the added geometries and returns the merged linestrings.
    * <p>
-   * Can be called more than once.
+   * Can be called more than once. All steps after noding run on the connected components of the graph in parallel.
    */
   public List<LineString> getMergedLineStrings() {
-    output.clear();
-    var edges = nodeLines(input);
-    buildNodes(edges);
+    buildGraph();
+    runPerComponent(LoopLineMerger4::runSteps);
 
+    List<LineString> result = new ArrayList<>();
+
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          result.add(lineString(edge));
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private void runSteps() {
     degreeTwoMerge();
 
     if (minVisits > 0) {
@@ -471,7 +476,7 @@ public class LoopLineMerger4 {
 
     if (tolerance >= 0.0) {
       simplify();
-      removeDuplicatedEdges();
+      graph.removeDuplicates();
       degreeTwoMerge();
     }
 
@@ -483,42 +488,219 @@ public class LoopLineMerger4 {
     if (minLength > 0) {
       removeShortEdges();
     }
+  }
 
+  /**
+   * Runs {@code steps} on every group of connected components from {@link HalfEdgeGraph#components} in a merger of
+   * its own, in parallel on the common fork-join pool, and joins the results back into one graph with the same node
+   * ids.
+   * <p>
+   * The steps must only change edges connected to the ones they look at. Since the groups only depend on the graph,
+   * the result is the same however many threads there are.
+   */
+  private void runPerComponent(Consumer<LoopLineMerger4> steps) {
+    int[] component = new int[graph.numNodes()];
+    int numGroups = graph.components(component, COMPONENT_CHUNK_EDGES);
+    if (numGroups <= 1) {
+      steps.accept(this);
+      return;
+    }
+    LoopLineMerger4[] parts = new LoopLineMerger4[numGroups];
+    HalfEdgeGraph.Attributes[] attributes = new HalfEdgeGraph.Attributes[numGroups];
+    for (int group = 0; group < numGroups; group++) {
+      parts[group] = part();
+      attributes[group] = parts[group].columns;
+    }
+    HalfEdgeGraph[] graphs = graph.split(component, numGroups, attributes);
+    for (int group = 0; group < numGroups; group++) {
+      parts[group].graph = graphs[group];
+    }
+    Arrays.stream(parts).parallel().forEach(steps);
+    for (int group = 0; group < numGroups; group++) {
+      graphs[group] = parts[group].graph;
+    }
+    columns.clear(graph.numHalfEdges() / 2);
+    graph = graph.join(graphs, component, columns);
+  }
+
+  /** Returns a merger with the same settings as this one to run steps on part of the graph. */
+  private LoopLineMerger4 part() {
+    LoopLineMerger4 part = new LoopLineMerger4();
+    part.precisionModel = precisionModel;
+    part.factory = factory;
+    part.minLength = minLength;
+    part.loopMinLength = loopMinLength;
+    part.stubMinLength = stubMinLength;
+    part.minVisits = minVisits;
+    part.tolerance = tolerance;
+    part.mergeStrokes = mergeStrokes;
+    part.defaultActiveMinZoom = defaultActiveMinZoom;
+    return part;
+  }
 
-    List<LineString> result = new ArrayList<>();
+  /**
+   * Removes all edges in order of increasing visits, merging degree-two nodes as it goes and, if {@code removeStubs} is
+   * set, removing every stub left hanging, and returns the highest {@code minVisits} threshold at which each noded
+   * input edge survives, indexed by edge id. The same thresholds per way id are then available from
+   * {@link #getThresholdWayIds()} and {@link #getWayIdThresholds()}.
+   * <p>
+   * This gives the result of filtering by visits and then removing stubs at every threshold in one run: the network
+   * for a threshold is the edges whose value is at least that threshold. Edges only removed as stubs get the threshold
+   * of the removal that left them hanging, and stubs in the input are only kept at a threshold of {@code 0}.
+   */
+  public double[] getVisitsThresholds(boolean removeStubs) {
+    buildGraph();
+    int numInputEdges = graph.numHalfEdges() / 2;
 
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        if (edge.main) {
-          result.add(factory.createLineString(edge.coordinates.toArray(Coordinate[]::new)));
+    degreeTwoMerge();
+
+    // ties go to the lowest half-edge, so the thresholds do not depend on the order edges were offered in
+    PriorityQueue<Integer> toCheck = new PriorityQueue<>(
+      Comparator.<Integer>comparingDouble(this::visits).thenComparingInt(h -> h));
+    if (removeStubs) {
+      for (int node = 0; node < graph.numNodes(); node++) {
+        removeStubsAndMerge(node, 0, toCheck);
+      }
+    }
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          toCheck.offer(edge);
+        }
+      }
+    }
+    double level = 0;
+    while (!toCheck.isEmpty()) {
+      int edge = toCheck.poll();
+      // skip edges that were removed or merged into another one since they were offered
+      if (!graph.contains(graph.from(edge), edge)) {
+        continue;
+      }
+      level = Math.max(level, visits(edge));
+      removeAtThreshold(edge, level);
+      int from = graph.from(edge);
+      int to = graph.to(edge);
+      if (removeStubs) {
+        removeStubsAndMerge(from, level, toCheck);
+      } else {
+        offerMerged(degreeTwoMerge(from), toCheck);
+      }
+      if (from != to) {
+        if (removeStubs) {
+          removeStubsAndMerge(to, level, toCheck);
+        } else {
+          offerMerged(degreeTwoMerge(to), toCheck);
         }
       }
     }
 
+    // edges merged into another one survive as long as the edge they became, which always has a higher id
+    for (int edge = graph.numHalfEdges() / 2 - 1; edge >= 0; edge--) {
+      int into = columns.getInt(mergedInto, edge);
+      if (into >= 0) {
+        columns.setDouble(visitsThresholds, edge, columns.getDouble(visitsThresholds, into));
+      }
+    }
+    double[] result = new double[numInputEdges];
+    int[] edges = new int[numInputEdges];
+    for (int edge = 0; edge < numInputEdges; edge++) {
+      result[edge] = columns.getDouble(visitsThresholds, edge);
+      edges[edge] = edge;
+    }
+    // a way split into several edges survives as long as any of them does
+    thresholdWayIds = columns.union(wayIds, edges, numInputEdges);
+    wayIdThresholds = new double[thresholdWayIds.length];
+    Arrays.fill(wayIdThresholds, Double.NEGATIVE_INFINITY);
+    for (int edge = 0; edge < numInputEdges; edge++) {
+      for (int i = 0; i < columns.longSetSize(wayIds, edge); i++) {
+        int index = Arrays.binarySearch(thresholdWayIds, columns.longSetValue(wayIds, edge, i));
+        wayIdThresholds[index] = Math.max(wayIdThresholds[index], result[edge]);
+      }
+    }
     return result;
   }
 
+  /** Returns the sorted ids of the ways of the input edges from the last {@link #getVisitsThresholds}. */
+  public long[] getThresholdWayIds() {
+    return thresholdWayIds;
+  }
+
+  /**
+   * Returns the highest threshold from the last {@link #getVisitsThresholds} at which each way of
+   * {@link #getThresholdWayIds()} survives, at the same index.
+   */
+  public double[] getWayIdThresholds() {
+    return wayIdThresholds;
+  }
+
+  /** Returns the points of edge {@code edge}, such as a noded input edge from {@link #getVisitsThresholds}. */
+  public LineString getEdgeLineString(int edge) {
+    return lineString(edge * 2);
+  }
+
+  private void removeAtThreshold(int edge, double threshold) {
+    columns.setDouble(visitsThresholds, HalfEdgeGraph.edge(edge), threshold);
+    graph.remove(edge);
+  }
+
+  private static void offerMerged(int merged, PriorityQueue<Integer> toCheck) {
+    if (merged >= 0) {
+      toCheck.offer(merged);
+    }
+  }
+
+  /**
+   * Removes the stubs and loops hanging off {@code node} at {@code threshold}, following the chain of nodes they leave
+   * with only one edge, then merges the node where the chain stops if it is left with two edges.
+   */
+  private void removeStubsAndMerge(int node, double threshold, PriorityQueue<Integer> toCheck) {
+    while (true) {
+      int stub = graph.degree(node) == 1 ? graph.halfAt(node, 0) : -1;
+      for (int i = 0; i < graph.degree(node) && stub < 0; i++) {
+        if (graph.isLoop(graph.halfAt(node, i))) {
+          stub = graph.halfAt(node, i);
+        }
+      }
+      if (stub < 0) {
+        offerMerged(degreeTwoMerge(node), toCheck);
+        return;
+      }
+      removeAtThreshold(stub, threshold);
+      node = graph.to(stub);
+    }
+  }
+
   public void process() {
-    output.clear();
-    var edges = nodeLines(input);
-    buildNodes(edges);
+    buildGraph();
     double minAngle = Math.PI / 3; // 60 degrees
-    degreeTwoMerge(minAngle);
+    runPerComponent(part -> part.degreeTwoMerge(minAngle));
     // var nodesToReconnect = findNodesToReconnect(minAngle);
     // for (var node : nodesToReconnect) {
     //   reconnect(node, minAngle);
     // }
   }
 
-  public List<Node> findNodesToReconnect(double minAngle) {
-    List<Node> result = new ArrayList<>();
-    for (var node : output) {
-      var activeEdges = node.getEdges().stream().filter(edge -> edge.active).collect(Collectors.toList());
+  private List<Integer> activeEdges(int node, boolean active) {
+    List<Integer> result = new ArrayList<>();
+    for (int i = 0; i < graph.degree(node); i++) {
+      int edge = graph.halfAt(node, i);
+      if (isActive(edge) == active) {
+        result.add(edge);
+      }
+    }
+    return result;
+  }
+
+  public List<Integer> findNodesToReconnect(double minAngle) {
+    List<Integer> result = new ArrayList<>();
+    for (int node = 0; node < graph.numNodes(); node++) {
+      var activeEdges = activeEdges(node, true);
       if (activeEdges.size() == 1) {
         // node with one active edge, dead-end
         result.add(node);
       }
-      else if (activeEdges.size() == 2 && activeEdges.getFirst().angleTo(activeEdges.getLast()) <= minAngle) {
+      else if (activeEdges.size() == 2 && angleTo(activeEdges.getFirst(), activeEdges.getLast()) <= minAngle) {
         // node with two active edges ending in sharp angle
         result.add(node);
       }
@@ -526,271 +708,290 @@ public class LoopLineMerger4 {
     return result;
   }
 
-  public void reconnect(Node startNode, double minAngle) {
-    Node node = startNode;
+  public void reconnect(int startNode, double minAngle) {
+    int node = startNode;
 
     while (true) {
-      var activeEdges = node.getEdges().stream().filter(edge -> edge.active).collect(Collectors.toList());
+      var activeEdges = activeEdges(node, true);
       if (activeEdges.size() > 2) {
         break;
       }
-      if (activeEdges.size() == 2 && activeEdges.getFirst().angleTo(activeEdges.getLast()) > minAngle) {
+      if (activeEdges.size() == 2 && angleTo(activeEdges.getFirst(), activeEdges.getLast()) > minAngle) {
         break;
       }
-      var inactiveEdges = node.getEdges().stream().filter(edge -> !edge.active).collect(Collectors.toList());
+      var inactiveEdges = activeEdges(node, false);
       if (inactiveEdges.size() == 0) {
         break;
       }
-      inactiveEdges.sort(Comparator.comparingDouble(edge -> edge.visits));
+      inactiveEdges.sort(Comparator.comparingDouble(this::visits));
       var nextEdge = inactiveEdges.getLast();
-      nextEdge.activate();
-      node = nextEdge.to;
+      columns.setInt(active, HalfEdgeGraph.edge(nextEdge), 1);
+      node = graph.to(nextEdge);
     }
   }
 
-  public List<Long> getMergedWayIds() {
-    Set<Long> result = new HashSet<>();
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        result.addAll(edge.wayIds);
+  /** Returns the sorted ids of the ways that make up the edges left in the graph. */
+  public long[] getMergedWayIds() {
+    int[] edges = new int[graph.numHalfEdges() / 2];
+    int count = 0;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (HalfEdgeGraph.isMain(edge)) {
+          edges[count++] = HalfEdgeGraph.edge(edge);
+        }
       }
     }
-    return new ArrayList<>(result);
+    return columns.union(wayIds, edges, count);
   }
 
-  public List<Long> getActiveWayIds() {
-    Set<Long> result = new HashSet<>();
-    for (var node : output) {
-      for (var edge : node.getEdges()) {
-        if (edge.active) {
-          System.out.println(factory.createLineString(edge.coordinates.toArray(Coordinate[]::new)));
-          result.addAll(edge.wayIds);
+  /** Returns the sorted ids of the ways that make up the active edges left in the graph. */
+  public long[] getActiveWayIds() {
+    int[] edges = new int[graph.numHalfEdges() / 2];
+    int count = 0;
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        if (isActive(edge) && HalfEdgeGraph.isMain(edge)) {
+          edges[count++] = HalfEdgeGraph.edge(edge);
         }
       }
     }
-    return new ArrayList<>(result);
+    return columns.union(wayIds, edges, count);
   }
 
-  private static double length(List<Coordinate> edge) {
-    Coordinate last = null;
-    double length = 0;
-    for (Coordinate coord : edge) {
-      if (last != null) {
-        length += last.distance(coord);
+  /**
+   * Splits the edges left after {@link #getMergedLineStrings()} or {@link #process()} into strokes that continue
+   * through nodes where the angle between two edges is at least {@code minAngle}, and computes the visits and way ids
+   * of each stroke.
+   */
+  public StrokeIndex buildStrokes(double minAngle) {
+    strokes = new StrokeIndex(graph, minAngle, (a, b) -> true);
+    strokeVisits = strokes.sum(edge -> columns.getDouble(visits, edge) * graph.length(edge * 2));
+    strokeWayIdStart = new int[strokes.numStrokes() + 1];
+    long[] ids = new long[16];
+    int count = 0;
+    for (int stroke = 0; stroke < strokes.numStrokes(); stroke++) {
+      int start = count;
+      for (int i = 0; i < strokes.edgeCount(stroke); i++) {
+        int edge = HalfEdgeGraph.edge(strokes.half(stroke, i));
+        for (int j = 0; j < columns.longSetSize(wayIds, edge); j++) {
+          if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+          }
+          ids[count++] = columns.longSetValue(wayIds, edge, j);
+        }
+      }
+      // a way split at several nodes along the stroke is only listed once
+      Arrays.sort(ids, start, count);
+      int unique = start;
+      for (int i = start; i < count; i++) {
+        if (unique == start || ids[i] != ids[unique - 1]) {
+          ids[unique++] = ids[i];
+        }
       }
-      last = coord;
+      count = unique;
+      strokeWayIdStart[stroke + 1] = count;
     }
-    return length;
+    strokeWayIds = Arrays.copyOf(ids, count);
+    return strokes;
   }
 
-  private void buildNodes(List<TaggedCoordinates> edges) {
-    Map<Coordinate, Node> nodes = new HashMap<>();
-    for (var taggedCoordinateSequence : edges) {
-      var coordinateSequence = taggedCoordinateSequence.coordinates;
-      Coordinate first = coordinateSequence.getFirst();
-      Node firstNode = nodes.get(first);
-      if (firstNode == null) {
-        firstNode = new Node(first);
-        nodes.put(first, firstNode);
-        output.add(firstNode);
-      }
-
-      Coordinate last = coordinateSequence.getLast();
-      Node lastNode = nodes.get(last);
-      if (lastNode == null) {
-        lastNode = new Node(last);
-        nodes.put(last, lastNode);
-        output.add(lastNode);
-      }
-
-      double length = length(coordinateSequence);
+  /** Returns the sum of visits times length over the edges of {@code stroke} from the last {@link #buildStrokes}. */
+  public double strokeVisits(int stroke) {
+    return strokeVisits[stroke];
+  }
 
-      boolean active = taggedCoordinateSequence.minZoom <= defaultActiveMinZoom;
+  /** Returns the visits of {@code stroke} averaged over its length. */
+  public double strokeAverageVisits(int stroke) {
+    double length = strokes.length(stroke);
+    return length > 0 ? strokeVisits[stroke] / length : 0;
+  }
 
-      Edge edge = new Edge(firstNode, lastNode, coordinateSequence, length, taggedCoordinateSequence.visits, taggedCoordinateSequence.minZoom, active);
-      edge.wayIds.add(taggedCoordinateSequence.wayId);
-      edge.reversed.wayIds.add(taggedCoordinateSequence.wayId);
-      firstNode.addEdge(edge);
-      if (firstNode != lastNode) {
-        lastNode.addEdge(edge.reversed);
-      }
-    }
+  /** Returns the distinct ids of the ways that {@code stroke} is made of, in ascending order. */
+  public long[] strokeWayIds(int stroke) {
+    return Arrays.copyOfRange(strokeWayIds, strokeWayIdStart[stroke], strokeWayIdStart[stroke + 1]);
   }
 
-  private List<TaggedCoordinates> nodeLines(List<TaggedLineString> input) {
-    Map<Coordinate, Integer> nodeCounts = new HashMap<>();
-    List<TaggedCoordinates> taggedCoords = new ArrayList<>(input.size());
-    for (var taggedLineString : input) {
-      var line = taggedLineString.line;
-      var coordinateSequence = line.getCoordinateSequence();
-      List<Coordinate> snapped = new ArrayList<>();
-      Coordinate last = null;
-      for (int i = 0; i < coordinateSequence.size(); i++) {
-        Coordinate current = new CoordinateXY(coordinateSequence.getX(i), coordinateSequence.getY(i));
-        precisionModel.makePrecise(current);
-        if (last == null || !last.equals(current)) {
-          snapped.add(current);
-          nodeCounts.merge(current, 1, Integer::sum);
-        }
-        last = current;
-      }
-      if (snapped.size() >= 2) {
-        taggedCoords.add(new TaggedCoordinates(snapped, taggedLineString.visits, taggedLineString.minZoom, taggedLineString.wayId));
+  /**
+   * Ranks the strokes from {@link #buildStrokes} by repeatedly removing the stroke with the fewest visits around the
+   * densest remaining mesh, measured by area or by perimeter. Faces are walked on an angle-ordered copy of the graph,
+   * so the graph itself keeps the insertion order the other steps depend on.
+   */
+  public StrokeMesh rankStrokeMesh(double minAngle, boolean byArea) {
+    buildStrokes(minAngle);
+    strokeMesh = new StrokeMesh(graph.angleOrderedCopy(), strokes, strokeVisits, byArea);
+    // a way that is part of several strokes gets the highest rank among them, since it stays visible as long as any
+    // of them does
+    long[] ids = strokeWayIds.clone();
+    Arrays.sort(ids);
+    int unique = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (unique == 0 || ids[i] != ids[unique - 1]) {
+        ids[unique++] = ids[i];
       }
     }
-
-    List<TaggedCoordinates> result = new ArrayList<>(input.size());
-    for (var taggedCoordinateSequence : taggedCoords) {
-      var coordinateSequence = taggedCoordinateSequence.coordinates;
-      int start = 0;
-      for (int i = 0; i < coordinateSequence.size(); i++) {
-        Coordinate coordinate = coordinateSequence.get(i);
-        if (i > 0 && i < coordinateSequence.size() - 1 && nodeCounts.get(coordinate) > 1) {
-          result.add(new TaggedCoordinates(coordinateSequence.subList(start, i + 1), taggedCoordinateSequence.visits, taggedCoordinateSequence.minZoom, taggedCoordinateSequence.wayId));
-          start = i;
-        }
-      }
-      if (start < coordinateSequence.size()) {
-        var sublist = start == 0 ? coordinateSequence : coordinateSequence.subList(start, coordinateSequence.size());
-        result.add(new TaggedCoordinates(sublist, taggedCoordinateSequence.visits, taggedCoordinateSequence.minZoom, taggedCoordinateSequence.wayId));
+    rankWayIds = Arrays.copyOf(ids, unique);
+    wayIdRanks = new int[unique];
+    Arrays.fill(wayIdRanks, -1);
+    for (int stroke = 0; stroke < strokes.numStrokes(); stroke++) {
+      int rank = strokeMesh.strokeRank(stroke);
+      for (int i = strokeWayIdStart[stroke]; i < strokeWayIdStart[stroke + 1]; i++) {
+        int index = Arrays.binarySearch(rankWayIds, strokeWayIds[i]);
+        wayIdRanks[index] = Math.max(wayIdRanks[index], rank);
       }
     }
-    return result;
+    return strokeMesh;
   }
 
-  private class Node {
-    final int id = numNodes++;
-    final List<Edge> edge = new ArrayList<>();
-    Coordinate coordinate;
+  /** Returns the sorted ids of the ways of the strokes from the last {@link #rankStrokeMesh}. */
+  public long[] getRankWayIds() {
+    return rankWayIds;
+  }
 
-    Node(Coordinate coordinate) {
-      this.coordinate = coordinate;
+  /**
+   * Returns the elimination rank from the last {@link #rankStrokeMesh} of each way of {@link #getRankWayIds()}, at the
+   * same index, out of {@link StrokeMesh#numRanks()}. A way that is part of several strokes gets the highest rank
+   * among them.
+   */
+  public int[] getWayIdRanks() {
+    return wayIdRanks;
+  }
+
+  private LineString lineString(int edge) {
+    Coordinate[] coordinates = new Coordinate[graph.numPoints(edge)];
+    for (int i = 0; i < coordinates.length; i++) {
+      coordinates[i] = new CoordinateXY(graph.x(edge, i), graph.y(edge, i));
     }
+    return factory.createLineString(coordinates);
+  }
 
-    void addEdge(Edge edge) {
-      for (Edge other : this.edge) {
-        if (other.coordinates.equals(edge.coordinates)) {
-          return;
+  /**
+   * Starts from a copy-on-write copy of the noded graph from an earlier call, or else builds the graph from the noded
+   * input, or reads it from the graph file if it was built from the same input, and keeps it for the next call.
+   */
+  private void buildGraph() {
+    if (noded != null) {
+      columns.copyFrom(nodedColumns);
+      graph = noded.copy(columns);
+      return;
+    }
+    try {
+      long[] header = graphFile != null ? graphFileHeader() : null;
+      boolean read = false;
+      if (graphFile != null && Files.exists(graphFile)) {
+        try (var in = new ArrayFile.Reader(graphFile)) {
+          if (readsHeader(in, header)) {
+            graph = HalfEdgeGraph.read(in, columns);
+            columns.read(in);
+            read = true;
+          }
         }
       }
-      this.edge.add(edge);
-    }
-
-    List<Edge> getEdges() {
-      return edge;
-    }
-
-    void removeEdge(Edge edge) {
-      this.edge.remove(edge);
-    }
-
-    @Override
-    public String toString() {
-      return "Node{" + id + ": " + edge + '}';
-    }
-
-    double distance(Node end) {
-      return coordinate.distance(end.coordinate);
+      if (!read) {
+        buildNodes(nodeLines(input));
+        if (graphFile != null) {
+          try (var out = new ArrayFile.Writer(graphFile)) {
+            for (long value : header) {
+              out.writeLong(value);
+            }
+            graph.write(out);
+            columns.write(out, graph.numHalfEdges() / 2);
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+    nodedColumns = columns.copy();
+    noded = graph.copy(nodedColumns);
   }
 
-  private class Edge {
-
-    final int id;
-    final Node from;
-    final Node to;
-    final double length;
-    final double visits;
-    final int minZoom;
-    final boolean main;
-    boolean active;
-    boolean removed;
-
-    Edge reversed;
-    List<Coordinate> coordinates;
 
-    final List<Long> wayIds = new ArrayList<>();
-
-
-    private Edge(Node from, Node to, List<Coordinate> coordinateSequence, double length, double visits, int minZoom, boolean active) {
-      this(numEdges, from, to, length, visits, minZoom, active, coordinateSequence, true, null);
-      reversed = new Edge(numEdges, to, from, length, visits, minZoom, active, coordinateSequence.reversed(), false, this);
-      numEdges++;
-    }
-
-    private Edge(int id, Node from, Node to, double length, double visits, int minZoom, boolean active, List<Coordinate> coordinates, boolean main, Edge reversed) {
-      this.id = id;
-      this.from = from;
-      this.to = to;
-      this.length = length;
-      this.visits = visits;
-      this.minZoom = minZoom;
-      this.coordinates = coordinates;
-      this.main = main;
-      this.reversed = reversed;
-      this.active = active;
-    }
-
-    void remove() {
-      if (!removed) {
-        from.removeEdge(this);
-        to.removeEdge(reversed);
-        removed = true;
+  /**
+   * Returns what the graph file starts with: the number of input lines, a fingerprint of their points and attributes
+   * in order, the scale of the precision model and the default active min zoom.
+   */
+  private long[] graphFileHeader() {
+    long fingerprint = 0;
+    for (var line : input) {
+      var sequence = line.line().getCoordinateSequence();
+      long hash = sequence.size();
+      for (int i = 0; i < sequence.size(); i++) {
+        hash = Hashing.mix(hash * 31 + Double.doubleToLongBits(sequence.getX(i)));
+        hash = Hashing.mix(hash * 31 + Double.doubleToLongBits(sequence.getY(i)));
+      }
+      hash = Hashing.mix(hash * 31 + Double.doubleToLongBits(line.visits()));
+      hash = Hashing.mix(hash * 31 + line.minZoom());
+      hash = Hashing.mix(hash * 31 + line.wayId());
+      fingerprint = fingerprint * 0x9E3779B97F4A7C15L + hash;
+    }
+    return new long[]{input.size(), fingerprint, Double.doubleToLongBits(precisionModel.getScale()),
+      defaultActiveMinZoom};
+  }
+
+  /** Returns true if {@code in} starts with {@code header}, and false if it differs or the file is shorter. */
+  private static boolean readsHeader(ArrayFile.Reader in, long[] header) throws IOException {
+    try {
+      for (long value : header) {
+        if (in.readLong() != value) {
+          return false;
+        }
       }
+      return true;
+    } catch (EOFException e) {
+      return false;
     }
+  }
 
-    void activate() {
-      active = true;
-      reversed.active = true;
-    }
-
-    void deactivate() {
-      active = false;
-      reversed.active = false;
-    }
-
-    double angleTo(Edge other) {
-      assert from.equals(other.from);
-      assert coordinates.size() >= 2;
-
-      double angle = Angle.angle(coordinates.get(0), coordinates.get(1));
-      double angleOther = Angle.angle(other.coordinates.get(0), other.coordinates.get(1));
-
-      return Math.abs(Angle.normalize(angle - angleOther));
-    }
-
-    double length() {
-      return length;
-    }
-
-    double visits() {
-      return visits;
-    }
-
-    void simplify() {
-      var geometry = GeoUtils.JTS_FACTORY.createLineString(coordinates.toArray(Coordinate[]::new));
-      var simplifiedGeometry = DouglasPeuckerSimplifier.simplify(geometry, tolerance);
-      if (simplifiedGeometry instanceof LineString line) {
-        coordinates = Arrays.asList(line.getCoordinates());
-        if (reversed != null) {
-          reversed.coordinates = coordinates.reversed();
-        }
+  private void buildNodes(NodedLines lines) {
+    columns.clear(lines.numPieces());
+    graph = new HalfEdgeGraph(false, columns);
+    int[] nodeIds = new int[lines.numVertices()];
+    Arrays.fill(nodeIds, -1);
+    for (int piece = 0; piece < lines.numPieces(); piece++) {
+      int firstVertex = lines.firstVertex(piece);
+      if (nodeIds[firstVertex] < 0) {
+        nodeIds[firstVertex] = graph.addNode(lines.vertexX(firstVertex), lines.vertexY(firstVertex));
+      }
+      int lastVertex = lines.lastVertex(piece);
+      if (nodeIds[lastVertex] < 0) {
+        nodeIds[lastVertex] = graph.addNode(lines.vertexX(lastVertex), lines.vertexY(lastVertex));
       }
+      int edge = HalfEdgeGraph.edge(graph.addEdge(nodeIds[firstVertex], nodeIds[lastVertex], lines.xy(),
+        lines.pointOffset(piece), lines.numPoints(piece), lines.length(piece)));
+      var line = input.get(lines.id(piece));
+      columns.setDouble(visits, edge, line.visits());
+      columns.setInt(minZooms, edge, line.minZoom());
+      columns.setInt(active, edge, line.minZoom() <= defaultActiveMinZoom ? 1 : 0);
+      columns.setLongSet(wayIds, edge, line.wayId());
+      columns.setInt(mergedInto, edge, -1);
     }
+    graph.buildAdjacency();
+  }
 
-    boolean isCollapsed() {
-      return coordinates.size() < 2 ||
-        (coordinates.size() == 2 && coordinates.getFirst().equals(coordinates.getLast()));
+  private NodedLines nodeLines(List<TaggedLineString> input) {
+    var lines = new NodedLines(precisionModel, input.size());
+    for (int i = 0; i < input.size(); i++) {
+      lines.add(i, input.get(i).line().getCoordinateSequence());
     }
+    lines.node();
+    return lines;
+  }
+
+  /** Also remembers which edge each joined edge became, so thresholds can be passed back to the input edges. */
+  private class TaggedColumns extends EdgeColumns {
 
-    boolean isLoop() {
-      return from == to;
+    TaggedColumns() {
+      super(edge -> graph.length(edge * 2));
     }
 
     @Override
-    public String toString() {
-      return "Edge{" + from.id + "->" + to.id + (main ? "" : "(R)") + ": [" + coordinates.getFirst() + ".." +
-        coordinates.getLast() + "], length=" + length + ", visits=" + visits + ", minZoom=" + minZoom + '}';
+    public void merged(int c, int a, int b) {
+      super.merged(c, a, b);
+      setInt(mergedInto, c, -1);
+      setInt(mergedInto, a, c);
+      setInt(mergedInto, b, c);
     }
   }
-}
\ No newline at end of file
+}
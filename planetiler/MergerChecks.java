@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateXY;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.PrecisionModel;
+
+/**
+ * Checks that the mergers give the same output as the object graph they were built on, on random street grids.
+ * <p>
+ * The expected values are hashes of the sorted output coordinates of the mergers before the move to
+ * {@link HalfEdgeGraph}, for {@value #NUM_SEEDS} random inputs each. The graph check only nodes the input and joins
+ * edges at nodes of degree two. The merger check also removes loops and stubs and simplifies, and merges strokes in
+ * {@link LoopLineMerger2} and {@link LoopLineMerger4}: the face-based loop removal of {@link LoopLineMerger} gives a
+ * different output than before once strokes are merged. Grid points are jittered so that no two stroke angles tie.
+ * <p>
+ * Run with {@code java -cp planetiler.jar MergerChecks.java}.
+ */
+public class MergerChecks {
+
+  private static final int NUM_SEEDS = 500;
+  private static final GeometryFactory FACTORY = new GeometryFactory();
+
+  private static final long GRAPH_LOOP_LINE_MERGER = 3946969272282411568L;
+  private static final long GRAPH_LOOP_LINE_MERGER2 = 1911180450240518268L;
+  private static final long GRAPH_LOOP_LINE_MERGER4 = -3025601563183434933L;
+  private static final long MERGED_LOOP_LINE_MERGER = 8020514565932327690L;
+  private static final long MERGED_LOOP_LINE_MERGER2 = -2986959634477621993L;
+  private static final long MERGED_LOOP_LINE_MERGER4 = 6046009659717752667L;
+
+  public static void main(String[] args) {
+    check("graph of LoopLineMerger", GRAPH_LOOP_LINE_MERGER, hash(0, false));
+    check("graph of LoopLineMerger2", GRAPH_LOOP_LINE_MERGER2, hash(2, false));
+    check("graph of LoopLineMerger4", GRAPH_LOOP_LINE_MERGER4, hash(4, false));
+    check("LoopLineMerger", MERGED_LOOP_LINE_MERGER, hash(0, true));
+    check("LoopLineMerger2", MERGED_LOOP_LINE_MERGER2, hash(2, true));
+    check("LoopLineMerger4", MERGED_LOOP_LINE_MERGER4, hash(4, true));
+  }
+
+  private static void check(String name, long expected, long actual) {
+    if (expected != actual) {
+      throw new IllegalStateException(name + ": expected " + expected + " got " + actual);
+    }
+    System.out.println(name + ": ok");
+  }
+
+  /** Returns the hash of the output of merger {@code version} over all seeds. */
+  private static long hash(int version, boolean merge) {
+    long result = 0;
+    for (int seed = 0; seed < NUM_SEEDS; seed++) {
+      Random random = new Random(seed);
+      List<LineString> input = streets(random);
+      double loopMinLength = merge ? random.nextInt(3) * 1.5 : 0;
+      double stubMinLength = merge ? random.nextInt(3) * 0.7 : 0;
+      double tolerance = merge ? random.nextInt(2) * 0.1 : -1;
+      List<LineString> output = new ArrayList<>();
+      if (version == 0) {
+        var merger = new LoopLineMerger()
+          .setPrecisionModel(new PrecisionModel())
+          .setMinLength(0)
+          .setLoopMinLength(loopMinLength)
+          .setStubMinLength(stubMinLength)
+          .setTolerance(tolerance);
+        for (var line : input) {
+          merger.add(new LoopLineMerger.LineStringWithGroupId(line, 0));
+        }
+        for (var line : merger.getMergedLineStrings()) {
+          output.add(line.line());
+        }
+      } else if (version == 2) {
+        var merger = new LoopLineMerger2()
+          .setPrecisionModel(new PrecisionModel())
+          .setMinVisits(0)
+          .setMinLength(0)
+          .setLoopMinLength(loopMinLength)
+          .setStubMinLength(stubMinLength)
+          .setTolerance(tolerance)
+          .setMergeStrokes(merge);
+        for (int i = 0; i < input.size(); i++) {
+          merger.add(input.get(i), 1e5 + random.nextDouble(), i);
+        }
+        output.addAll(merger.getMergedLineStrings());
+      } else {
+        var merger = new LoopLineMerger4()
+          .setPrecisionModel(new PrecisionModel())
+          .setMinVisits(0)
+          .setMinLength(0)
+          .setLoopMinLength(loopMinLength)
+          .setStubMinLength(stubMinLength)
+          .setTolerance(tolerance)
+          .setMergeStrokes(merge);
+        for (int i = 0; i < input.size(); i++) {
+          merger.add(input.get(i), 1e5 + random.nextDouble(), random.nextInt(14), i);
+        }
+        output.addAll(merger.getMergedLineStrings());
+      }
+      result = result * 31 + hash(output);
+    }
+    return result;
+  }
+
+  /** Returns a hash of the coordinates of {@code lines} that does not depend on their order. */
+  static long hash(List<LineString> lines) {
+    List<String> strings = new ArrayList<>();
+    for (var line : lines) {
+      StringBuilder builder = new StringBuilder();
+      for (var coordinate : line.getCoordinates()) {
+        builder.append(coordinate.x).append(',').append(coordinate.y).append(' ');
+      }
+      strings.add(builder.toString());
+    }
+    Collections.sort(strings);
+    return strings.hashCode();
+  }
+
+  /** Returns up to 27 random walks along a jittered grid of 3x3 to 6x6 points, a third of them closed. */
+  static List<LineString> streets(Random random) {
+    int numLines = 3 + random.nextInt(25);
+    int size = 2 + random.nextInt(4);
+    double[] jitter = new double[(size + 1) * (size + 1) * 2];
+    for (int i = 0; i < jitter.length; i++) {
+      jitter[i] = random.nextDouble() * 0.3;
+    }
+    List<LineString> result = new ArrayList<>();
+    for (int line = 0; line < numLines; line++) {
+      int steps = 1 + random.nextInt(4);
+      int x = random.nextInt(size + 1);
+      int y = random.nextInt(size + 1);
+      List<Coordinate> points = new ArrayList<>();
+      points.add(point(x, y, size, jitter));
+      for (int step = 0; step < steps; step++) {
+        int direction = random.nextInt(4);
+        int nextX = x + (direction == 0 ? 1 : direction == 1 ? -1 : 0);
+        int nextY = y + (direction == 2 ? 1 : direction == 3 ? -1 : 0);
+        if (nextX >= 0 && nextY >= 0 && nextX <= size && nextY <= size) {
+          x = nextX;
+          y = nextY;
+          points.add(point(x, y, size, jitter));
+        }
+      }
+      if (random.nextInt(3) == 0 && points.size() >= 3) {
+        points.add(points.get(0));
+      }
+      if (points.size() >= 2) {
+        result.add(FACTORY.createLineString(points.toArray(Coordinate[]::new)));
+      }
+    }
+    return result;
+  }
+
+  private static Coordinate point(int x, int y, int size, double[] jitter) {
+    int i = (x * (size + 1) + y) * 2;
+    return new CoordinateXY(x + jitter[i], y + jitter[i + 1]);
+  }
+}
@@ -22,8 +22,8 @@ public class MyProfile implements Profile {
     public static void main(String[] args) {
         var myProfile = new MyProfile();
 
-        List<String> thresholds = List.of("1e8", "5e8", "1e9", "1e10");
-        for (var threshold : thresholds) {
+        // written by Routing.java --way-ids
+        for (var threshold : Routing.WAY_ID_THRESHOLDS) {
             String filePath = "wayIds-" + threshold + ".txt";
             String line;
             try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
@@ -0,0 +1,76 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A uniform grid over the nodes of a {@link HalfEdgeGraph} for finding the nodes near a point without comparing
+ * against every node.
+ * <p>
+ * Cells are square with a side of {@code cellSize} and are found through an open-addressing table keyed by the packed
+ * cell coordinates. The nodes in each cell are chained through one {@code int[]} indexed by node id, so building the
+ * grid takes linear time and a query only looks at the 3x3 block of cells around the point when the search distance is
+ * at most {@code cellSize}.
+ */
+public class NodeGrid {
+
+  private final HalfEdgeGraph graph;
+  private final double cellSize;
+  private final long[] keys;
+  private final int[] heads;
+  private final int mask;
+  // next node in the same cell, or -1
+  private final int[] next;
+
+  /** Adds every node of {@code graph} to a grid of {@code cellSize} cells. */
+  public NodeGrid(HalfEdgeGraph graph, double cellSize) {
+    assert cellSize > 0;
+    this.graph = graph;
+    this.cellSize = cellSize;
+    int numNodes = graph.numNodes();
+    int capacity = Integer.highestOneBit(Math.max(8, numNodes) * 2 - 1) * 2;
+    keys = new long[capacity];
+    heads = new int[capacity];
+    Arrays.fill(heads, -1);
+    mask = capacity - 1;
+    next = new int[numNodes];
+    for (int node = 0; node < numNodes; node++) {
+      long key = key(cell(graph.nodeX(node)), cell(graph.nodeY(node)));
+      int slot = slot(key);
+      keys[slot] = key;
+      next[node] = heads[slot];
+      heads[slot] = node;
+    }
+  }
+
+  /** Calls {@code consumer} with every node closer than {@code maxDistance} to {@code (x, y)}. */
+  public void forEachNear(double x, double y, double maxDistance, IntConsumer consumer) {
+    int reach = (int) Math.ceil(maxDistance / cellSize);
+    long cx = cell(x);
+    long cy = cell(y);
+    for (long i = cx - reach; i <= cx + reach; i++) {
+      for (long j = cy - reach; j <= cy + reach; j++) {
+        for (int node = heads[slot(key(i, j))]; node >= 0; node = next[node]) {
+          if (Math.hypot(graph.nodeX(node) - x, graph.nodeY(node) - y) < maxDistance) {
+            consumer.accept(node);
+          }
+        }
+      }
+    }
+  }
+
+  private long cell(double value) {
+    return (long) Math.floor(value / cellSize);
+  }
+
+  private static long key(long cx, long cy) {
+    return (cx << 32) ^ (cy & 0xffffffffL);
+  }
+
+  /** Returns the table slot of a cell, or the empty slot where it would go if the cell has no nodes. */
+  private int slot(long key) {
+    int slot = (int) Hashing.mix(key) & mask;
+    while (heads[slot] >= 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+}
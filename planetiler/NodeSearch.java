@@ -0,0 +1,145 @@
+import java.util.Arrays;
+
+/**
+ * A reusable bounded shortest-path search over the nodes of a {@link HalfEdgeGraph}.
+ * <p>
+ * One {@link #run} finds the distance from a source node to every node within a maximum distance, so callers that
+ * need the distance to several targets search once instead of once per target. Distances, heap positions, and the
+ * heap itself live in primitive arrays indexed by node id that are kept between runs: each run bumps a generation
+ * number instead of clearing them, so repeated searches allocate nothing once the arrays are large enough.
+ */
+public class NodeSearch {
+
+  private final HalfEdgeGraph graph;
+  private int generation = 0;
+  private int[] stamp = new int[0];
+  private double[] distance = new double[0];
+  // position of each node in the heap, or -1 once its distance is final
+  private int[] heapIndex = new int[0];
+  private int[] heap = new int[0];
+  private int heapSize = 0;
+
+  public NodeSearch(HalfEdgeGraph graph) {
+    this.graph = graph;
+  }
+
+  /**
+   * Finds the shortest distance along edges from {@code source} to every node that is at most {@code maxDistance}
+   * away, without passing through {@code exclude}.
+   */
+  public void run(int source, int exclude, double maxDistance) {
+    int numNodes = graph.numNodes();
+    if (stamp.length < numNodes) {
+      stamp = new int[numNodes];
+      distance = new double[numNodes];
+      heapIndex = new int[numNodes];
+      heap = new int[numNodes];
+      generation = 0;
+    }
+    if (++generation == 0) {
+      Arrays.fill(stamp, 0);
+      generation = 1;
+    }
+    heapSize = 0;
+    if (source == exclude) {
+      return;
+    }
+    stamp[source] = generation;
+    distance[source] = 0;
+    push(source);
+    while (heapSize > 0) {
+      int node = pop();
+      double nodeDistance = distance[node];
+      if (nodeDistance > maxDistance) {
+        // leave it unreached so distance() reports it as too far
+        stamp[node] = 0;
+        break;
+      }
+      for (int i = 0; i < graph.degree(node); i++) {
+        int edge = graph.halfAt(node, i);
+        int neighbor = graph.to(edge);
+        if (neighbor == exclude) {
+          continue;
+        }
+        double newDistance = nodeDistance + graph.length(edge);
+        if (stamp[neighbor] != generation) {
+          stamp[neighbor] = generation;
+          distance[neighbor] = newDistance;
+          push(neighbor);
+        } else if (heapIndex[neighbor] >= 0 && newDistance < distance[neighbor]) {
+          distance[neighbor] = newDistance;
+          siftUp(heapIndex[neighbor]);
+        }
+      }
+    }
+    // anything still queued was not proven to be within range
+    while (heapSize > 0) {
+      stamp[heap[--heapSize]] = 0;
+    }
+  }
+
+  /**
+   * Returns the distance from the source of the last {@link #run} to {@code node}, or {@link Double#POSITIVE_INFINITY}
+   * if it is farther than the maximum distance or not reachable.
+   */
+  public double distance(int node) {
+    return node < stamp.length && stamp[node] == generation ? distance[node] : Double.POSITIVE_INFINITY;
+  }
+
+  private void push(int node) {
+    heap[heapSize] = node;
+    heapIndex[node] = heapSize;
+    siftUp(heapSize++);
+  }
+
+  private int pop() {
+    int result = heap[0];
+    heapIndex[result] = -1;
+    int last = heap[--heapSize];
+    if (heapSize > 0) {
+      heap[0] = last;
+      heapIndex[last] = 0;
+      siftDown(0);
+    }
+    return result;
+  }
+
+  private void siftUp(int index) {
+    int node = heap[index];
+    double key = distance[node];
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      int parentNode = heap[parent];
+      if (distance[parentNode] <= key) {
+        break;
+      }
+      heap[index] = parentNode;
+      heapIndex[parentNode] = index;
+      index = parent;
+    }
+    heap[index] = node;
+    heapIndex[node] = index;
+  }
+
+  private void siftDown(int index) {
+    int node = heap[index];
+    double key = distance[node];
+    while (true) {
+      int child = index * 2 + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && distance[heap[child + 1]] < distance[heap[child]]) {
+        child++;
+      }
+      if (distance[heap[child]] >= key) {
+        break;
+      }
+      heap[index] = heap[child];
+      heapIndex[heap[index]] = index;
+      index = child;
+    }
+    heap[index] = node;
+    heapIndex[node] = index;
+  }
+}
@@ -0,0 +1,375 @@
+import java.util.Arrays;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.PrecisionModel;
+
+/**
+ * Input lines snapped to a precision model and split at every vertex they share with another line, stored in packed
+ * primitive buffers.
+ * <p>
+ * Lines are read straight from their {@link CoordinateSequence}. Snapped points are appended to one coordinate buffer
+ * along with their vertex id in a {@link VertexIndex}, repeated points are dropped, and lines left with fewer than two
+ * points are skipped. {@link #node()} then cuts every line at the interior points whose vertex was added more than
+ * once. A piece is a range of the coordinate buffer that shares its end points with its neighbours, so splitting copies
+ * nothing and no object is allocated per vertex.
+ */
+public class NodedLines {
+
+  private final PrecisionModel precisionModel;
+  private final VertexIndex vertices;
+  private double[] xy;
+  private int[] vertexOf;
+  private int numPoints = 0;
+  private int[] lineStart;
+  private int[] lineId;
+  private int numLines = 0;
+  private int[] pieceStart = new int[0];
+  private int[] pieceEnd = new int[0];
+  private int[] pieceLine = new int[0];
+  private double[] pieceLength = new double[0];
+  private int numPieces = 0;
+  private int[] insertedSegment = new int[0];
+  private double[] insertedXy = new double[0];
+  private int numInserted = 0;
+
+  /** Creates an empty set of lines with room for {@code expectedLines} two-point lines before it needs to grow. */
+  public NodedLines(PrecisionModel precisionModel, int expectedLines) {
+    this.precisionModel = precisionModel;
+    int capacity = Math.max(8, expectedLines);
+    vertices = new VertexIndex(capacity * 2);
+    xy = new double[capacity * 4];
+    vertexOf = new int[capacity * 2];
+    lineStart = new int[capacity + 1];
+    lineId = new int[capacity];
+  }
+
+  /** Snaps and adds the points of {@code sequence} as the line with caller-defined id {@code id}. */
+  public void add(int id, CoordinateSequence sequence) {
+    int start = numPoints;
+    if (numPoints + sequence.size() > vertexOf.length) {
+      int capacity = Math.max(numPoints + sequence.size(), vertexOf.length * 2);
+      xy = Arrays.copyOf(xy, capacity * 2);
+      vertexOf = Arrays.copyOf(vertexOf, capacity);
+    }
+    for (int i = 0; i < sequence.size(); i++) {
+      double x = precisionModel.makePrecise(sequence.getX(i));
+      double y = precisionModel.makePrecise(sequence.getY(i));
+      if (numPoints == start || xy[numPoints * 2 - 2] != x || xy[numPoints * 2 - 1] != y) {
+        xy[numPoints * 2] = x;
+        xy[numPoints * 2 + 1] = y;
+        vertexOf[numPoints++] = vertices.add(x, y);
+      }
+    }
+    if (numPoints - start < 2) {
+      numPoints = start;
+      return;
+    }
+    if (numLines + 1 >= lineStart.length) {
+      lineStart = Arrays.copyOf(lineStart, lineStart.length * 2);
+      lineId = Arrays.copyOf(lineId, lineStart.length);
+    }
+    lineStart[numLines] = start;
+    lineId[numLines++] = id;
+  }
+
+  /**
+   * Adds a vertex to both segments wherever two segments cross or touch away from their vertices, snapped to the
+   * precision model, so that {@link #node()} also splits lines that meet in the middle of a segment.
+   * <p>
+   * Segments are bucketed in a uniform grid with cells about as large as an average segment. Each pair of segments
+   * sharing a cell is tested in only one cell: the one holding the lower left corner where their bounding boxes
+   * overlap. The work therefore grows with the number of segments and crossings rather than with their square. This is
+   * a single round of snap rounding: crossings are moved to the grid and inserted into both segments, but new crossings
+   * caused by that move are not searched for again.
+   */
+  public void addIntersections() {
+    lineStart[numLines] = numPoints;
+    int numSegments = numPoints - numLines;
+    if (numSegments < 2) {
+      return;
+    }
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    double totalLength = 0;
+    int[] segments = new int[numSegments];
+    int n = 0;
+    for (int line = 0; line < numLines; line++) {
+      for (int i = lineStart[line]; i < lineStart[line + 1]; i++) {
+        minX = Math.min(minX, xy[i * 2]);
+        minY = Math.min(minY, xy[i * 2 + 1]);
+        maxX = Math.max(maxX, xy[i * 2]);
+        maxY = Math.max(maxY, xy[i * 2 + 1]);
+        if (i < lineStart[line + 1] - 1) {
+          segments[n++] = i;
+          totalLength += Math.hypot(xy[i * 2 + 2] - xy[i * 2], xy[i * 2 + 3] - xy[i * 2 + 1]);
+        }
+      }
+    }
+    double width = maxX - minX;
+    double height = maxY - minY;
+    // at most about 8 cells per segment, however the segments are spread out
+    double cellSize = Math.max(totalLength / numSegments,
+      Math.max(Math.sqrt(width * height / (4.0 * numSegments)), Math.max(width, height) / (2.0 * numSegments)));
+    int nx = (int) (width / cellSize) + 1;
+    int ny = (int) (height / cellSize) + 1;
+
+    // bucket segments by the cells their bounding box covers
+    int[] cellStart = new int[nx * ny + 1];
+    for (int pass = 0; pass < 2; pass++) {
+      int[] cellSegments = pass == 0 ? null : new int[cellStart[nx * ny]];
+      int[] fill = pass == 0 ? null : Arrays.copyOf(cellStart, nx * ny);
+      for (int segment : segments) {
+        int x0 = cell(Math.min(xy[segment * 2], xy[segment * 2 + 2]), minX, cellSize, nx);
+        int x1 = cell(Math.max(xy[segment * 2], xy[segment * 2 + 2]), minX, cellSize, nx);
+        int y0 = cell(Math.min(xy[segment * 2 + 1], xy[segment * 2 + 3]), minY, cellSize, ny);
+        int y1 = cell(Math.max(xy[segment * 2 + 1], xy[segment * 2 + 3]), minY, cellSize, ny);
+        for (int y = y0; y <= y1; y++) {
+          for (int x = x0; x <= x1; x++) {
+            if (pass == 0) {
+              cellStart[y * nx + x + 1]++;
+            } else {
+              cellSegments[fill[y * nx + x]++] = segment;
+            }
+          }
+        }
+      }
+      if (pass == 0) {
+        for (int cell = 0; cell < nx * ny; cell++) {
+          cellStart[cell + 1] += cellStart[cell];
+        }
+      } else {
+        for (int cell = 0; cell < nx * ny; cell++) {
+          for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            for (int j = i + 1; j < cellStart[cell + 1]; j++) {
+              int a = cellSegments[i];
+              int b = cellSegments[j];
+              double left = Math.max(Math.min(xy[a * 2], xy[a * 2 + 2]), Math.min(xy[b * 2], xy[b * 2 + 2]));
+              double bottom = Math.max(Math.min(xy[a * 2 + 1], xy[a * 2 + 3]), Math.min(xy[b * 2 + 1], xy[b * 2 + 3]));
+              double right = Math.min(Math.max(xy[a * 2], xy[a * 2 + 2]), Math.max(xy[b * 2], xy[b * 2 + 2]));
+              double top = Math.min(Math.max(xy[a * 2 + 1], xy[a * 2 + 3]), Math.max(xy[b * 2 + 1], xy[b * 2 + 3]));
+              if (left <= right && bottom <= top &&
+                cell(bottom, minY, cellSize, ny) * nx + cell(left, minX, cellSize, nx) == cell) {
+                intersect(a, b);
+              }
+            }
+          }
+        }
+      }
+    }
+    if (numInserted > 0) {
+      insertPoints();
+    }
+  }
+
+  private static int cell(double value, double min, double cellSize, int numCells) {
+    return Math.min(numCells - 1, (int) ((value - min) / cellSize));
+  }
+
+  private void intersect(int a, int b) {
+    double ax = xy[a * 2];
+    double ay = xy[a * 2 + 1];
+    double bx = xy[a * 2 + 2];
+    double by = xy[a * 2 + 3];
+    double cx = xy[b * 2];
+    double cy = xy[b * 2 + 1];
+    double dx = xy[b * 2 + 2];
+    double dy = xy[b * 2 + 3];
+    double c = orientation(ax, ay, bx, by, cx, cy);
+    double d = orientation(ax, ay, bx, by, dx, dy);
+    double e = orientation(cx, cy, dx, dy, ax, ay);
+    double f = orientation(cx, cy, dx, dy, bx, by);
+    // an end of one segment that lies on the other one, which also covers collinear overlaps
+    if (c == 0 && within(a, cx, cy)) {
+      insert(a, cx, cy);
+    }
+    if (d == 0 && within(a, dx, dy)) {
+      insert(a, dx, dy);
+    }
+    if (e == 0 && within(b, ax, ay)) {
+      insert(b, ax, ay);
+    }
+    if (f == 0 && within(b, bx, by)) {
+      insert(b, bx, by);
+    }
+    if (((c > 0 && d < 0) || (c < 0 && d > 0)) && ((e > 0 && f < 0) || (e < 0 && f > 0))) {
+      double t = e / (e - f);
+      double x = precisionModel.makePrecise(ax + t * (bx - ax));
+      double y = precisionModel.makePrecise(ay + t * (by - ay));
+      insert(a, x, y);
+      insert(b, x, y);
+    }
+  }
+
+  private static double orientation(double ax, double ay, double bx, double by, double x, double y) {
+    return (bx - ax) * (y - ay) - (by - ay) * (x - ax);
+  }
+
+  private boolean within(int segment, double x, double y) {
+    return x >= Math.min(xy[segment * 2], xy[segment * 2 + 2]) && x <= Math.max(xy[segment * 2], xy[segment * 2 + 2]) &&
+      y >= Math.min(xy[segment * 2 + 1], xy[segment * 2 + 3]) && y <= Math.max(xy[segment * 2 + 1], xy[segment * 2 + 3]);
+  }
+
+  /**
+   * Records that {@code (x, y)} should become a vertex of the segment starting at point {@code segment}, unless it is
+   * one of its ends already.
+   */
+  private void insert(int segment, double x, double y) {
+    if ((x == xy[segment * 2] && y == xy[segment * 2 + 1]) || (x == xy[segment * 2 + 2] && y == xy[segment * 2 + 3])) {
+      return;
+    }
+    if (numInserted == insertedSegment.length) {
+      int capacity = Math.max(16, numInserted * 2);
+      insertedSegment = Arrays.copyOf(insertedSegment, capacity);
+      insertedXy = Arrays.copyOf(insertedXy, capacity * 2);
+    }
+    insertedSegment[numInserted] = segment;
+    insertedXy[numInserted * 2] = x;
+    insertedXy[numInserted * 2 + 1] = y;
+    numInserted++;
+  }
+
+  /** Rewrites the point buffer with the recorded points inserted into their segments in order along each segment. */
+  private void insertPoints() {
+    int[] start = new int[numPoints + 1];
+    for (int i = 0; i < numInserted; i++) {
+      start[insertedSegment[i] + 1]++;
+    }
+    for (int i = 0; i < numPoints; i++) {
+      start[i + 1] += start[i];
+    }
+    int[] order = new int[numInserted];
+    int[] fill = Arrays.copyOf(start, numPoints);
+    for (int i = 0; i < numInserted; i++) {
+      order[fill[insertedSegment[i]]++] = i;
+    }
+    double[] position = new double[numInserted];
+    double[] newXy = new double[(numPoints + numInserted) * 2];
+    int[] newVertexOf = new int[numPoints + numInserted];
+    int n = 0;
+    for (int line = 0; line < numLines; line++) {
+      int first = lineStart[line];
+      int last = lineStart[line + 1] - 1;
+      lineStart[line] = n;
+      for (int i = first; i <= last; i++) {
+        newXy[n * 2] = xy[i * 2];
+        newXy[n * 2 + 1] = xy[i * 2 + 1];
+        newVertexOf[n++] = vertexOf[i];
+        if (i == last) {
+          continue;
+        }
+        // few points land on the same segment, so sort them along it by insertion
+        double sx = xy[i * 2 + 2] - xy[i * 2];
+        double sy = xy[i * 2 + 3] - xy[i * 2 + 1];
+        for (int k = start[i]; k < start[i + 1]; k++) {
+          int inserted = order[k];
+          position[inserted] = (insertedXy[inserted * 2] - xy[i * 2]) * sx + (insertedXy[inserted * 2 + 1] - xy[i * 2 + 1]) * sy;
+          int j = k;
+          while (j > start[i] && position[order[j - 1]] > position[inserted]) {
+            order[j] = order[j - 1];
+            j--;
+          }
+          order[j] = inserted;
+        }
+        for (int k = start[i]; k < start[i + 1]; k++) {
+          double x = insertedXy[order[k] * 2];
+          double y = insertedXy[order[k] * 2 + 1];
+          if (newXy[n * 2 - 2] != x || newXy[n * 2 - 1] != y) {
+            newXy[n * 2] = x;
+            newXy[n * 2 + 1] = y;
+            newVertexOf[n++] = vertices.add(x, y);
+          }
+        }
+      }
+    }
+    lineStart[numLines] = n;
+    numPoints = n;
+    xy = newXy;
+    vertexOf = newVertexOf;
+    numInserted = 0;
+  }
+
+  /** Splits every line added so far at the interior points it shares with any line, including itself. */
+  public void node() {
+    lineStart[numLines] = numPoints;
+    int capacity = numLines;
+    pieceStart = new int[capacity];
+    pieceEnd = new int[capacity];
+    pieceLine = new int[capacity];
+    numPieces = 0;
+    for (int line = 0; line < numLines; line++) {
+      int start = lineStart[line];
+      int last = lineStart[line + 1] - 1;
+      for (int i = start + 1; i <= last; i++) {
+        if (i == last || vertices.count(vertexOf[i]) > 1) {
+          if (numPieces == pieceStart.length) {
+            capacity = Math.max(16, numPieces * 2);
+            pieceStart = Arrays.copyOf(pieceStart, capacity);
+            pieceEnd = Arrays.copyOf(pieceEnd, capacity);
+            pieceLine = Arrays.copyOf(pieceLine, capacity);
+          }
+          pieceStart[numPieces] = start;
+          pieceEnd[numPieces] = i;
+          pieceLine[numPieces++] = line;
+          start = i;
+        }
+      }
+    }
+    pieceLength = new double[numPieces];
+    for (int piece = 0; piece < numPieces; piece++) {
+      double length = 0;
+      for (int i = pieceStart[piece]; i < pieceEnd[piece]; i++) {
+        length += Math.hypot(xy[i * 2 + 2] - xy[i * 2], xy[i * 2 + 3] - xy[i * 2 + 1]);
+      }
+      pieceLength[piece] = length;
+    }
+  }
+
+  /** Returns the number of distinct snapped points, which are numbered from {@code 0}. */
+  public int numVertices() {
+    return vertices.size();
+  }
+
+  public double vertexX(int vertex) {
+    return vertices.x(vertex);
+  }
+
+  public double vertexY(int vertex) {
+    return vertices.y(vertex);
+  }
+
+  public int numPieces() {
+    return numPieces;
+  }
+
+  /** Returns the id that the line {@code piece} was cut from was added with. */
+  public int id(int piece) {
+    return lineId[pieceLine[piece]];
+  }
+
+  public int firstVertex(int piece) {
+    return vertexOf[pieceStart[piece]];
+  }
+
+  public int lastVertex(int piece) {
+    return vertexOf[pieceEnd[piece]];
+  }
+
+  /** Returns the packed x and y coordinates of all points, which {@link #pointOffset} indexes by point. */
+  public double[] xy() {
+    return xy;
+  }
+
+  /** Returns the index in {@link #xy()} of the first point of {@code piece}, counted in points. */
+  public int pointOffset(int piece) {
+    return pieceStart[piece];
+  }
+
+  public int numPoints(int piece) {
+    return pieceEnd[piece] - pieceStart[piece] + 1;
+  }
+
+  public double length(int piece) {
+    return pieceLength[piece];
+  }
+}
@@ -0,0 +1,155 @@
+import com.onthegomap.planetiler.geo.GeoUtils;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateXY;
+import org.locationtech.jts.geom.LineString;
+
+/**
+ * Merges the segments of {@link SegmentPartitions} with a {@link LoopLineMerger2} one cell at a time, so the memory
+ * needed depends on the size of a cell and its halo instead of on the whole input.
+ * <p>
+ * The first pass merges each cell together with its halo, tagging every segment with its index instead of its way id,
+ * and keeps the segments of the cell that are part of an edge left in the merged graph. The halo gives the merger the
+ * context it needs near the border of the cell, so it should be at least as wide as the longest segment and the
+ * longest loop or stub that is removed. Decisions that depend on edges farther away than that, like the visits
+ * averaged along a long chain of degree-two nodes, can differ from merging everything at once.
+ * <p>
+ * Only the settings that remove edges apply: minimum visits, loop, stub and edge lengths. The output is built from
+ * the input segments of the edges that were kept, not from the geometry of the merged edges, so the merger must not
+ * simplify or merge strokes, and points snapped by its precision model only change which segments are kept.
+ * <p>
+ * The second pass joins the kept segments of each cell into chains through the vertices where exactly two of them meet.
+ * Chains that stop at a vertex shared with a kept segment of another cell are held back and stitched together once all
+ * cells are done, so only chains that touch a border stay in memory. Cells, segments, and held back chains are always
+ * visited in the same order, so every run gives the same result.
+ */
+public class PartitionedMerger {
+
+  private final SegmentPartitions partitions;
+  private final Path directory;
+  private final Supplier<LoopLineMerger2> mergers;
+
+  /**
+   * @param directory where the segments kept by the first pass are stored
+   * @param mergers   creates a merger with the settings to use for each cell, which must not simplify or merge strokes
+   */
+  public PartitionedMerger(SegmentPartitions partitions, Path directory, Supplier<LoopLineMerger2> mergers) {
+    this.partitions = partitions;
+    this.directory = directory;
+    this.mergers = mergers;
+  }
+
+  /** Merges all cells and passes every merged linestring to {@code output}. */
+  public void run(Consumer<LineString> output) throws IOException {
+    var kept = new SegmentPartitions(directory, partitions.cellSize(), partitions.halo());
+    for (long cell : partitions.cells()) {
+      var partition = partitions.load(cell);
+      LoopLineMerger2 merger = mergers.get();
+      if (merger.reshapesEdges()) {
+        throw new IllegalArgumentException("partitioned merging only keeps or removes segments, so it cannot simplify " +
+          "or merge strokes");
+      }
+      for (int i = 0; i < partition.size(); i++) {
+        merger.add(lineString(partition, i), partition.visits(i), i);
+      }
+      merger.getMergedLineStrings();
+      for (long i : merger.getMergedWayIds()) {
+        if (i < partition.numOwned()) {
+          int segment = (int) i;
+          kept.add(partition.wayId(segment), partition.startLat(segment), partition.startLon(segment),
+            partition.endLat(segment), partition.endLon(segment), partition.visits(segment));
+        }
+      }
+    }
+    kept.flush();
+
+    var border = new PolylineChains();
+    int[] latLon = new int[4];
+    for (long cell : kept.cells()) {
+      var partition = kept.load(cell);
+      var chains = new PolylineChains();
+      boolean[] skipped = skipped(partition);
+      for (int i = 0; i < partition.size(); i++) {
+        if (!skipped[i]) {
+          latLon[0] = partition.startLat(i);
+          latLon[1] = partition.startLon(i);
+          latLon[2] = partition.endLat(i);
+          latLon[3] = partition.endLon(i);
+          chains.add(latLon, 2, i < partition.numOwned(), true, true);
+        }
+      }
+      chains.walk((points, n, stoppedAtStart, stoppedAtEnd) -> {
+        if (stoppedAtStart || stoppedAtEnd) {
+          border.add(points, n, true, stoppedAtStart, stoppedAtEnd);
+        } else {
+          output.accept(lineString(points, n));
+        }
+      });
+    }
+    border.walk((points, n, stoppedAtStart, stoppedAtEnd) -> output.accept(lineString(points, n)));
+    kept.delete();
+  }
+
+  /**
+   * Returns which segments of {@code partition} to leave out because they have no length, or because they run between
+   * the same two points as another one that wins: the one that starts at the lower point, or the first one if both
+   * start at the same point. Every cell that sees both segments keeps the same one, since both start in the same cell
+   * when they start at the same point.
+   */
+  private static boolean[] skipped(SegmentPartitions.Partition partition) {
+    int n = partition.size();
+    VertexIndex vertices = new VertexIndex(n * 2);
+    long[] pairs = new long[n];
+    boolean[] skipped = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      int a = vertices.add(partition.startLon(i), partition.startLat(i));
+      int b = vertices.add(partition.endLon(i), partition.endLat(i));
+      pairs[i] = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+      skipped[i] = a == b;
+    }
+    long[] keys = pairs.clone();
+    Arrays.sort(keys);
+    int[] winner = new int[n];
+    Arrays.fill(winner, -1);
+    for (int i = 0; i < n; i++) {
+      if (skipped[i]) {
+        continue;
+      }
+      int key = Arrays.binarySearch(keys, pairs[i]);
+      int other = winner[key];
+      if (other < 0) {
+        winner[key] = i;
+      } else if (startsLower(partition, i, other)) {
+        skipped[other] = true;
+        winner[key] = i;
+      } else {
+        skipped[i] = true;
+      }
+    }
+    return skipped;
+  }
+
+  private static boolean startsLower(SegmentPartitions.Partition partition, int a, int b) {
+    return partition.startLat(a) < partition.startLat(b) ||
+      (partition.startLat(a) == partition.startLat(b) && partition.startLon(a) < partition.startLon(b));
+  }
+
+  private static LineString lineString(SegmentPartitions.Partition partition, int i) {
+    return GeoUtils.JTS_FACTORY.createLineString(new Coordinate[]{
+      new CoordinateXY(partition.startLon(i) / 1e7, partition.startLat(i) / 1e7),
+      new CoordinateXY(partition.endLon(i) / 1e7, partition.endLat(i) / 1e7)
+    });
+  }
+
+  private static LineString lineString(int[] latLon, int n) {
+    Coordinate[] coordinates = new Coordinate[n];
+    for (int i = 0; i < n; i++) {
+      coordinates[i] = new CoordinateXY(latLon[i * 2 + 1] / 1e7, latLon[i * 2] / 1e7);
+    }
+    return GeoUtils.JTS_FACTORY.createLineString(coordinates);
+  }
+}
@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * Polylines with coordinates in 1e-7 degrees joined end to end into chains through the vertices where exactly two of
+ * them meet, stored in packed primitive buffers.
+ * <p>
+ * Each end of a polyline is either open or closed, and a vertex is only passed through if exactly two polyline ends
+ * meet there and both are open. Chains are walked from every owned polyline with an end that cannot be passed
+ * through, in the order polylines were added, and rings of owned polylines that can be passed through everywhere are
+ * walked last from their first polyline, so the result only depends on the order polylines were added. Polylines that
+ * are not owned only count towards the number of ends at a vertex and are never part of a chain.
+ * <p>
+ * Vertices are found through a {@link VertexIndex} and the ends at each vertex are listed in compressed sparse row
+ * form, so walking all chains takes linear time.
+ */
+public class PolylineChains {
+
+  /** Receives the chains found by {@link #walk}. */
+  public interface ChainConsumer {
+
+    /**
+     * Called with each chain as the first {@code n} points of {@code latLon}, interleaved, which is only valid during
+     * the call, and for each end whether it stopped at a vertex with exactly two ends because the other one is closed.
+     */
+    void accept(int[] latLon, int n, boolean stoppedAtStart, boolean stoppedAtEnd);
+  }
+
+  private int numPolylines = 0;
+  private int[] pointStart = new int[17];
+  private int[] latLon = new int[64];
+  private boolean[] owned = new boolean[16];
+  // open flag of the start and end of each polyline, at index 2 * polyline and 2 * polyline + 1
+  private boolean[] open = new boolean[32];
+
+  /**
+   * Adds a polyline through the first {@code n} interleaved points of {@code latLon}, at least two.
+   *
+   * @param owned       if false, the polyline is never walked and both of its ends are closed
+   * @param openAtStart if the start of the polyline may be joined with another one
+   * @param openAtEnd   if the end of the polyline may be joined with another one
+   */
+  public void add(int[] latLon, int n, boolean owned, boolean openAtStart, boolean openAtEnd) {
+    assert n >= 2;
+    if (numPolylines + 1 == pointStart.length) {
+      pointStart = Arrays.copyOf(pointStart, pointStart.length * 2);
+      this.owned = Arrays.copyOf(this.owned, pointStart.length);
+      open = Arrays.copyOf(open, pointStart.length * 2);
+    }
+    int start = pointStart[numPolylines];
+    if ((start + n) * 2 > this.latLon.length) {
+      this.latLon = Arrays.copyOf(this.latLon, Math.max(this.latLon.length * 2, (start + n) * 2));
+    }
+    System.arraycopy(latLon, 0, this.latLon, start * 2, n * 2);
+    this.owned[numPolylines] = owned;
+    open[numPolylines * 2] = owned && openAtStart;
+    open[numPolylines * 2 + 1] = owned && openAtEnd;
+    pointStart[++numPolylines] = start + n;
+  }
+
+  public int numPolylines() {
+    return numPolylines;
+  }
+
+  /** Passes every chain of owned polylines to {@code consumer}. */
+  public void walk(ChainConsumer consumer) {
+    VertexIndex vertices = new VertexIndex(numPolylines * 2);
+    int[] vertexOf = new int[numPolylines * 2];
+    for (int end = 0; end < numPolylines * 2; end++) {
+      int point = endPoint(end);
+      vertexOf[end] = vertices.add(latLon[point * 2 + 1], latLon[point * 2]);
+    }
+    // the ends at each vertex
+    int[] endStart = new int[vertices.size() + 1];
+    for (int end = 0; end < numPolylines * 2; end++) {
+      endStart[vertexOf[end] + 1]++;
+    }
+    for (int vertex = 0; vertex < vertices.size(); vertex++) {
+      endStart[vertex + 1] += endStart[vertex];
+    }
+    int[] ends = new int[numPolylines * 2];
+    int[] filled = Arrays.copyOf(endStart, vertices.size());
+    for (int end = 0; end < numPolylines * 2; end++) {
+      ends[filled[vertexOf[end]]++] = end;
+    }
+    Walk walk = new Walk(vertexOf, endStart, ends, consumer);
+    for (int polyline = 0; polyline < numPolylines; polyline++) {
+      if (owned[polyline] && !walk.visited[polyline]) {
+        if (!walk.passes(vertexOf[polyline * 2])) {
+          walk.from(polyline * 2);
+        } else if (!walk.passes(vertexOf[polyline * 2 + 1])) {
+          walk.from(polyline * 2 + 1);
+        }
+      }
+    }
+    for (int polyline = 0; polyline < numPolylines; polyline++) {
+      if (owned[polyline] && !walk.visited[polyline]) {
+        walk.from(polyline * 2);
+      }
+    }
+  }
+
+  private int endPoint(int end) {
+    return (end & 1) == 0 ? pointStart[end >> 1] : pointStart[(end >> 1) + 1] - 1;
+  }
+
+  private class Walk {
+
+    private final int[] vertexOf;
+    private final int[] endStart;
+    private final int[] ends;
+    private final ChainConsumer consumer;
+    private final boolean[] visited = new boolean[numPolylines];
+    private int[] chain = new int[64];
+
+    Walk(int[] vertexOf, int[] endStart, int[] ends, ChainConsumer consumer) {
+      this.vertexOf = vertexOf;
+      this.endStart = endStart;
+      this.ends = ends;
+      this.consumer = consumer;
+    }
+
+    private boolean passes(int vertex) {
+      int start = endStart[vertex];
+      return endStart[vertex + 1] - start == 2 && open[ends[start]] && open[ends[start + 1]];
+    }
+
+    private boolean stops(int vertex) {
+      return endStart[vertex + 1] - endStart[vertex] == 2 && !passes(vertex);
+    }
+
+    /** Walks the chain that leaves through polyline end {@code end}, which becomes the start of the chain. */
+    private void from(int end) {
+      int n = 0;
+      int first = vertexOf[end];
+      int vertex;
+      while (true) {
+        int polyline = end >> 1;
+        visited[polyline] = true;
+        int from = pointStart[polyline];
+        int count = pointStart[polyline + 1] - from;
+        if ((n + count) * 2 > chain.length) {
+          chain = Arrays.copyOf(chain, Math.max(chain.length * 2, (n + count) * 2));
+        }
+        // polylines after the first repeat the point they share with the one before
+        for (int i = n == 0 ? 0 : 1; i < count; i++) {
+          int point = (end & 1) == 0 ? from + i : from + count - 1 - i;
+          chain[n * 2] = latLon[point * 2];
+          chain[n * 2 + 1] = latLon[point * 2 + 1];
+          n++;
+        }
+        vertex = vertexOf[end ^ 1];
+        if (!passes(vertex)) {
+          break;
+        }
+        int start = endStart[vertex];
+        int next = ends[start] == (end ^ 1) ? ends[start + 1] : ends[start];
+        if (visited[next >> 1]) {
+          // back where a ring started
+          break;
+        }
+        end = next;
+      }
+      consumer.accept(chain, n, stops(first), stops(vertex));
+    }
+  }
+}
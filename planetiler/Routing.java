@@ -1,6 +1,8 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.locationtech.jts.geom.CoordinateXY;
 import org.locationtech.jts.geom.Coordinate;
@@ -12,6 +14,9 @@ import org.locationtech.jts.geom.PrecisionModel;
 
 public class Routing {
 
+    /** The visits thresholds that MyProfile reads the ways left at from {@code wayIds-<threshold>.txt}. */
+    static final List<String> WAY_ID_THRESHOLDS = List.of("1e8", "5e8", "1e9", "1e10");
+
     static LineString linestring(double startLat, double startLon, double endLat, double endLon) {
         var coordinates = new Coordinate[2];
         coordinates[0] = new CoordinateXY(startLon, startLat);
@@ -19,42 +24,55 @@ public class Routing {
         return GeoUtils.JTS_FACTORY.createLineString(coordinates);
     }
 
+    static LoopLineMerger2 newMerger() {
+        return new LoopLineMerger2()
+            .setPrecisionModel(new PrecisionModel())
+            .setMinVisits(1e5)
+            .setLoopMinLength(0.001)
+            .setStubMinLength(0.1);
+    }
+
     public static void main(String[] args) {
-        var merger = new LoopLineMerger2()
-            .setPrecisionModel(new PrecisionModel());
+        var merger = newMerger();
         // String filePath = "traffic_export_sorted.csv";
         // String filePath = "traffic.csv";
         // String filePath = "traffic_short.csv";
         // String filePath = "mittelland.csv";
+        // String filePath = "bretagne_20250122_sorted.seg";
         String filePath = "bretagne_20250122_sorted.csv";
 
-        String line;
-        String delimiter = ","; // Adjust as necessary
-
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            line = br.readLine(); // skip header
-            while ((line = br.readLine()) != null) {
-                String[] values = line.split(delimiter);
-
-                long wayId = Long.parseLong(values[0]);
-                double startLat = Double.parseDouble(values[1]) / 1e7;
-                double startLon = Double.parseDouble(values[2]) / 1e7;
-                double endLat = Double.parseDouble(values[3]) / 1e7;
-                double endLon = Double.parseDouble(values[4]) / 1e7;
-                long visits = Long.parseLong(values[5]);
-
-                merger.add(linestring(startLat, startLon, endLat, endLon), visits, wayId);
-                // int deadEnd = Integer.parseInt(values[6]);
-                // System.out.println(wayId + " " + startLat + " " + startLon);
+        if (args.length > 0 && args[0].equals("--convert")) {
+            try {
+                SegmentFile.convert(Path.of(filePath), Path.of(filePath.replace(".csv", ".seg")));
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--partitioned")) {
+            partitioned(filePath);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--way-ids")) {
+            wayIds(filePath);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--merge")) {
+            List<Path> exports = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                exports.add(Path.of(args[i]));
+            }
+            merge(exports);
+            return;
+        }
+
+        try {
+            SegmentFile.readExport(Path.of(filePath), (wayId, startLat, startLon, endLat, endLon, visits) ->
+                merger.add(linestring(startLat / 1e7, startLon / 1e7, endLat / 1e7, endLon / 1e7), visits, wayId));
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        merger.setMinVisits(1e5);
-        merger.setLoopMinLength(0.001);
-        merger.setStubMinLength(0.1);
-
         for (var linestring : merger.getMergedLineStrings()) {
             System.out.println(linestring);
         }
@@ -78,4 +96,69 @@ public class Routing {
         //     System.out.println(wayId);
         // }
     }
+
+    /**
+     * Writes the ids of the ways left at each of {@link #WAY_ID_THRESHOLDS} to {@code wayIds-<threshold>.txt}. One merger
+     * is reused for all thresholds, so the export is read and noded only once.
+     */
+    static void wayIds(String filePath) {
+        var merger = newMerger();
+        try {
+            SegmentFile.readExport(Path.of(filePath), (wayId, startLat, startLon, endLat, endLon, visits) ->
+                merger.add(linestring(startLat / 1e7, startLon / 1e7, endLat / 1e7, endLon / 1e7), visits, wayId));
+            for (String threshold : WAY_ID_THRESHOLDS) {
+                merger.setMinVisits(Double.parseDouble(threshold));
+                merger.getMergedLineStrings();
+                try (var writer = Files.newBufferedWriter(Path.of("wayIds-" + threshold + ".txt"))) {
+                    writer.write("wayId\n");
+                    for (long wayId : merger.getMergedWayIds()) {
+                        writer.write(wayId + "\n");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Merges the export one 1 degree cell at a time, for exports too large to merge at once. The halo of 0.1 degrees
+     * is as wide as the longest stub that is removed.
+     */
+    static void partitioned(String filePath) {
+        try {
+            Path directory = Files.createTempDirectory("routing");
+            var partitions = new SegmentPartitions(directory.resolve("segments"), 10_000_000, 1_000_000);
+            SegmentFile.readExport(Path.of(filePath), partitions::add);
+            partitions.flush();
+
+            new PartitionedMerger(partitions, directory.resolve("kept"), Routing::newMerger)
+                .run(linestring -> System.out.println(linestring));
+            partitions.delete();
+            Files.delete(directory);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Merges several exports, for example of neighbouring regions or of different dates, sorted by way id with the
+     * visits of identical segments added up, so they do not need to be sorted and combined beforehand.
+     */
+    static void merge(List<Path> exports) {
+        try {
+            var merger = newMerger();
+            Path directory = Files.createTempDirectory("routing");
+            SegmentSorter.merge(exports, SegmentSorter.Order.WAY_ID, directory, 10_000_000,
+                (wayId, startLat, startLon, endLat, endLon, visits) -> merger.add(
+                    linestring(startLat / 1e7, startLon / 1e7, endLat / 1e7, endLon / 1e7), visits, wayId));
+            Files.delete(directory);
+
+            for (var linestring : merger.getMergedLineStrings()) {
+                System.out.println(linestring);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -1,10 +1,12 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import com.onthegomap.planetiler.geo.GeoUtils;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.CoordinateXY;
@@ -20,42 +22,98 @@ public class RoutingMinZoom {
         return GeoUtils.JTS_FACTORY.createLineString(coordinates);
     }
 
-    public static Map<Long, Integer> getMinZoomMap(Map<Long, Integer> wayIdToSemanticMinZoom) {
+    /**
+     * Reads the export with the visits of both directions of each segment added up, in the direction each segment
+     * first appeared in, like {@code unidirectional.py} does.
+     */
+    static void readUnidirectional(String filePath, TrafficCsv.RowConsumer consumer) throws IOException {
+        Path directory = Files.createTempDirectory("routing");
+        var aggregator = new SegmentAggregator(directory, 1 << 22);
+        SegmentFile.readExport(Path.of(filePath), aggregator::add);
+        aggregator.finish(consumer);
+        Files.delete(directory);
+    }
+
+    static final int DEFAULT_ACTIVE_MIN_ZOOM = 6;
+
+    /** Reads the export into a merger and marks the ways active from {@link #DEFAULT_ACTIVE_MIN_ZOOM} on. */
+    static LoopLineMerger4 process(Map<Long, Integer> wayIdToSemanticMinZoom) {
 
         var merger = new LoopLineMerger4()
             .setPrecisionModel(new PrecisionModel());
-        String filePath = "bretagne_uni.csv";
-
-        String line;
-        String delimiter = ",";
-
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            line = br.readLine(); // skip header
-            while ((line = br.readLine()) != null) {
-                String[] values = line.split(delimiter);
-
-                long wayId = Long.parseLong(values[0]);
-                double startLat = Double.parseDouble(values[1]) / 1e7;
-                double startLon = Double.parseDouble(values[2]) / 1e7;
-                double endLat = Double.parseDouble(values[3]) / 1e7;
-                double endLon = Double.parseDouble(values[4]) / 1e7;
-                long visits = Long.parseLong(values[5]);
+        String filePath = "bretagne_20250122_sorted.csv";
+
+        try {
+            readUnidirectional(filePath, (wayId, startLat, startLon, endLat, endLon, visits) -> {
                 int minZoom = wayIdToSemanticMinZoom.containsKey(wayId) ? wayIdToSemanticMinZoom.get(wayId) : 25;
-                merger.add(linestring(startLat, startLon, endLat, endLon), visits, minZoom, wayId);
-            }
+                merger.add(linestring(startLat / 1e7, startLon / 1e7, endLat / 1e7, endLon / 1e7), visits, minZoom,
+                    wayId);
+            });
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        int defaultActiveMinZoom = 6;
-        merger.setDefaultActiveMinZoom(defaultActiveMinZoom);
+        merger.setDefaultActiveMinZoom(DEFAULT_ACTIVE_MIN_ZOOM);
         merger.process();
-        var activeWayIds = merger.getActiveWayIds();
+        return merger;
+    }
+
+    public static Map<Long, Integer> getMinZoomMap(Map<Long, Integer> wayIdToSemanticMinZoom) {
+        return getMinZoomMap(process(wayIdToSemanticMinZoom));
+    }
 
+    /** Returns the min zoom of the active ways of a merger from {@link #process}. */
+    public static Map<Long, Integer> getMinZoomMap(LoopLineMerger4 merger) {
         Map<Long, Integer> result = new HashMap<>();
-        for (var wayId : activeWayIds) {
-            result.put(wayId, defaultActiveMinZoom);
+        for (var wayId : merger.getActiveWayIds()) {
+            result.put(wayId, DEFAULT_ACTIVE_MIN_ZOOM);
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #getMinZoomMap} but processes the export one 1 degree cell at a time, for exports too large to
+     * process at once. Each cell is processed with the same 0.1 degree halo as {@link Routing#partitioned}, so edges
+     * near its border are merged with their neighbours like when processing the whole export. Only ways with segments
+     * in the cell itself are taken from it.
+     */
+    public static Map<Long, Integer> getMinZoomMapPartitioned(Map<Long, Integer> wayIdToSemanticMinZoom) {
+        String filePath = "bretagne_20250122_sorted.csv";
+        Map<Long, Integer> result = new HashMap<>();
+
+        try {
+            Path directory = Files.createTempDirectory("routing");
+            var partitions = new SegmentPartitions(directory, 10_000_000, 1_000_000);
+            readUnidirectional(filePath, partitions::add);
+            partitions.flush();
+
+            for (long cell : partitions.cells()) {
+                var partition = partitions.load(cell);
+                var merger = new LoopLineMerger4()
+                    .setPrecisionModel(new PrecisionModel());
+                for (int i = 0; i < partition.size(); i++) {
+                    long wayId = partition.wayId(i);
+                    int minZoom = wayIdToSemanticMinZoom.containsKey(wayId) ? wayIdToSemanticMinZoom.get(wayId) : 25;
+                    merger.add(linestring(partition.startLat(i) / 1e7, partition.startLon(i) / 1e7,
+                        partition.endLat(i) / 1e7, partition.endLon(i) / 1e7), partition.visits(i), minZoom, wayId);
+                }
+                merger.setDefaultActiveMinZoom(DEFAULT_ACTIVE_MIN_ZOOM);
+                merger.process();
+                // halo segments only shape the graph, their ways are decided by the cells that own them
+                Set<Long> owned = new HashSet<>();
+                for (int i = 0; i < partition.numOwned(); i++) {
+                    owned.add(partition.wayId(i));
+                }
+                for (var wayId : merger.getActiveWayIds()) {
+                    if (owned.contains(wayId)) {
+                        result.put(wayId, DEFAULT_ACTIVE_MIN_ZOOM);
+                    }
+                }
+            }
+            partitions.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         return result;
     }
-}
\ No newline at end of file
+}
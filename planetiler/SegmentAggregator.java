@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Adds up the visits of both directions of each segment of a traffic export, so that every segment appears once, in
+ * the direction and with the way id of the row where it first appeared, and rows are passed on in the order segments
+ * first appeared. This is what {@code unidirectional.py} does, except that repeated rows in the same direction also
+ * add up instead of replacing each other.
+ * <p>
+ * Segments are keyed by their two end points packed into longs, the lower one first, so both directions get the same
+ * key, and aggregated in an open addressing table of primitive arrays that grows as segments come in. When it holds
+ * {@code maxEntries} segments its entries are moved to {@link SortedRuns} sorted by key and the table starts over. The
+ * sorted entries are then added up per segment and sorted back into the order segments first appeared, spilling to
+ * disk again if they do not fit in memory, so the output does not depend on how much memory there is.
+ */
+public class SegmentAggregator {
+
+  // longs per record in the runs of the table: both end points, first row, way id, visits, and the direction
+  private static final int ENTRY_LONGS = 6;
+  // longs per aggregated record: first row, way id, start, end, and visits
+  private static final int RESULT_LONGS = 5;
+
+  private final Path directory;
+  private final int maxEntries;
+  private int mask;
+  private long[] lowerPoint;
+  private long[] upperPoint;
+  // the first row of the segment in each slot, or -1 if the slot is empty
+  private long[] firstRow;
+  private long[] wayIds;
+  private long[] visits;
+  // true if the segment in each slot first appeared running from the lower to the upper point
+  private boolean[] forward;
+  private int size = 0;
+  private long numRows = 0;
+  // the entries of earlier tables, once the first one fills up
+  private SortedRuns entries = null;
+
+  /**
+   * @param directory  where runs are written when segments do not fit in memory
+   * @param maxEntries how many segments to keep in memory before writing them to a run
+   */
+  public SegmentAggregator(Path directory, int maxEntries) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.maxEntries = maxEntries;
+    allocate(16);
+  }
+
+  private void allocate(int capacity) {
+    mask = capacity - 1;
+    lowerPoint = new long[capacity];
+    upperPoint = new long[capacity];
+    firstRow = new long[capacity];
+    Arrays.fill(firstRow, -1);
+    wayIds = new long[capacity];
+    visits = new long[capacity];
+    forward = new boolean[capacity];
+  }
+
+  /** Doubles the table, which starts small and grows as segments come in until it holds {@code maxEntries}. */
+  private void grow() {
+    long[] oldLowerPoint = lowerPoint;
+    long[] oldUpperPoint = upperPoint;
+    long[] oldFirstRow = firstRow;
+    long[] oldWayIds = wayIds;
+    long[] oldVisits = visits;
+    boolean[] oldForward = forward;
+    allocate(oldFirstRow.length * 2);
+    for (int i = 0; i < oldFirstRow.length; i++) {
+      if (oldFirstRow[i] >= 0) {
+        int slot = slot(oldLowerPoint[i], oldUpperPoint[i]);
+        lowerPoint[slot] = oldLowerPoint[i];
+        upperPoint[slot] = oldUpperPoint[i];
+        firstRow[slot] = oldFirstRow[i];
+        wayIds[slot] = oldWayIds[i];
+        visits[slot] = oldVisits[i];
+        forward[slot] = oldForward[i];
+      }
+    }
+  }
+
+  private static long point(int lat, int lon) {
+    return ((long) lat << 32) | (lon & 0xffffffffL);
+  }
+
+  private static int lat(long point) {
+    return (int) (point >> 32);
+  }
+
+  private static int lon(long point) {
+    return (int) point;
+  }
+
+  private int slot(long lower, long upper) {
+    int slot = (int) Hashing.mix(lower * 0x9e3779b97f4a7c15L + upper) & mask;
+    while (firstRow[slot] >= 0 && (lowerPoint[slot] != lower || upperPoint[slot] != upper)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /** Adds a row of the export. */
+  public void add(long wayId, int startLat, int startLon, int endLat, int endLon, long visits) throws IOException {
+    long start = point(startLat, startLon);
+    long end = point(endLat, endLon);
+    long lower = Math.min(start, end);
+    long upper = Math.max(start, end);
+    int slot = slot(lower, upper);
+    if (firstRow[slot] >= 0) {
+      this.visits[slot] += visits;
+    } else {
+      lowerPoint[slot] = lower;
+      upperPoint[slot] = upper;
+      firstRow[slot] = numRows;
+      wayIds[slot] = wayId;
+      this.visits[slot] = visits;
+      forward[slot] = start == lower;
+      if (++size == maxEntries) {
+        spill();
+      } else if (size * 2 > firstRow.length) {
+        grow();
+      }
+    }
+    numRows++;
+  }
+
+  /** Moves the entries of the table to {@link #entries} and empties it. */
+  private void spill() throws IOException {
+    if (entries == null) {
+      entries = new SortedRuns(directory, "entries", ENTRY_LONGS, 2, maxEntries);
+    }
+    long[] entry = new long[ENTRY_LONGS];
+    for (int slot = 0; slot < firstRow.length; slot++) {
+      if (firstRow[slot] >= 0) {
+        entry[0] = lowerPoint[slot];
+        entry[1] = upperPoint[slot];
+        entry[2] = firstRow[slot];
+        entry[3] = wayIds[slot];
+        entry[4] = visits[slot];
+        entry[5] = forward[slot] ? 1 : 0;
+        entries.add(entry);
+        firstRow[slot] = -1;
+      }
+    }
+    size = 0;
+  }
+
+  private int[] usedSlots() {
+    int[] result = new int[size];
+    int n = 0;
+    for (int slot = 0; slot < firstRow.length; slot++) {
+      if (firstRow[slot] >= 0) {
+        result[n++] = slot;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Passes every segment to {@code consumer} in the order they first appeared, and deletes the runs written to disk.
+   */
+  public void finish(TrafficCsv.RowConsumer consumer) throws IOException {
+    if (entries == null) {
+      int[] order = usedSlots();
+      SortedRuns.sort(order, order.length, (a, b) -> Long.compare(firstRow[a], firstRow[b]));
+      for (int slot : order) {
+        long start = forward[slot] ? lowerPoint[slot] : upperPoint[slot];
+        long end = forward[slot] ? upperPoint[slot] : lowerPoint[slot];
+        consumer.accept(wayIds[slot], lat(start), lon(start), lat(end), lon(end), visits[slot]);
+      }
+      return;
+    }
+    spill();
+    var results = new SortedRuns(directory, "results", RESULT_LONGS, 1, maxEntries);
+    var totals = new Totals(results);
+    entries.finish(totals);
+    totals.flush();
+    entries = null;
+    results.finish(result -> {
+      long start = result[2];
+      long end = result[3];
+      consumer.accept(result[1], lat(start), lon(start), lat(end), lon(end), result[4]);
+    });
+  }
+
+  /** Adds up consecutive entries of the same segment and passes the totals on to {@code results}. */
+  private static class Totals implements SortedRuns.RecordConsumer {
+
+    private final SortedRuns results;
+    private final long[] result = new long[RESULT_LONGS];
+    private boolean started = false;
+    private long lower;
+    private long upper;
+    private boolean fromLower;
+
+    Totals(SortedRuns results) {
+      this.results = results;
+    }
+
+    @Override
+    public void accept(long[] entry) throws IOException {
+      if (started && entry[0] == lower && entry[1] == upper) {
+        if (entry[2] < result[0]) {
+          result[0] = entry[2];
+          result[1] = entry[3];
+          fromLower = entry[5] != 0;
+        }
+        result[4] += entry[4];
+      } else {
+        flush();
+        started = true;
+        lower = entry[0];
+        upper = entry[1];
+        result[0] = entry[2];
+        result[1] = entry[3];
+        result[4] = entry[4];
+        fromLower = entry[5] != 0;
+      }
+    }
+
+    /** Passes on the total of the last segment. */
+    void flush() throws IOException {
+      if (started) {
+        result[2] = fromLower ? lower : upper;
+        result[3] = fromLower ? upper : lower;
+        results.add(result);
+      }
+    }
+  }
+}
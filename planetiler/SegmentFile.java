@@ -0,0 +1,341 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A compact binary columnar file with the rows of a traffic export, converted once from the CSV by {@link #convert} so
+ * that later runs do not parse the CSV again.
+ * <p>
+ * Rows are stored in blocks of up to {@value #BLOCK_ROWS} rows in the order they were added, and each block stores one
+ * column after the other: way ids as zigzag varint deltas from the row before, start coordinates as zigzag varint
+ * deltas from the start of the row before, end coordinates as zigzag varint deltas from the start of the same row,
+ * visits as varints, and dead end flags as a bitset. Segments are short and consecutive rows of a sorted export are
+ * close to each other, so most values take one or two bytes.
+ * <p>
+ * A footer lists the offset, number of rows, range of way ids and bounding box of every block, so a {@link Reader} can
+ * skip the blocks that cannot contain a way or intersect an area without touching them. Blocks are mapped into memory
+ * one at a time and decoded straight from the mapping.
+ */
+public class SegmentFile {
+
+  private static final long MAGIC = 0x5345474d454e5431L;
+  private static final int BLOCK_ROWS = 1 << 16;
+  // the columns of a block, in the order they are stored
+  private static final int WAY_IDS = 0;
+  private static final int START_LATS = 1;
+  private static final int START_LONS = 2;
+  private static final int END_LATS = 3;
+  private static final int END_LONS = 4;
+  private static final int VISITS = 5;
+  private static final int DEAD_ENDS = 6;
+  private static final int NUM_COLUMNS = 7;
+
+  private SegmentFile() {}
+
+  /** Converts the CSV export {@code csv} into {@code file}. */
+  public static void convert(Path csv, Path file) throws IOException {
+    try (Writer writer = new Writer(file)) {
+      TrafficCsv.read(csv, writer::add);
+    }
+  }
+
+  /** Reads the rows of {@code file}, which is a CSV export if its name ends in {@code .csv} and converted otherwise. */
+  public static void readExport(Path file, TrafficCsv.RowConsumer consumer) throws IOException {
+    if (file.getFileName().toString().endsWith(".csv")) {
+      TrafficCsv.read(file, consumer);
+    } else {
+      try (Reader reader = new Reader(file)) {
+        reader.read(consumer);
+      }
+    }
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** Writes rows to a new file, replacing any file that is already there. */
+  public static class Writer implements Closeable {
+
+    private final DataOutputStream out;
+    private long offset = 0;
+    private final Bytes[] columns = new Bytes[NUM_COLUMNS];
+    private int rows = 0;
+    private long previousWayId;
+    private int previousLat;
+    private int previousLon;
+    private long minWayId;
+    private long maxWayId;
+    private final int[] bounds = new int[4];
+    // per block: offset, rows, min and max way id, and bounds
+    private int numBlocks = 0;
+    private long[] blockLongs = new long[48];
+    private int[] blockInts = new int[80];
+
+    public Writer(Path file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+      for (int column = 0; column < NUM_COLUMNS; column++) {
+        columns[column] = new Bytes();
+      }
+      out.writeLong(MAGIC);
+      offset += 8;
+    }
+
+    public void add(long wayId, int startLat, int startLon, int endLat, int endLon, long visits, boolean deadEnd)
+      throws IOException {
+      if (rows == 0) {
+        previousWayId = 0;
+        previousLat = previousLon = 0;
+        minWayId = maxWayId = wayId;
+        bounds[0] = bounds[2] = startLat;
+        bounds[1] = bounds[3] = startLon;
+      }
+      columns[WAY_IDS].varint(zigzag(wayId - previousWayId));
+      columns[START_LATS].varint(zigzag((long) startLat - previousLat));
+      columns[START_LONS].varint(zigzag((long) startLon - previousLon));
+      columns[END_LATS].varint(zigzag((long) endLat - startLat));
+      columns[END_LONS].varint(zigzag((long) endLon - startLon));
+      columns[VISITS].varint(visits);
+      if ((rows & 7) == 0) {
+        columns[DEAD_ENDS].add((byte) 0);
+      }
+      if (deadEnd) {
+        columns[DEAD_ENDS].data[rows >> 3] |= (byte) (1 << (rows & 7));
+      }
+      previousWayId = wayId;
+      previousLat = startLat;
+      previousLon = startLon;
+      minWayId = Math.min(minWayId, wayId);
+      maxWayId = Math.max(maxWayId, wayId);
+      bounds[0] = Math.min(bounds[0], Math.min(startLat, endLat));
+      bounds[1] = Math.min(bounds[1], Math.min(startLon, endLon));
+      bounds[2] = Math.max(bounds[2], Math.max(startLat, endLat));
+      bounds[3] = Math.max(bounds[3], Math.max(startLon, endLon));
+      if (++rows == BLOCK_ROWS) {
+        writeBlock();
+      }
+    }
+
+    private void writeBlock() throws IOException {
+      if (rows == 0) {
+        return;
+      }
+      if (numBlocks * 3 == blockLongs.length) {
+        blockLongs = Arrays.copyOf(blockLongs, blockLongs.length * 2);
+        blockInts = Arrays.copyOf(blockInts, blockInts.length * 2);
+      }
+      blockLongs[numBlocks * 3] = offset;
+      blockLongs[numBlocks * 3 + 1] = minWayId;
+      blockLongs[numBlocks * 3 + 2] = maxWayId;
+      blockInts[numBlocks * 5] = rows;
+      System.arraycopy(bounds, 0, blockInts, numBlocks * 5 + 1, 4);
+      numBlocks++;
+      out.writeInt(rows);
+      offset += 4;
+      for (Bytes column : columns) {
+        out.writeInt(column.size);
+        offset += 4;
+      }
+      for (Bytes column : columns) {
+        out.write(column.data, 0, column.size);
+        offset += column.size;
+        column.size = 0;
+      }
+      rows = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      writeBlock();
+      long footer = offset;
+      out.writeInt(numBlocks);
+      for (int block = 0; block < numBlocks; block++) {
+        out.writeLong(blockLongs[block * 3]);
+        out.writeInt(blockInts[block * 5]);
+        out.writeLong(blockLongs[block * 3 + 1]);
+        out.writeLong(blockLongs[block * 3 + 2]);
+        for (int i = 1; i <= 4; i++) {
+          out.writeInt(blockInts[block * 5 + i]);
+        }
+      }
+      out.writeLong(footer);
+      out.writeLong(MAGIC);
+      out.close();
+    }
+  }
+
+  /** A growable byte array. */
+  private static class Bytes {
+
+    private byte[] data = new byte[1024];
+    private int size = 0;
+
+    void add(byte value) {
+      if (size == data.length) {
+        data = Arrays.copyOf(data, size * 2);
+      }
+      data[size++] = value;
+    }
+
+    void varint(long value) {
+      while ((value & ~0x7fL) != 0) {
+        add((byte) ((value & 0x7f) | 0x80));
+        value >>>= 7;
+      }
+      add((byte) value);
+    }
+  }
+
+  /** Reads the rows of a file written by {@link Writer}. */
+  public static class Reader implements Closeable {
+
+    private final FileChannel channel;
+    private final int numBlocks;
+    // where each block starts, followed by where the footer starts
+    private final long[] blockOffset;
+    private final int[] blockRows;
+    private final long[] minWayId;
+    private final long[] maxWayId;
+    // min lat, min lon, max lat and max lon of each block
+    private final int[] bounds;
+
+    public Reader(Path file) throws IOException {
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+      long size = channel.size();
+      ByteBuffer trailer = size >= 24 ? channel.map(FileChannel.MapMode.READ_ONLY, size - 16, 16) : null;
+      if (trailer == null || trailer.getLong(8) != MAGIC) {
+        channel.close();
+        throw new IOException(file + " is not a segment file");
+      }
+      long footer = trailer.getLong(0);
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, footer, size - 16 - footer);
+      numBlocks = buffer.getInt();
+      blockOffset = new long[numBlocks + 1];
+      blockRows = new int[numBlocks];
+      minWayId = new long[numBlocks];
+      maxWayId = new long[numBlocks];
+      bounds = new int[numBlocks * 4];
+      for (int block = 0; block < numBlocks; block++) {
+        blockOffset[block] = buffer.getLong();
+        blockRows[block] = buffer.getInt();
+        minWayId[block] = buffer.getLong();
+        maxWayId[block] = buffer.getLong();
+        for (int i = 0; i < 4; i++) {
+          bounds[block * 4 + i] = buffer.getInt();
+        }
+      }
+      blockOffset[numBlocks] = footer;
+    }
+
+    public long numRows() {
+      long result = 0;
+      for (int rows : blockRows) {
+        result += rows;
+      }
+      return result;
+    }
+
+    /** Passes every row to {@code consumer} in the order they were written. */
+    public void read(TrafficCsv.RowConsumer consumer) throws IOException {
+      read((wayId, startLat, startLon, endLat, endLon, visits, deadEnd) ->
+        consumer.accept(wayId, startLat, startLon, endLat, endLon, visits));
+    }
+
+    /** Passes every row to {@code consumer} in the order they were written. */
+    public void read(TrafficCsv.DeadEndRowConsumer consumer) throws IOException {
+      for (int block = 0; block < numBlocks; block++) {
+        readBlock(block, consumer);
+      }
+    }
+
+    /** Passes the rows of way {@code wayId} to {@code consumer}, only reading blocks whose range of way ids has it. */
+    public void readWay(long wayId, TrafficCsv.DeadEndRowConsumer consumer) throws IOException {
+      for (int block = 0; block < numBlocks; block++) {
+        if (minWayId[block] <= wayId && wayId <= maxWayId[block]) {
+          readBlock(block, (id, startLat, startLon, endLat, endLon, visits, deadEnd) -> {
+            if (id == wayId) {
+              consumer.accept(id, startLat, startLon, endLat, endLon, visits, deadEnd);
+            }
+          });
+        }
+      }
+    }
+
+    /**
+     * Passes the rows whose bounding box intersects the box from {@code (minLat, minLon)} to {@code (maxLat, maxLon)},
+     * inclusive and in 1e-7 degrees, to {@code consumer}, only reading blocks whose bounding box intersects it.
+     */
+    public void readArea(int minLat, int minLon, int maxLat, int maxLon, TrafficCsv.DeadEndRowConsumer consumer)
+      throws IOException {
+      for (int block = 0; block < numBlocks; block++) {
+        if (intersects(bounds[block * 4], bounds[block * 4 + 1], bounds[block * 4 + 2], bounds[block * 4 + 3], minLat,
+          minLon, maxLat, maxLon)) {
+          readBlock(block, (wayId, startLat, startLon, endLat, endLon, visits, deadEnd) -> {
+            if (intersects(Math.min(startLat, endLat), Math.min(startLon, endLon), Math.max(startLat, endLat),
+              Math.max(startLon, endLon), minLat, minLon, maxLat, maxLon)) {
+              consumer.accept(wayId, startLat, startLon, endLat, endLon, visits, deadEnd);
+            }
+          });
+        }
+      }
+    }
+
+    private static boolean intersects(int minLatA, int minLonA, int maxLatA, int maxLonA, int minLatB, int minLonB,
+      int maxLatB, int maxLonB) {
+      return minLatA <= maxLatB && minLatB <= maxLatA && minLonA <= maxLonB && minLonB <= maxLonA;
+    }
+
+    private void readBlock(int block, TrafficCsv.DeadEndRowConsumer consumer) throws IOException {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, blockOffset[block],
+        blockOffset[block + 1] - blockOffset[block]);
+      int rows = buffer.getInt();
+      // where the next value of each column is read from
+      int[] cursor = new int[NUM_COLUMNS];
+      cursor[0] = 4 + 4 * NUM_COLUMNS;
+      for (int column = 1; column < NUM_COLUMNS; column++) {
+        cursor[column] = cursor[column - 1] + buffer.getInt();
+      }
+      long wayId = 0;
+      int startLat = 0;
+      int startLon = 0;
+      for (int row = 0; row < rows; row++) {
+        wayId += unzigzag(varint(buffer, cursor, WAY_IDS));
+        startLat += (int) unzigzag(varint(buffer, cursor, START_LATS));
+        startLon += (int) unzigzag(varint(buffer, cursor, START_LONS));
+        int endLat = startLat + (int) unzigzag(varint(buffer, cursor, END_LATS));
+        int endLon = startLon + (int) unzigzag(varint(buffer, cursor, END_LONS));
+        long visits = varint(buffer, cursor, VISITS);
+        boolean deadEnd = (buffer.get(cursor[DEAD_ENDS] + (row >> 3)) & (1 << (row & 7))) != 0;
+        consumer.accept(wayId, startLat, startLon, endLat, endLon, visits, deadEnd);
+      }
+    }
+
+    private static long varint(ByteBuffer buffer, int[] cursor, int column) {
+      long result = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer.get(cursor[column]++);
+        result |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
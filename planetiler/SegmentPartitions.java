@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Road segments from a traffic export, bucketed on disk into the square cells of a grid so that a whole continent can
+ * be processed one cell at a time with a fixed amount of memory.
+ * <p>
+ * Each segment belongs to the cell of its start point. It is appended to one file per cell as a fixed-size record with
+ * coordinates in 1e-7 degrees, as they are in the export. Records are buffered per cell, in buffers that grow until
+ * all of them together hold {@value #MAX_BUFFERED_BYTES} bytes. Then every buffer is appended to its file at once, so
+ * files are rarely reopened and the number of open files does not grow with the number of cells. {@link #load} reads a cell
+ * together with a halo: the segments of the eight surrounding cells with an end point closer than {@code halo} to the
+ * cell, in both coordinates.
+ */
+public class SegmentPartitions {
+
+  // way id, start lat, start lon, end lat, end lon, visits
+  private static final int RECORD_BYTES = 8 + 4 * 4 + 8;
+  private static final int INITIAL_BUFFERED_RECORDS = 16;
+  // how many bytes the buffers of all cells can take up together before they are written out
+  private static final long MAX_BUFFERED_BYTES = 64L << 20;
+
+  private final Path directory;
+  private final int cellSize;
+  private final int halo;
+  private final Map<Long, ByteBuffer> buffers = new HashMap<>();
+  private long bufferedBytes = 0;
+
+  /**
+   * Creates an empty set of partitions that stores its files in {@code directory}.
+   *
+   * @param cellSize the side of each cell in 1e-7 degrees
+   * @param halo     how far around a cell {@link #load} reaches, in 1e-7 degrees, at most {@code cellSize}
+   */
+  public SegmentPartitions(Path directory, int cellSize, int halo) throws IOException {
+    if (cellSize <= 0 || halo < 0 || halo > cellSize) {
+      throw new IllegalArgumentException("need 0 <= halo <= cellSize, got halo=" + halo + " cellSize=" + cellSize);
+    }
+    this.directory = Files.createDirectories(directory);
+    this.cellSize = cellSize;
+    this.halo = halo;
+  }
+
+  public int cellSize() {
+    return cellSize;
+  }
+
+  public int halo() {
+    return halo;
+  }
+
+  /** Adds a segment to the cell of its start point. */
+  public void add(long wayId, int startLat, int startLon, int endLat, int endLon, long visits) throws IOException {
+    long cell = cell(Math.floorDiv(startLat, cellSize), Math.floorDiv(startLon, cellSize));
+    ByteBuffer buffer = buffers.get(cell);
+    if (buffer == null) {
+      buffer = newBuffer();
+      buffers.put(cell, buffer);
+    } else if (!buffer.hasRemaining()) {
+      if (bufferedBytes + buffer.capacity() > MAX_BUFFERED_BYTES) {
+        flush();
+        buffer = buffers.get(cell);
+      } else {
+        bufferedBytes += buffer.capacity();
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+        buffers.put(cell, buffer);
+      }
+    }
+    buffer.putLong(wayId).putInt(startLat).putInt(startLon).putInt(endLat).putInt(endLon).putLong(visits);
+  }
+
+  private ByteBuffer newBuffer() {
+    bufferedBytes += INITIAL_BUFFERED_RECORDS * RECORD_BYTES;
+    return ByteBuffer.allocate(INITIAL_BUFFERED_RECORDS * RECORD_BYTES);
+  }
+
+  /**
+   * Writes out the records still buffered, so that every cell can be {@link #load loaded}, and shrinks the buffers back
+   * to their initial size.
+   */
+  public void flush() throws IOException {
+    bufferedBytes = 0;
+    for (var entry : buffers.entrySet()) {
+      write(entry.getKey(), entry.getValue());
+      entry.setValue(newBuffer());
+    }
+  }
+
+  private void write(long cell, ByteBuffer buffer) throws IOException {
+    if (buffer.position() > 0) {
+      try (OutputStream out = Files.newOutputStream(file(cell), StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND)) {
+        out.write(buffer.array(), 0, buffer.position());
+      }
+      buffer.clear();
+    }
+  }
+
+  /** Returns every cell that has segments, sorted, so that processing them in this order is deterministic. */
+  public long[] cells() {
+    long[] result = new long[buffers.size()];
+    int i = 0;
+    for (long cell : buffers.keySet()) {
+      result[i++] = cell;
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  /** Deletes the files of all cells, and the directory if nothing else is left in it. */
+  public void delete() throws IOException {
+    for (long cell : buffers.keySet()) {
+      Files.deleteIfExists(file(cell));
+    }
+    buffers.clear();
+    try (var files = Files.list(directory)) {
+      if (files.findAny().isEmpty()) {
+        Files.delete(directory);
+      }
+    }
+  }
+
+  private static long cell(int row, int column) {
+    return ((long) row << 32) | (column & 0xffffffffL);
+  }
+
+  private static int row(long cell) {
+    return (int) (cell >> 32);
+  }
+
+  private static int column(long cell) {
+    return (int) cell;
+  }
+
+  private Path file(long cell) {
+    return directory.resolve("cell_" + row(cell) + "_" + column(cell) + ".bin");
+  }
+
+  /**
+   * Reads the segments of {@code cell} followed by the segments of its halo, each group in the order they were added.
+   */
+  public Partition load(long cell) throws IOException {
+    Partition partition = new Partition();
+    read(cell, partition, false);
+    partition.numOwned = partition.size;
+    for (int row = row(cell) - 1; row <= row(cell) + 1; row++) {
+      for (int column = column(cell) - 1; column <= column(cell) + 1; column++) {
+        if (row != row(cell) || column != column(cell)) {
+          read(cell(row, column), partition, true);
+        }
+      }
+    }
+    return partition;
+  }
+
+  private void read(long cell, Partition partition, boolean haloOnly) throws IOException {
+    Path file = file(cell);
+    if (!buffers.containsKey(cell) || !Files.exists(file)) {
+      return;
+    }
+    // the cell being loaded, grown by the halo
+    long minLat = (long) row(cell) * cellSize - halo;
+    long minLon = (long) column(cell) * cellSize - halo;
+    long maxLat = minLat + cellSize + 2L * halo;
+    long maxLon = minLon + cellSize + 2L * halo;
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+    while (buffer.remaining() >= RECORD_BYTES) {
+      long wayId = buffer.getLong();
+      int startLat = buffer.getInt();
+      int startLon = buffer.getInt();
+      int endLat = buffer.getInt();
+      int endLon = buffer.getInt();
+      long visits = buffer.getLong();
+      if (!haloOnly || within(startLat, startLon, minLat, minLon, maxLat, maxLon) ||
+        within(endLat, endLon, minLat, minLon, maxLat, maxLon)) {
+        partition.add(wayId, startLat, startLon, endLat, endLon, visits);
+      }
+    }
+  }
+
+  private static boolean within(int lat, int lon, long minLat, long minLon, long maxLat, long maxLon) {
+    return lat >= minLat && lat < maxLat && lon >= minLon && lon < maxLon;
+  }
+
+  /**
+   * The segments of one cell, which it owns, followed by the segments of its halo, stored in one primitive array per
+   * field.
+   */
+  public static class Partition {
+
+    private int size = 0;
+    private int numOwned = 0;
+    private long[] wayId = new long[16];
+    private int[] coordinates = new int[64];
+    private long[] visits = new long[16];
+
+    private void add(long wayId, int startLat, int startLon, int endLat, int endLon, long visits) {
+      if (size == this.wayId.length) {
+        this.wayId = Arrays.copyOf(this.wayId, size * 2);
+        coordinates = Arrays.copyOf(coordinates, size * 8);
+        this.visits = Arrays.copyOf(this.visits, size * 2);
+      }
+      this.wayId[size] = wayId;
+      coordinates[size * 4] = startLat;
+      coordinates[size * 4 + 1] = startLon;
+      coordinates[size * 4 + 2] = endLat;
+      coordinates[size * 4 + 3] = endLon;
+      this.visits[size++] = visits;
+    }
+
+    /** Returns the number of segments, including the halo. */
+    public int size() {
+      return size;
+    }
+
+    /** Returns the number of segments that belong to the cell, which come before those of the halo. */
+    public int numOwned() {
+      return numOwned;
+    }
+
+    public long wayId(int i) {
+      return wayId[i];
+    }
+
+    public int startLat(int i) {
+      return coordinates[i * 4];
+    }
+
+    public int startLon(int i) {
+      return coordinates[i * 4 + 1];
+    }
+
+    public int endLat(int i) {
+      return coordinates[i * 4 + 2];
+    }
+
+    public int endLon(int i) {
+      return coordinates[i * 4 + 3];
+    }
+
+    public long visits(int i) {
+      return visits[i];
+    }
+  }
+}
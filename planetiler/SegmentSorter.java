@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Sorts the rows of traffic exports by way id or by location in a bounded amount of memory, and adds up the visits of
+ * rows for the same segment, so that exports from several regions or dates can be combined into one stream of rows
+ * without sorting them somewhere else first.
+ * <p>
+ * Rows are sorted with {@link SortedRuns} as records of a sort key, the way id, both end points, and the visits.
+ * Sorting by location uses the Z-order of the start point as the key, which keeps nearby segments close together. Ties
+ * are broken by way id and end points, so rows for the same segment in the same direction end up next to each other
+ * and are passed on once with the sum of their visits.
+ */
+public class SegmentSorter {
+
+  /** What to sort rows by. */
+  public enum Order {
+    /** By way id, so the segments of each way come one after another. */
+    WAY_ID,
+    /** By the Z-order of the start point. */
+    SPATIAL
+  }
+
+  // longs per record: sort key, way id, start, end, and visits
+  private static final int RECORD_LONGS = 5;
+  // everything but the visits, so identical segments sort next to each other
+  private static final int KEY_LONGS = 4;
+
+  private final Order order;
+  private final SortedRuns runs;
+  private final long[] record = new long[RECORD_LONGS];
+
+  /**
+   * @param directory where runs are written when rows do not fit in memory
+   * @param maxRows   how many rows to keep in memory before writing them to a run
+   */
+  public SegmentSorter(Path directory, Order order, int maxRows) throws IOException {
+    this.order = order;
+    runs = new SortedRuns(directory, "rows", RECORD_LONGS, KEY_LONGS, maxRows);
+  }
+
+  private static long point(int lat, int lon) {
+    return ((long) lat << 32) | (lon & 0xffffffffL);
+  }
+
+  private static int lat(long point) {
+    return (int) (point >> 32);
+  }
+
+  private static int lon(long point) {
+    return (int) point;
+  }
+
+  /** Spreads the 32 bits of {@code value} out to the even bits of a long. */
+  private static long spread(int value) {
+    long x = value & 0xffffffffL;
+    x = (x | (x << 16)) & 0x0000ffff0000ffffL;
+    x = (x | (x << 8)) & 0x00ff00ff00ff00ffL;
+    x = (x | (x << 4)) & 0x0f0f0f0f0f0f0f0fL;
+    x = (x | (x << 2)) & 0x3333333333333333L;
+    x = (x | (x << 1)) & 0x5555555555555555L;
+    return x;
+  }
+
+  /** Returns the Z-order of a point, shifted so that comparing it as a signed long keeps the order. */
+  private static long zOrder(int lat, int lon) {
+    long z = (spread(lat ^ Integer.MIN_VALUE) << 1) | spread(lon ^ Integer.MIN_VALUE);
+    return z ^ Long.MIN_VALUE;
+  }
+
+  /** Adds a row of an export. */
+  public void add(long wayId, int startLat, int startLon, int endLat, int endLon, long visits) throws IOException {
+    record[0] = order == Order.WAY_ID ? wayId : zOrder(startLat, startLon);
+    record[1] = wayId;
+    record[2] = point(startLat, startLon);
+    record[3] = point(endLat, endLon);
+    record[4] = visits;
+    runs.add(record);
+  }
+
+  /** Passes every segment to {@code consumer} in sorted order, and deletes the runs written to disk. */
+  public void finish(TrafficCsv.RowConsumer consumer) throws IOException {
+    long[] total = new long[RECORD_LONGS];
+    boolean[] started = {false};
+    runs.finish(row -> {
+      if (started[0] && row[1] == total[1] && row[2] == total[2] && row[3] == total[3]) {
+        total[4] += row[4];
+      } else {
+        if (started[0]) {
+          accept(consumer, total);
+        }
+        System.arraycopy(row, 0, total, 0, RECORD_LONGS);
+        started[0] = true;
+      }
+    });
+    if (started[0]) {
+      accept(consumer, total);
+    }
+  }
+
+  private static void accept(TrafficCsv.RowConsumer consumer, long[] record) throws IOException {
+    consumer.accept(record[1], lat(record[2]), lon(record[2]), lat(record[3]), lon(record[3]), record[4]);
+  }
+
+  /**
+   * Reads every export in {@code exports}, CSV or {@link SegmentFile}, and passes their segments to {@code consumer}
+   * in {@code order} with the visits of identical segments added up.
+   */
+  public static void merge(List<Path> exports, Order order, Path directory, int maxRows,
+    TrafficCsv.RowConsumer consumer) throws IOException {
+    var sorter = new SegmentSorter(directory, order, maxRows);
+    for (Path export : exports) {
+      SegmentFile.readExport(export, sorter::add);
+    }
+    sorter.finish(consumer);
+  }
+}
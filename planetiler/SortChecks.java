@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks that {@link SortedRuns}, {@link SegmentSorter} and {@link SegmentAggregator} give the same output as sorting
+ * and adding up in memory, both when everything fits in memory and when they spill runs to disk.
+ * <p>
+ * Run with {@code java -cp planetiler.jar SortChecks.java}.
+ */
+public class SortChecks {
+
+  // records in memory: everything, a few runs, and many small runs
+  private static final int[] MAX_RECORDS = {1 << 20, 1000, 37};
+  private static final int NUM_ROWS = 50_000;
+
+  public static void main(String[] args) throws IOException {
+    Path directory = Files.createTempDirectory("checks");
+    long[][] rows = rows(new Random(0));
+    for (int maxRecords : MAX_RECORDS) {
+      sortedRuns(directory, maxRecords);
+      segmentSorter(directory, rows, maxRecords);
+      segmentAggregator(directory, rows, maxRecords);
+      try (var files = Files.list(directory)) {
+        check("no runs left behind with " + maxRecords + " records", files.findAny().isEmpty());
+      }
+      System.out.println(maxRecords + " records in memory: ok");
+    }
+    Files.delete(directory);
+  }
+
+  private static void check(String name, boolean ok) {
+    if (!ok) {
+      throw new IllegalStateException(name + " failed");
+    }
+  }
+
+  /**
+   * Returns rows of way id, start lat, start lon, end lat, end lon and visits on a small grid, so that many rows are
+   * the same segment in either direction.
+   */
+  private static long[][] rows(Random random) {
+    long[][] result = new long[NUM_ROWS][];
+    for (int i = 0; i < NUM_ROWS; i++) {
+      int startLat = random.nextInt(40) - 20;
+      int startLon = random.nextInt(40) - 20;
+      int endLat = startLat + random.nextInt(3) - 1;
+      int endLon = startLon + random.nextInt(3) - 1;
+      result[i] = new long[]{random.nextInt(500), startLat, startLon, endLat, endLon, random.nextInt(1000)};
+    }
+    return result;
+  }
+
+  /** Checks that records come out sorted by key, with records of the same key in the order they were added. */
+  private static void sortedRuns(Path directory, int maxRecords) throws IOException {
+    Random random = new Random(maxRecords);
+    List<long[]> records = new ArrayList<>();
+    var runs = new SortedRuns(directory, "records", 3, 2, maxRecords);
+    for (int i = 0; i < NUM_ROWS; i++) {
+      long[] record = {random.nextInt(10) - 5, random.nextLong(1000), i};
+      records.add(record);
+      runs.add(record);
+    }
+    records.sort(Comparator.<long[]>comparingLong(record -> record[0]).thenComparingLong(record -> record[1]));
+    List<long[]> sorted = new ArrayList<>();
+    runs.finish(record -> sorted.add(record.clone()));
+    check("sorted runs with " + maxRecords + " records", equal(sorted, records));
+  }
+
+  /**
+   * Checks that rows come out once per segment and direction with their visits added up, ordered by way id and end
+   * points, or by location with every segment in the same place as with everything in memory.
+   */
+  private static void segmentSorter(Path directory, long[][] rows, int maxRecords) throws IOException {
+    Map<List<Long>, Long> totals = new TreeMap<>((a, b) -> {
+      for (int i = 0; i < a.size(); i++) {
+        int result = Long.compare(a.get(i), b.get(i));
+        if (result != 0) {
+          return result;
+        }
+      }
+      return 0;
+    });
+    for (long[] row : rows) {
+      totals.merge(List.of(row[0], point(row[1], row[2]), point(row[3], row[4])), row[5], Long::sum);
+    }
+    List<long[]> expected = new ArrayList<>();
+    totals.forEach((key, visits) -> expected.add(new long[]{key.get(0), key.get(1) >> 32, (int) (long) key.get(1),
+      key.get(2) >> 32, (int) (long) key.get(2), visits}));
+    check("segment sorter by way id with " + maxRecords + " rows",
+      equal(sort(directory, rows, SegmentSorter.Order.WAY_ID, maxRecords), expected));
+
+    List<long[]> spatial = sort(directory, rows, SegmentSorter.Order.SPATIAL, maxRecords);
+    List<long[]> spatialInMemory = sort(directory, rows, SegmentSorter.Order.SPATIAL, MAX_RECORDS[0]);
+    check("segment sorter by location with " + maxRecords + " rows", equal(spatial, spatialInMemory));
+    spatial.sort(Comparator.<long[]>comparingLong(row -> row[0]).thenComparingLong(row -> point(row[1], row[2]))
+      .thenComparingLong(row -> point(row[3], row[4])));
+    check("segment sorter totals by location with " + maxRecords + " rows", equal(spatial, expected));
+  }
+
+  private static List<long[]> sort(Path directory, long[][] rows, SegmentSorter.Order order, int maxRows)
+    throws IOException {
+    var sorter = new SegmentSorter(directory, order, maxRows);
+    for (long[] row : rows) {
+      sorter.add(row[0], (int) row[1], (int) row[2], (int) row[3], (int) row[4], row[5]);
+    }
+    List<long[]> result = new ArrayList<>();
+    sorter.finish((wayId, startLat, startLon, endLat, endLon, visits) ->
+      result.add(new long[]{wayId, startLat, startLon, endLat, endLon, visits}));
+    return result;
+  }
+
+  /**
+   * Checks that every segment comes out once, in the order segments first appeared, in the direction and with the way
+   * id of the row where it first appeared, and with the visits of both directions added up.
+   */
+  private static void segmentAggregator(Path directory, long[][] rows, int maxEntries) throws IOException {
+    Map<List<Long>, long[]> segments = new LinkedHashMap<>();
+    for (long[] row : rows) {
+      long start = point(row[1], row[2]);
+      long end = point(row[3], row[4]);
+      long[] segment = segments.computeIfAbsent(List.of(Math.min(start, end), Math.max(start, end)),
+        key -> new long[]{row[0], row[1], row[2], row[3], row[4], 0});
+      segment[5] += row[5];
+    }
+    var aggregator = new SegmentAggregator(directory, maxEntries);
+    for (long[] row : rows) {
+      aggregator.add(row[0], (int) row[1], (int) row[2], (int) row[3], (int) row[4], row[5]);
+    }
+    List<long[]> result = new ArrayList<>();
+    aggregator.finish((wayId, startLat, startLon, endLat, endLon, visits) ->
+      result.add(new long[]{wayId, startLat, startLon, endLat, endLon, visits}));
+    check("segment aggregator with " + maxEntries + " entries",
+      equal(result, new ArrayList<>(segments.values())));
+  }
+
+  private static long point(long lat, long lon) {
+    return (lat << 32) | (lon & 0xffffffffL);
+  }
+
+  private static boolean equal(List<long[]> a, List<long[]> b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); i++) {
+      if (!Arrays.equals(a.get(i), b.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,194 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Sorts records of a fixed number of longs by their first {@code keyLongs} longs with a bounded amount of memory.
+ * <p>
+ * Records are buffered in one flat {@code long[]} that grows as records come in and, whenever it holds
+ * {@code maxRecords} records, sorted and written to disk as a run. {@link #finish} merges the runs with a priority
+ * queue over the head record of each run, or sorts the buffer in memory if nothing was written. Records with the same
+ * key come out in the order they were added, so the result does not depend on how many records fit in memory.
+ */
+public class SortedRuns {
+
+  /** Receives sorted records in an array that is only valid during the call. */
+  public interface RecordConsumer {
+
+    void accept(long[] record) throws IOException;
+  }
+
+  private final Path directory;
+  private final String name;
+  private final int recordLongs;
+  private final int keyLongs;
+  private final int maxRecords;
+  private long[] records;
+  private int size = 0;
+  private final List<Path> runs = new ArrayList<>();
+
+  /**
+   * @param directory  where runs are written, as {@code name} followed by the number of the run
+   * @param maxRecords how many records to keep in memory before writing them to a run
+   */
+  public SortedRuns(Path directory, String name, int recordLongs, int keyLongs, int maxRecords) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.name = name;
+    this.recordLongs = recordLongs;
+    this.keyLongs = keyLongs;
+    this.maxRecords = maxRecords;
+    records = new long[Math.min(maxRecords, 1024) * recordLongs];
+  }
+
+  /** Adds the first {@code recordLongs} values of {@code record}. */
+  public void add(long[] record) throws IOException {
+    if (size * recordLongs == records.length) {
+      records = Arrays.copyOf(records, Math.min(size * 2, maxRecords) * recordLongs);
+    }
+    System.arraycopy(record, 0, records, size * recordLongs, recordLongs);
+    if (++size == maxRecords) {
+      spill();
+    }
+  }
+
+  private int compare(long[] a, int offsetA, long[] b, int offsetB) {
+    for (int i = 0; i < keyLongs; i++) {
+      if (a[offsetA + i] != b[offsetB + i]) {
+        return Long.compare(a[offsetA + i], b[offsetB + i]);
+      }
+    }
+    return 0;
+  }
+
+  /** Returns the positions of the buffered records in sorted order. */
+  private int[] sorted() {
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    sort(order, size, (a, b) -> compare(records, a * recordLongs, records, b * recordLongs));
+    return order;
+  }
+
+  private void spill() throws IOException {
+    Path run = directory.resolve(name + "_" + runs.size() + ".bin");
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+      for (int i : sorted()) {
+        for (int j = 0; j < recordLongs; j++) {
+          out.writeLong(records[i * recordLongs + j]);
+        }
+      }
+    }
+    runs.add(run);
+    size = 0;
+  }
+
+  /** Passes every record to {@code consumer} in sorted order and deletes the runs written to disk. */
+  public void finish(RecordConsumer consumer) throws IOException {
+    long[] record = new long[recordLongs];
+    if (runs.isEmpty()) {
+      for (int i : sorted()) {
+        System.arraycopy(records, i * recordLongs, record, 0, recordLongs);
+        consumer.accept(record);
+      }
+      size = 0;
+      return;
+    }
+    if (size > 0) {
+      spill();
+    }
+    try (var merged = new MergedRuns()) {
+      while (merged.next(record)) {
+        consumer.accept(record);
+      }
+    }
+    for (Path run : runs) {
+      Files.delete(run);
+    }
+    runs.clear();
+  }
+
+  /** Reads the records of all runs as one sorted sequence. */
+  private class MergedRuns implements Closeable {
+
+    private final DataInputStream[] inputs = new DataInputStream[runs.size()];
+    private final long[] remaining = new long[runs.size()];
+    private final long[][] heads = new long[runs.size()][recordLongs];
+    // ties go to the earlier run, so records with the same key come out in the order they were added
+    private final PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+      int result = compare(heads[a], 0, heads[b], 0);
+      return result != 0 ? result : Integer.compare(a, b);
+    });
+
+    MergedRuns() throws IOException {
+      for (int run = 0; run < inputs.length; run++) {
+        inputs[run] = new DataInputStream(new BufferedInputStream(Files.newInputStream(runs.get(run))));
+        remaining[run] = Files.size(runs.get(run)) / (recordLongs * 8L);
+        advance(run);
+      }
+    }
+
+    private void advance(int run) throws IOException {
+      if (remaining[run] > 0) {
+        remaining[run]--;
+        for (int i = 0; i < recordLongs; i++) {
+          heads[run][i] = inputs[run].readLong();
+        }
+        queue.offer(run);
+      }
+    }
+
+    /** Copies the next record into {@code record} and returns true, or returns false if there are none left. */
+    boolean next(long[] record) throws IOException {
+      Integer run = queue.poll();
+      if (run == null) {
+        return false;
+      }
+      System.arraycopy(heads[run], 0, record, 0, recordLongs);
+      advance(run);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (DataInputStream input : inputs) {
+        if (input != null) {
+          input.close();
+        }
+      }
+    }
+  }
+
+  /** Sorts the first {@code n} values of {@code values} with a stable merge sort, without boxing them. */
+  static void sort(int[] values, int n, IntBinaryOperator compare) {
+    int[] from = values;
+    int[] to = new int[n];
+    for (int width = 1; width < n; width *= 2) {
+      for (int start = 0; start < n; start += 2 * width) {
+        int middle = Math.min(start + width, n);
+        int end = Math.min(start + 2 * width, n);
+        int i = start;
+        int j = middle;
+        for (int k = start; k < end; k++) {
+          to[k] = j >= end || (i < middle && compare.applyAsInt(from[i], from[j]) <= 0) ? from[i++] : from[j++];
+        }
+      }
+      int[] swap = from;
+      from = to;
+      to = swap;
+    }
+    if (from != values) {
+      System.arraycopy(from, 0, values, 0, n);
+    }
+  }
+}
@@ -0,0 +1,282 @@
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+import org.locationtech.jts.algorithm.Angle;
+
+/**
+ * The strokes of a {@link HalfEdgeGraph}: chains of edges that continue each other as straight as possible through
+ * the nodes they cross.
+ * <p>
+ * At every node, half-edges are paired up greedily starting with the pair that forms the straightest path through the
+ * node, as long as the angle between them is at least {@code minAngle} and the caller allows them to be joined. Each
+ * half-edge has at most one partner, so following partners from node to node walks every edge exactly once, and the
+ * whole graph is split into strokes in time linear in the number of edges for bounded node degrees. The two halves of
+ * a loop are never paired with each other, but each can continue another edge at the node.
+ * <p>
+ * The half-edges of all strokes are stored back to back in one array with an offset per stroke, in the order they
+ * are walked, along with the length and the number of junctions crossed by each stroke. The index is a snapshot: it
+ * does not change when the graph does.
+ */
+public final class StrokeIndex {
+
+  /** Decides which half-edges leaving the same node may continue each other in a stroke. */
+  public interface Joinable {
+
+    boolean canJoin(int a, int b);
+  }
+
+  private final HalfEdgeGraph graph;
+  private final int[] partner;
+  private final int[] strokeOf;
+  private int numStrokes = 0;
+  private int[] strokeStart = new int[16];
+  private double[] length = new double[16];
+  private int[] junctions = new int[16];
+  private int[] halves = new int[16];
+  private int numHalves = 0;
+  private final NodePairs pairs = new NodePairs();
+
+  /**
+   * Splits every edge currently attached in {@code graph} into strokes.
+   *
+   * @param minAngle the smallest angle between two half-edges leaving a node for them to continue each other, where
+   *                 {@code PI} is a straight line and {@code 0} allows any pair
+   * @param joinable decides which pairs of half-edges may be joined at all
+   */
+  public StrokeIndex(HalfEdgeGraph graph, double minAngle, Joinable joinable) {
+    this.graph = graph;
+    partner = new int[graph.numHalfEdges()];
+    Arrays.fill(partner, -1);
+    strokeOf = new int[graph.numHalfEdges() / 2];
+    Arrays.fill(strokeOf, -1);
+    for (int node = 0; node < graph.numNodes(); node++) {
+      pair(node, minAngle, joinable);
+    }
+    for (int node = 0; node < graph.numNodes(); node++) {
+      for (int i = 0; i < graph.degree(node); i++) {
+        int h = graph.halfAt(node, i);
+        if (strokeOf[HalfEdgeGraph.edge(h)] < 0) {
+          walk(h);
+        }
+      }
+    }
+    strokeStart[numStrokes] = numHalves;
+  }
+
+  /**
+   * Joins the edges of {@code graph} into strokes by merging them, one node after another.
+   * <p>
+   * The half-edges at each node are paired up like in the index with any angle allowed, but each pair is merged into
+   * one edge right away, so the nodes that come later pair up the merged edges. A loop can be joined to a different
+   * edge at each of its ends.
+   */
+  public static void merge(HalfEdgeGraph graph, Joinable joinable) {
+    NodePairs pairs = new NodePairs();
+    boolean[] merged = new boolean[16];
+    for (int node = 0; node < graph.numNodes(); node++) {
+      pairs.collect(graph, node, 0.0, joinable);
+      if (merged.length < pairs.numHalves) {
+        merged = new boolean[pairs.numHalves * 2];
+      }
+      Arrays.fill(merged, 0, pairs.numHalves, false);
+      for (int i = 0; i < pairs.numPairs; i++) {
+        int a = pairs.pairA[pairs.order[i]];
+        int b = pairs.pairB[pairs.order[i]];
+        if (!merged[a] && !merged[b]) {
+          graph.merge(node, pairs.halves[a], pairs.halves[b]);
+          merged[a] = true;
+          merged[b] = true;
+        }
+      }
+    }
+  }
+
+  private void pair(int node, double minAngle, Joinable joinable) {
+    pairs.collect(graph, node, minAngle, joinable);
+    for (int i = 0; i < pairs.numPairs; i++) {
+      int a = pairs.halves[pairs.pairA[pairs.order[i]]];
+      int b = pairs.halves[pairs.pairB[pairs.order[i]]];
+      if (partner[a] < 0 && partner[b] < 0) {
+        partner[a] = b;
+        partner[b] = a;
+      }
+    }
+  }
+
+  private void walk(int h) {
+    // step back to where the stroke begins, or all the way around to h if it is closed
+    int start = h;
+    while (partner[start] >= 0 && HalfEdgeGraph.twin(partner[start]) != h) {
+      start = HalfEdgeGraph.twin(partner[start]);
+    }
+    if (numStrokes + 1 >= strokeStart.length) {
+      strokeStart = Arrays.copyOf(strokeStart, strokeStart.length * 2);
+      length = Arrays.copyOf(length, strokeStart.length);
+      junctions = Arrays.copyOf(junctions, strokeStart.length);
+    }
+    int stroke = numStrokes++;
+    strokeStart[stroke] = numHalves;
+    double total = 0;
+    int crossed = 0;
+    int current = start;
+    do {
+      if (numHalves == halves.length) {
+        halves = Arrays.copyOf(halves, halves.length * 2);
+      }
+      halves[numHalves++] = current;
+      strokeOf[HalfEdgeGraph.edge(current)] = stroke;
+      total += graph.length(current);
+      current = next(current);
+      if (current >= 0 && graph.degree(graph.from(current)) > 2) {
+        crossed++;
+      }
+    } while (current >= 0 && current != start);
+    length[stroke] = total;
+    junctions[stroke] = crossed;
+  }
+
+  /** Returns the half-edge that continues {@code h} in its stroke after the node it arrives at, or {@code -1}. */
+  public int next(int h) {
+    int twin = HalfEdgeGraph.twin(h);
+    return twin < partner.length ? partner[twin] : -1;
+  }
+
+  /** Returns the half-edge that {@code h} continues in its stroke before the node it leaves, or {@code -1}. */
+  public int previous(int h) {
+    int before = h < partner.length ? partner[h] : -1;
+    return before < 0 ? -1 : HalfEdgeGraph.twin(before);
+  }
+
+  public int numStrokes() {
+    return numStrokes;
+  }
+
+  /** Returns the stroke of the edge of {@code h}, or {@code -1} if it was not attached when the index was built. */
+  public int stroke(int h) {
+    int edge = HalfEdgeGraph.edge(h);
+    return edge < strokeOf.length ? strokeOf[edge] : -1;
+  }
+
+  /** Returns the number of edges in {@code stroke}. */
+  public int edgeCount(int stroke) {
+    return strokeStart[stroke + 1] - strokeStart[stroke];
+  }
+
+  /** Returns the {@code i}-th half-edge of {@code stroke}, in the direction the stroke is walked. */
+  public int half(int stroke, int i) {
+    assert i < edgeCount(stroke);
+    return halves[strokeStart[stroke] + i];
+  }
+
+  /** Returns the total length of the edges in {@code stroke}. */
+  public double length(int stroke) {
+    return length[stroke];
+  }
+
+  /** Returns the number of nodes with more than two edges that {@code stroke} passes through. */
+  public int junctions(int stroke) {
+    return junctions[stroke];
+  }
+
+  /** Returns true if {@code stroke} ends where it starts and continues through that node. */
+  public boolean isClosed(int stroke) {
+    return previous(half(stroke, 0)) >= 0;
+  }
+
+  /** Returns the sum of {@code valueOfEdge} over the edge ids in each stroke, indexed by stroke. */
+  public double[] sum(IntToDoubleFunction valueOfEdge) {
+    double[] result = new double[numStrokes];
+    for (int stroke = 0; stroke < numStrokes; stroke++) {
+      double total = 0;
+      for (int i = strokeStart[stroke]; i < strokeStart[stroke + 1]; i++) {
+        total += valueOfEdge.applyAsDouble(HalfEdgeGraph.edge(halves[i]));
+      }
+      result[stroke] = total;
+    }
+    return result;
+  }
+
+  /** The pairs of half-edges at one node that may continue each other, sorted from straightest to sharpest. */
+  private static final class NodePairs {
+
+    // the half-edges at the node, which pairs refer to by position
+    private int[] halves = new int[16];
+    private int numHalves = 0;
+    private int[] pairA = new int[16];
+    private int[] pairB = new int[16];
+    private double[] pairAngle = new double[16];
+    private int[] order = new int[16];
+    private int[] sortBuffer = new int[16];
+    private int numPairs = 0;
+
+    void collect(HalfEdgeGraph graph, int node, double minAngle, Joinable joinable) {
+      numHalves = graph.degree(node);
+      if (numHalves > halves.length) {
+        halves = new int[numHalves * 2];
+      }
+      for (int i = 0; i < numHalves; i++) {
+        halves[i] = graph.halfAt(node, i);
+      }
+      numPairs = 0;
+      for (int i = 0; i < numHalves; i++) {
+        int a = halves[i];
+        for (int j = i + 1; j < numHalves; j++) {
+          int b = halves[j];
+          if (a == HalfEdgeGraph.twin(b) || !joinable.canJoin(a, b)) {
+            continue;
+          }
+          double angle = Math.abs(Angle.normalize(graph.currentAngle(a) - graph.currentAngle(b)));
+          if (angle < minAngle) {
+            continue;
+          }
+          if (numPairs == pairA.length) {
+            pairA = Arrays.copyOf(pairA, numPairs * 2);
+            pairB = Arrays.copyOf(pairB, numPairs * 2);
+            pairAngle = Arrays.copyOf(pairAngle, numPairs * 2);
+            order = new int[numPairs * 2];
+            sortBuffer = new int[numPairs * 2];
+          }
+          pairA[numPairs] = i;
+          pairB[numPairs] = j;
+          pairAngle[numPairs] = angle;
+          numPairs++;
+        }
+      }
+      sort();
+    }
+
+    /**
+     * Sorts the pairs from straightest to sharpest into {@code order}, breaking ties by taking the pair found last
+     * first, with a bottom-up merge sort since nodes where many edges meet would make insertion sort quadratic in the
+     * pairs.
+     */
+    private void sort() {
+      for (int i = 0; i < numPairs; i++) {
+        order[i] = i;
+      }
+      int[] from = order;
+      int[] to = sortBuffer;
+      for (int width = 1; width < numPairs; width *= 2) {
+        for (int low = 0; low < numPairs; low += width * 2) {
+          int mid = Math.min(low + width, numPairs);
+          int high = Math.min(low + width * 2, numPairs);
+          int i = low;
+          int j = mid;
+          for (int k = low; k < high; k++) {
+            to[k] = i < mid && (j >= high || before(from[i], from[j])) ? from[i++] : from[j++];
+          }
+        }
+        int[] swap = from;
+        from = to;
+        to = swap;
+      }
+      if (from != order) {
+        System.arraycopy(from, 0, order, 0, numPairs);
+      }
+    }
+
+    private boolean before(int p, int q) {
+      int compare = Double.compare(pairAngle[p], pairAngle[q]);
+      return compare != 0 ? compare > 0 : p > q;
+    }
+  }
+}
@@ -0,0 +1,330 @@
+import java.util.Arrays;
+
+/**
+ * Ranks the strokes of a {@link HalfEdgeGraph} by eliminating them one at a time from the densest mesh of the
+ * network.
+ * <p>
+ * Each step takes the bounded face with the smallest area, or the smallest perimeter, and removes the least important
+ * stroke on its boundary. The faces on both sides of every edge of that stroke become one, so faces are merged
+ * incrementally with a union-find instead of being walked again. A face that merges with the outside of its
+ * component is no longer bounded and drops out. Once no bounded face is left, the remaining strokes, which only form
+ * trees or outer boundaries, are eliminated from least to most important.
+ * <p>
+ * Faces wait in an indexed binary heap keyed by their size, so a merge moves the surviving face and drops the other
+ * one in {@code O(log F)}. The half-edges around each face are kept in a leftist heap keyed by the importance of their
+ * stroke, so the heaps of two faces are melded in {@code O(log E)} when they merge, and half-edges of strokes that
+ * were already removed are dropped lazily when they reach the top. Ranking the whole graph takes
+ * {@code O(E log E)}, after which selecting the network for any level of detail is a comparison against the rank.
+ * <p>
+ * The graph must keep its half-edges in angular order so that its faces can be walked, and is not changed.
+ */
+public final class StrokeMesh {
+
+  private final HalfEdgeGraph graph;
+  private final StrokeIndex strokes;
+  private final double[] importance;
+  private final int[] strokeRank;
+  private int numRanked = 0;
+
+  private final FaceIndex faces;
+  private final int[] faceParent;
+  private final int[] faceSize;
+  private final double[] measure;
+  private final double[] area;
+  private final double[] perimeter;
+  private final boolean[] bounded;
+  private final int[] heapRoot;
+  private final IndexedQueue queue;
+  private final boolean byArea;
+
+  // leftist heaps of half-edges, one per face
+  private final int[] left;
+  private final int[] right;
+  private final int[] nullPathLength;
+
+  /**
+   * Ranks every stroke of {@code strokes}.
+   *
+   * @param importance the importance of each stroke, indexed by stroke id
+   * @param byArea     if true, the face with the smallest area is the densest, otherwise the one with the smallest
+   *                   perimeter
+   */
+  public StrokeMesh(HalfEdgeGraph graph, StrokeIndex strokes, double[] importance, boolean byArea) {
+    this.graph = graph;
+    this.strokes = strokes;
+    this.importance = importance;
+    this.byArea = byArea;
+    strokeRank = new int[strokes.numStrokes()];
+    Arrays.fill(strokeRank, -1);
+
+    faces = new FaceIndex(graph);
+    int numFaces = faces.numFaces();
+    faceParent = new int[numFaces];
+    faceSize = new int[numFaces];
+    measure = new double[numFaces];
+    area = new double[numFaces];
+    perimeter = new double[numFaces];
+    bounded = new boolean[numFaces];
+    heapRoot = new int[numFaces];
+    Arrays.fill(heapRoot, -1);
+    left = new int[graph.numHalfEdges()];
+    right = new int[graph.numHalfEdges()];
+    nullPathLength = new int[graph.numHalfEdges()];
+    queue = new IndexedQueue(measure);
+
+    for (int face = 0; face < numFaces; face++) {
+      faceParent[face] = face;
+      faceSize[face] = 1;
+      area[face] = -faces.signedArea(face);
+      perimeter[face] = faces.perimeter(face);
+      bounded[face] = faces.isBounded(face);
+      for (int i = 0; i < faces.edgeCount(face); i++) {
+        int h = faces.half(face, i);
+        left[h] = right[h] = -1;
+        nullPathLength[h] = 0;
+        heapRoot[face] = meld(heapRoot[face], h);
+      }
+      if (bounded[face]) {
+        measure[face] = byArea ? area[face] : perimeter[face];
+        queue.add(face);
+      }
+    }
+
+    while (!queue.isEmpty()) {
+      int face = queue.peek();
+      int h = heapRoot[face];
+      while (h >= 0 && strokeRank[strokes.stroke(h)] >= 0) {
+        h = heapRoot[face] = meld(left[h], right[h]);
+      }
+      if (h < 0) {
+        queue.remove(face);
+      } else {
+        eliminate(strokes.stroke(h));
+      }
+    }
+
+    // what is left does not bound any face, so only importance decides
+    IndexedQueue rest = new IndexedQueue(importance);
+    for (int stroke = 0; stroke < strokes.numStrokes(); stroke++) {
+      if (strokeRank[stroke] < 0) {
+        rest.add(stroke);
+      }
+    }
+    while (!rest.isEmpty()) {
+      strokeRank[rest.poll()] = numRanked++;
+    }
+  }
+
+  private void eliminate(int stroke) {
+    strokeRank[stroke] = numRanked++;
+    for (int i = 0; i < strokes.edgeCount(stroke); i++) {
+      int h = strokes.half(stroke, i);
+      int twin = HalfEdgeGraph.twin(h);
+      int a = find(faces.face(h));
+      // a loop edge is only walked on one side
+      int sides = faces.face(twin) >= 0 ? 2 : 1;
+      int b = sides == 2 ? find(faces.face(twin)) : a;
+      int face = a == b ? a : union(a, b);
+      perimeter[face] -= sides * graph.length(h);
+      update(face);
+    }
+  }
+
+  private int union(int a, int b) {
+    if (faceSize[a] < faceSize[b]) {
+      int swap = a;
+      a = b;
+      b = swap;
+    }
+    faceParent[b] = a;
+    faceSize[a] += faceSize[b];
+    area[a] += area[b];
+    perimeter[a] += perimeter[b];
+    bounded[a] &= bounded[b];
+    heapRoot[a] = meld(heapRoot[a], heapRoot[b]);
+    heapRoot[b] = -1;
+    if (queue.contains(b)) {
+      queue.remove(b);
+    }
+    return a;
+  }
+
+  private void update(int face) {
+    if (!bounded[face]) {
+      if (queue.contains(face)) {
+        queue.remove(face);
+      }
+      return;
+    }
+    measure[face] = byArea ? area[face] : perimeter[face];
+    if (queue.contains(face)) {
+      queue.update(face);
+    } else {
+      queue.add(face);
+    }
+  }
+
+  private int find(int face) {
+    int root = face;
+    while (faceParent[root] != root) {
+      root = faceParent[root];
+    }
+    while (faceParent[face] != root) {
+      int next = faceParent[face];
+      faceParent[face] = root;
+      face = next;
+    }
+    return root;
+  }
+
+  private int meld(int a, int b) {
+    if (a < 0) {
+      return b;
+    }
+    if (b < 0) {
+      return a;
+    }
+    if (lessImportant(b, a)) {
+      int swap = a;
+      a = b;
+      b = swap;
+    }
+    right[a] = meld(right[a], b);
+    if (left[a] < 0 || nullPathLength[left[a]] < nullPathLength[right[a]]) {
+      int swap = left[a];
+      left[a] = right[a];
+      right[a] = swap;
+    }
+    nullPathLength[a] = right[a] < 0 ? 0 : nullPathLength[right[a]] + 1;
+    return a;
+  }
+
+  private boolean lessImportant(int h1, int h2) {
+    int s1 = strokes.stroke(h1);
+    int s2 = strokes.stroke(h2);
+    int compare = Double.compare(importance[s1], importance[s2]);
+    return compare != 0 ? compare < 0 : s1 != s2 ? s1 < s2 : h1 < h2;
+  }
+
+  /** Returns the number of strokes ranked, which is one more than the highest rank. */
+  public int numRanks() {
+    return numRanked;
+  }
+
+  /**
+   * Returns the position of {@code stroke} in the elimination order, starting at {@code 0} for the first stroke
+   * removed, so strokes with a higher rank are kept at coarser levels of detail.
+   */
+  public int strokeRank(int stroke) {
+    return strokeRank[stroke];
+  }
+
+  /** Returns the rank of the stroke that half-edge {@code h} belongs to, or {@code -1} if it is not in a stroke. */
+  public int rank(int h) {
+    int stroke = strokes.stroke(h);
+    return stroke < 0 ? -1 : strokeRank[stroke];
+  }
+
+  /**
+   * A binary min-heap of ids ordered by {@code keys[id]} and then by id, that tracks where each id is so that it can be
+   * moved or removed when its key changes.
+   */
+  private static final class IndexedQueue {
+
+    private final double[] keys;
+    private final int[] heap;
+    private final int[] position;
+    private int size = 0;
+
+    IndexedQueue(double[] keys) {
+      this.keys = keys;
+      heap = new int[keys.length];
+      position = new int[keys.length];
+      Arrays.fill(position, -1);
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    boolean contains(int id) {
+      return position[id] >= 0;
+    }
+
+    int peek() {
+      return heap[0];
+    }
+
+    int poll() {
+      int id = heap[0];
+      remove(id);
+      return id;
+    }
+
+    void add(int id) {
+      heap[size] = id;
+      position[id] = size;
+      up(size++);
+    }
+
+    void remove(int id) {
+      int i = position[id];
+      position[id] = -1;
+      size--;
+      if (i < size) {
+        int last = heap[size];
+        heap[i] = last;
+        position[last] = i;
+        up(i);
+        down(position[last]);
+      }
+    }
+
+    /** Moves {@code id} to where its key belongs after it changed. */
+    void update(int id) {
+      up(position[id]);
+      down(position[id]);
+    }
+
+    private boolean less(int a, int b) {
+      int compare = Double.compare(keys[a], keys[b]);
+      return compare != 0 ? compare < 0 : a < b;
+    }
+
+    private void up(int i) {
+      int id = heap[i];
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!less(id, heap[parent])) {
+          break;
+        }
+        heap[i] = heap[parent];
+        position[heap[i]] = i;
+        i = parent;
+      }
+      heap[i] = id;
+      position[id] = i;
+    }
+
+    private void down(int i) {
+      int id = heap[i];
+      while (true) {
+        int child = i * 2 + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && less(heap[child + 1], heap[child])) {
+          child++;
+        }
+        if (!less(heap[child], id)) {
+          break;
+        }
+        heap[i] = heap[child];
+        position[heap[i]] = i;
+        i = child;
+      }
+      heap[i] = id;
+      position[id] = i;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reads a traffic export, {@code way_id,start_lat,start_lon,end_lat,end_lon,visits,deadend} with a header line,
+ * coordinates as integers in 1e-7 degrees and {@code deadend} as {@code 0} or {@code 1}.
+ * <p>
+ * The file is mapped into memory and split into chunks that are parsed in parallel straight from the bytes into
+ * primitive arrays, without creating a string per row or field. Each chunk parses the lines that start inside it,
+ * reading past its end to finish the last one. Chunks are parsed a batch at a time and their rows passed on in the order
+ * of the file, so memory does not grow with the size of the file.
+ */
+public class TrafficCsv {
+
+  /** Receives the rows of the file. */
+  public interface RowConsumer {
+
+    void accept(long wayId, int startLat, int startLon, int endLat, int endLon, long visits) throws IOException;
+  }
+
+  /** Receives the rows of the file along with their dead end flag. */
+  public interface DeadEndRowConsumer {
+
+    void accept(long wayId, int startLat, int startLon, int endLat, int endLon, long visits, boolean deadEnd)
+      throws IOException;
+  }
+
+  // bytes parsed by one task, enough to outweigh handing the task to another thread
+  private static final int CHUNK_BYTES = 16 << 20;
+  // how far past the end of its chunk a task may read to finish its last line
+  private static final int MAX_LINE_BYTES = 1 << 16;
+
+  private TrafficCsv() {}
+
+  /** Parses {@code file} and passes every row to {@code consumer} in the order of the file, on the calling thread. */
+  public static void read(Path file, RowConsumer consumer) throws IOException {
+    read(file, (wayId, startLat, startLon, endLat, endLon, visits, deadEnd) ->
+      consumer.accept(wayId, startLat, startLon, endLat, endLon, visits));
+  }
+
+  /**
+   * Like {@link #read(Path, RowConsumer)} but also passes the dead end flag, which is false for rows that do not have
+   * one.
+   */
+  public static void read(Path file, DeadEndRowConsumer consumer) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      long numChunks = Math.max(1, (fileSize + CHUNK_BYTES - 1) / CHUNK_BYTES);
+      int batchSize = ForkJoinPool.getCommonPoolParallelism() * 2;
+      for (long first = 0; first < numChunks; first += batchSize) {
+        Chunk[] chunks = new Chunk[(int) Math.min(batchSize, numChunks - first)];
+        for (int i = 0; i < chunks.length; i++) {
+          long start = (first + i) * CHUNK_BYTES;
+          long end = Math.min(fileSize, start + CHUNK_BYTES);
+          // start one byte early so the chunk can tell if it starts at the beginning of a line
+          long mapStart = Math.max(0, start - 1);
+          long mapEnd = Math.min(fileSize, end + MAX_LINE_BYTES);
+          chunks[i] = new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart),
+            (int) (end - mapStart), mapStart, mapEnd == fileSize);
+        }
+        Arrays.stream(chunks).parallel().forEach(Chunk::parse);
+        for (Chunk chunk : chunks) {
+          for (int i = 0; i < chunk.size; i++) {
+            consumer.accept(chunk.wayIds[i], chunk.coordinates[i * 4], chunk.coordinates[i * 4 + 1],
+              chunk.coordinates[i * 4 + 2], chunk.coordinates[i * 4 + 3], chunk.visits[i], chunk.deadEnds[i]);
+          }
+        }
+      }
+    }
+  }
+
+  /** The lines that start in one chunk of the file. */
+  private static class Chunk {
+
+    private final ByteBuffer buffer;
+    private final int end;
+    private final long offset;
+    private final boolean endOfFile;
+    private int position = 0;
+    private int size = 0;
+    private long[] wayIds = new long[16];
+    private int[] coordinates = new int[64];
+    private long[] visits = new long[16];
+    private boolean[] deadEnds = new boolean[16];
+
+    /**
+     * @param buffer    the bytes of the chunk, starting one byte early unless it is the first, and running past its end
+     * @param end       where the chunk ends in {@code buffer}
+     * @param offset    where {@code buffer} starts in the file, for error messages
+     * @param endOfFile if {@code buffer} runs until the end of the file
+     */
+    Chunk(ByteBuffer buffer, int end, long offset, boolean endOfFile) {
+      this.buffer = buffer;
+      this.end = end;
+      this.offset = offset;
+      this.endOfFile = endOfFile;
+    }
+
+    void parse() {
+      // the first chunk skips the header, the others the line that started in the chunk before
+      skipLine();
+      while (position < end) {
+        byte b = buffer.get(position);
+        if (b == '\n' || b == '\r') {
+          position++;
+          continue;
+        }
+        long wayId = parseLong();
+        int startLat = parseInt();
+        int startLon = parseInt();
+        int endLat = parseInt();
+        int endLon = parseInt();
+        long visits = parseLong();
+        boolean deadEnd = position < buffer.limit() && buffer.get(position) != '\n' && buffer.get(position) != '\r' &&
+          parseLong() != 0;
+        add(wayId, startLat, startLon, endLat, endLon, visits, deadEnd);
+        if (!skipLine() && !endOfFile) {
+          throw error("line longer than " + MAX_LINE_BYTES + " bytes");
+        }
+      }
+    }
+
+    private void add(long wayId, int startLat, int startLon, int endLat, int endLon, long visits, boolean deadEnd) {
+      if (size == wayIds.length) {
+        wayIds = Arrays.copyOf(wayIds, size * 2);
+        coordinates = Arrays.copyOf(coordinates, size * 8);
+        this.visits = Arrays.copyOf(this.visits, size * 2);
+        deadEnds = Arrays.copyOf(deadEnds, size * 2);
+      }
+      wayIds[size] = wayId;
+      coordinates[size * 4] = startLat;
+      coordinates[size * 4 + 1] = startLon;
+      coordinates[size * 4 + 2] = endLat;
+      coordinates[size * 4 + 3] = endLon;
+      this.visits[size] = visits;
+      deadEnds[size++] = deadEnd;
+    }
+
+    /** Moves past the end of the current line and returns false if the buffer ends first. */
+    private boolean skipLine() {
+      while (position < buffer.limit()) {
+        if (buffer.get(position++) == '\n') {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private int parseInt() {
+      long value = parseLong();
+      if (value != (int) value) {
+        throw error("integer out of range");
+      }
+      return (int) value;
+    }
+
+    /** Parses the number at the current position and moves past the comma that follows, if any. */
+    private long parseLong() {
+      boolean negative = position < buffer.limit() && buffer.get(position) == '-';
+      if (negative) {
+        position++;
+      }
+      long value = 0;
+      int digits = 0;
+      while (position < buffer.limit()) {
+        byte b = buffer.get(position);
+        if (b >= '0' && b <= '9') {
+          value = value * 10 + (b - '0');
+          digits++;
+          position++;
+        } else if (b == ',') {
+          position++;
+          break;
+        } else if (b == '\n' || b == '\r') {
+          break;
+        } else {
+          throw error("unexpected character '" + (char) b + "'");
+        }
+      }
+      if (digits == 0) {
+        throw error("missing number");
+      }
+      return negative ? -value : value;
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at byte " + (offset + position));
+    }
+  }
+}
@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash index from snapped coordinates to dense vertex ids, stored in primitive arrays.
+ * <p>
+ * Ids are assigned in the order coordinates are first {@link #add added}, and the index counts how many times each
+ * coordinate was added so callers can find the vertices shared between lines without a
+ * {@code HashMap<Coordinate, Integer>}. Keys are the bit patterns of both ordinates packed into one 64-bit hash, and
+ * probes compare against the coordinates stored for each id so lookups never allocate or box.
+ * <p>
+ * Coordinates compare like {@link org.locationtech.jts.geom.Coordinate#equals2D}, so {@code -0.0} and {@code 0.0}
+ * are the same vertex.
+ */
+public class VertexIndex {
+
+  private int size = 0;
+  private int[] table;
+  private int mask;
+  private double[] xs;
+  private double[] ys;
+  private int[] counts;
+
+  public VertexIndex() {
+    this(16);
+  }
+
+  /** Creates an index with room for {@code expectedSize} vertices before it needs to grow. */
+  public VertexIndex(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(8, expectedSize) * 2 - 1) * 2;
+    table = new int[capacity];
+    mask = capacity - 1;
+    xs = new double[Math.max(8, expectedSize)];
+    ys = new double[xs.length];
+    counts = new int[xs.length];
+  }
+
+  private static int hash(double x, double y) {
+    return (int) Hashing.point(x, y);
+  }
+
+  /** Adds one occurrence of {@code (x, y)} and returns its vertex id. */
+  public int add(double x, double y) {
+    int slot = hash(x, y) & mask;
+    int entry;
+    while ((entry = table[slot]) != 0) {
+      int id = entry - 1;
+      if (xs[id] == x && ys[id] == y) {
+        counts[id]++;
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (size == xs.length) {
+      xs = Arrays.copyOf(xs, size * 2);
+      ys = Arrays.copyOf(ys, size * 2);
+      counts = Arrays.copyOf(counts, size * 2);
+    }
+    int id = size++;
+    xs[id] = x;
+    ys[id] = y;
+    counts[id] = 1;
+    table[slot] = id + 1;
+    if (size * 2 > table.length) {
+      rehash();
+    }
+    return id;
+  }
+
+  /** Returns the vertex id of {@code (x, y)}, or {@code -1} if it was never added. */
+  public int get(double x, double y) {
+    int slot = hash(x, y) & mask;
+    int entry;
+    while ((entry = table[slot]) != 0) {
+      int id = entry - 1;
+      if (xs[id] == x && ys[id] == y) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /** Returns how many times the vertex with id {@code id} was added. */
+  public int count(int id) {
+    return counts[id];
+  }
+
+  /** Returns the number of distinct vertices in the index. */
+  public int size() {
+    return size;
+  }
+
+  public double x(int id) {
+    return xs[id];
+  }
+
+  public double y(int id) {
+    return ys[id];
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    mask = table.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = hash(xs[id], ys[id]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = id + 1;
+    }
+  }
+}
@@ -0,0 +1,5 @@
+#!/bin/bash
+set -e
+java -cp planetiler.jar MergerChecks.java
+java -cp planetiler.jar FileChecks.java
+java -cp planetiler.jar SortChecks.java
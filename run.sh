@@ -1,2 +1,4 @@
 #!/bin/bash
-java -cp planetiler.jar MyProfile.java --output data/roads.pmtiles --force 2>&1 | tee logs.txt
+# MyProfile uses LoopLineMerger and the graph classes from planetiler/
+javac -cp planetiler.jar -sourcepath planetiler -d build MyProfile.java &&
+java -cp planetiler.jar:build MyProfile --output data/roads.pmtiles --force 2>&1 | tee logs.txt